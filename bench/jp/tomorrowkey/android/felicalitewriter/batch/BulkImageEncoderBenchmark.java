@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BulkImageEncoder} のスレッド数ごとのスループットを測定するベンチマーク<br>
+ * 生成したURIの一覧を、スレッド数を1から倍ずつ増やしながら変換し、1秒あたりのレコード数を出力します。
+ * コア数より多いスレッド数も測定するので、どこで頭打ちになるかを確かめられます
+ * 
+ * <pre>
+ * java BulkImageEncoderBenchmark [レコード数] [最大スレッド数] [繰り返し回数]
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BulkImageEncoderBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int recordCount = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+        int processorCount = Runtime.getRuntime().availableProcessors();
+        int maxThreadCount = args.length >= 2 ? Integer.parseInt(args[1]) : processorCount * 2;
+        int repeatCount = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+
+        List<String> uris = createUris(recordCount);
+        File output = File.createTempFile("bulk", ".img");
+        output.deleteOnExit();
+        try {
+            // JIT が落ち着くまで捨てる
+            BulkImageEncoder.encode(uris, output, 1);
+
+            System.out.println("records=" + recordCount + ", processors=" + processorCount);
+            for (int threadCount = 1; threadCount <= maxThreadCount; threadCount *= 2) {
+                long bestNanos = Long.MAX_VALUE;
+                for (int i = 0; i < repeatCount; i++) {
+                    long startNanos = System.nanoTime();
+                    BulkImageEncoder.encode(uris, output, threadCount);
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - startNanos);
+                }
+                System.out.println("threads=" + threadCount + ", best=" + bestNanos / 1000000L
+                        + "ms, records/sec=" + (long)(recordCount * 1000000000.0 / bestNanos));
+            }
+        } finally {
+            output.delete();
+        }
+    }
+
+    /**
+     * 長さの違うURIを作成します。短縮できるプレフィックスと、できないものを混ぜます
+     */
+    private static List<String> createUris(int count) {
+        List<String> uris = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder builder = new StringBuilder();
+            switch (i % 4) {
+                case 0:
+                    builder.append("http://www.example.com/item/");
+                    break;
+                case 1:
+                    builder.append("https://example.jp/campaign?id=");
+                    break;
+                case 2:
+                    builder.append("tel:+81-3-0000-");
+                    break;
+                default:
+                    builder.append("geo:35.6,139.7?q=");
+                    break;
+            }
+            builder.append(i);
+            for (int j = 0; j < i % 7; j++) {
+                builder.append("/path");
+            }
+            uris.add(builder.toString());
+        }
+        return uris;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+/**
+ * タグに書き込む前の処理を、端末なしで測定するベンチマーク<br>
+ * {@link FeliCaLiteTag#mappingBlock} の中身である {@link BlockImage#fromNdefMessage(byte[], TagProfile)}、
+ * 書き込みプランのフレームの組み立て、属性情報ブロックのチェックサムの計算について、
+ * NDEFメッセージの長さごとに1回あたりの時間を出力します。
+ * android.nfc.NdefMessage は JVM で作成できないので、NDEFメッセージはバイト列で渡します
+ * 
+ * <pre>
+ * java BlockMappingBenchmark [繰り返し回数]
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BlockMappingBenchmark {
+
+    private static final int[] NDEF_LENGTHS = new int[] {
+            16, 64, 128, 208
+    };
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x2e, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01
+    };
+
+    /**
+     * 結果を捨てられないように、作成したものから作る値
+     */
+    private static long sSink;
+
+    public static void main(String[] args) throws SizeOverflowException {
+        int iterationCount = args.length >= 1 ? Integer.parseInt(args[0]) : 1000000;
+
+        for (int ndefLength : NDEF_LENGTHS) {
+            byte[] ndefMessage = createNdefMessage(ndefLength);
+
+            // JIT が落ち着くまで捨てる
+            measure(ndefMessage, iterationCount / 10);
+
+            long[] nanos = measure(ndefMessage, iterationCount);
+            System.out.println("ndef=" + ndefLength + "bytes, mapping="
+                    + format(nanos[0], iterationCount) + ", plan="
+                    + format(nanos[1], iterationCount) + ", checksum="
+                    + format(nanos[2], iterationCount));
+        }
+        System.out.println("sink=" + sSink);
+    }
+
+    /**
+     * @return イメージの作成、プランの作成、チェックサムの計算にかかった時間（ナノ秒）
+     */
+    private static long[] measure(byte[] ndefMessage, int iterationCount)
+            throws SizeOverflowException {
+        long[] nanos = new long[3];
+        long sink = 0;
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < iterationCount; i++) {
+            sink += BlockImage.fromNdefMessage(ndefMessage, TagProfile.FELICA_LITE)
+                    .getNdefLength();
+        }
+        nanos[0] = System.nanoTime() - startNanos;
+
+        BlockImage image = BlockImage.fromNdefMessage(ndefMessage, TagProfile.FELICA_LITE);
+        startNanos = System.nanoTime();
+        for (int i = 0; i < iterationCount; i++) {
+            WritePlan writePlan = FeliCaLiteTag.createWritePlan(image, WriteMode.USED_BLOCKS,
+                    TagProfile.FELICA_LITE);
+            writePlan.setIdm(IDM);
+            sink += writePlan.getFrameCount();
+        }
+        nanos[1] = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < iterationCount; i++) {
+            image.writeLength(ndefMessage.length - (i & 1));
+            sink += image.get(BlockImage.BLOCK_SIZE - 1);
+        }
+        nanos[2] = System.nanoTime() - startNanos;
+
+        sSink += sink;
+        return nanos;
+    }
+
+    /**
+     * 1つの短いレコードに、指定した長さまでペイロードを詰めたNDEFメッセージを作成します
+     */
+    private static byte[] createNdefMessage(int length) {
+        byte[] ndefMessage = new byte[length];
+        ndefMessage[0] = (byte)0xd1;
+        ndefMessage[1] = 0x01;
+        ndefMessage[2] = (byte)(length - 4);
+        ndefMessage[3] = 'U';
+        for (int i = 4; i < length; i++) {
+            ndefMessage[i] = (byte)('a' + i % 26);
+        }
+        return ndefMessage;
+    }
+
+    private static String format(long nanos, int iterationCount) {
+        return nanos / iterationCount + "ns";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+/**
+ * {@link UriPrefix#find(CharSequence)} と {@link UriRecordEncoder} で、URIを大量に変換する時間を測定するベンチマーク<br>
+ * 比較のために、すべてのプロトコルを順に startsWith で調べて最も長いものを選ぶ場合の時間も出力します
+ * 
+ * <pre>
+ * java UriRecordEncoderBenchmark [URIの数] [繰り返し回数]
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriRecordEncoderBenchmark {
+
+    private static final String[] PREFIXES = new String[] {
+            "http://www.example.com/item/", "https://example.jp/campaign?id=", "tel:+81-3-0000-",
+            "urn:epc:id:sgtin:0614141.812345.", "urn:nfc:sn:", "geo:35.6,139.7?q=",
+            "mailto:info", "ftp://ftp.example.com/pub/"
+    };
+
+    /**
+     * 結果を捨てられないように、変換結果から作る値
+     */
+    private static long sSink;
+
+    public static void main(String[] args) throws SizeOverflowException {
+        int uriCount = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+        int repeatCount = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+
+        String[] uris = new String[uriCount];
+        for (int i = 0; i < uriCount; i++) {
+            uris[i] = PREFIXES[i % PREFIXES.length] + i;
+        }
+        byte[] buffer = new byte[UriRecordEncoder.MAX_NDEF_LENGTH];
+
+        // JIT が落ち着くまで捨てる
+        findLinear(uris);
+        find(uris);
+        encode(uris, buffer);
+
+        long linearNanos = Long.MAX_VALUE;
+        long findNanos = Long.MAX_VALUE;
+        long encodeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < repeatCount; i++) {
+            long startNanos = System.nanoTime();
+            findLinear(uris);
+            linearNanos = Math.min(linearNanos, System.nanoTime() - startNanos);
+
+            startNanos = System.nanoTime();
+            find(uris);
+            findNanos = Math.min(findNanos, System.nanoTime() - startNanos);
+
+            startNanos = System.nanoTime();
+            encode(uris, buffer);
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - startNanos);
+        }
+
+        System.out.println("uris=" + uriCount);
+        print("linear scan", uriCount, linearNanos);
+        print("UriPrefix.find", uriCount, findNanos);
+        print("UriRecordEncoder.encode", uriCount, encodeNanos);
+        System.out.println("sink=" + sSink);
+    }
+
+    private static void findLinear(String[] uris) {
+        long sink = 0;
+        int size = UriPrefix.size();
+        for (String uri : uris) {
+            int index = 0;
+            for (int i = 1; i < size; i++) {
+                String protocol = UriPrefix.get(i);
+                if (uri.startsWith(protocol)
+                        && protocol.length() > UriPrefix.get(index).length())
+                    index = i;
+            }
+            sink += index;
+        }
+        sSink += sink;
+    }
+
+    private static void find(String[] uris) {
+        long sink = 0;
+        for (String uri : uris) {
+            sink += UriPrefix.find(uri);
+        }
+        sSink += sink;
+    }
+
+    private static void encode(String[] uris, byte[] buffer) throws SizeOverflowException {
+        long sink = 0;
+        for (String uri : uris) {
+            sink += UriRecordEncoder.encode(uri, buffer, 0);
+        }
+        sSink += sink;
+    }
+
+    private static void print(String name, int uriCount, long nanos) {
+        System.out.println(name + ", best=" + nanos / 1000000L + "ms, uris/sec="
+                + (long)(uriCount * 1000000000.0 / nanos));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+/**
+ * {@link UriTemplateEncoder.Cursor} と、連番ごとにURIを組み立てて {@link UriRecordEncoder} で
+ * 変換する場合の1秒あたりのイメージ数を比べるベンチマーク
+ * 
+ * <pre>
+ * java UriTemplateEncoderBenchmark [連番の数] [繰り返し回数]
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriTemplateEncoderBenchmark {
+
+    private static final String TEMPLATE = "http://www.example.com/item/" + UriTemplateEncoder.SERIAL
+            + "?ref=nfc";
+
+    /**
+     * 結果を捨てられないように、イメージのNDEFメッセージの長さを足した値
+     */
+    private static long sSink;
+
+    public static void main(String[] args) throws SizeOverflowException {
+        int serialCount = args.length >= 1 ? Integer.parseInt(args[0]) : 1000000;
+        int repeatCount = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+
+        UriTemplateEncoder encoder = new UriTemplateEncoder(TEMPLATE);
+
+        // JIT が落ち着くまで捨てる
+        encodePerUri(serialCount);
+        encodeWithCursor(encoder, serialCount);
+
+        System.out.println("serials=" + serialCount);
+        long perUriNanos = Long.MAX_VALUE;
+        long cursorNanos = Long.MAX_VALUE;
+        for (int i = 0; i < repeatCount; i++) {
+            long startNanos = System.nanoTime();
+            encodePerUri(serialCount);
+            perUriNanos = Math.min(perUriNanos, System.nanoTime() - startNanos);
+
+            startNanos = System.nanoTime();
+            encodeWithCursor(encoder, serialCount);
+            cursorNanos = Math.min(cursorNanos, System.nanoTime() - startNanos);
+        }
+        print("per uri", serialCount, perUriNanos);
+        print("cursor", serialCount, cursorNanos);
+        System.out.println("sink=" + sSink);
+    }
+
+    private static void encodePerUri(int serialCount) throws SizeOverflowException {
+        BlockImage image = new BlockImage();
+        byte[] buffer = new byte[UriRecordEncoder.MAX_NDEF_LENGTH];
+        long sink = 0;
+        for (int serial = 0; serial < serialCount; serial++) {
+            String uri = TEMPLATE.replace(UriTemplateEncoder.SERIAL, Integer.toString(serial));
+            UriRecordEncoder.encode(uri, image, buffer);
+            sink += image.getNdefLength();
+        }
+        sSink += sink;
+    }
+
+    private static void encodeWithCursor(UriTemplateEncoder encoder, int serialCount)
+            throws SizeOverflowException {
+        UriTemplateEncoder.Cursor cursor = encoder.cursor(0);
+        long sink = 0;
+        for (int serial = 0; serial < serialCount; serial++) {
+            sink += cursor.next().getNdefLength();
+        }
+        sSink += sink;
+    }
+
+    private static void print(String name, int serialCount, long nanos) {
+        System.out.println(name + ", best=" + nanos / 1000000L + "ms, images/sec="
+                + (long)(serialCount * 1000000000.0 / nanos));
+    }
+}
@@ -26,7 +26,10 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import jp.tomorrowkey.android.felicalitewriter.ndef.UriNdefBuilder;
+import java.util.ArrayList;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.ndef.CompactNdefBuilder;
 
 public class HomeActivity extends Activity {
 
@@ -66,7 +69,26 @@ public class HomeActivity extends Activity {
             return;
         }
 
-        UriNdefBuilder builder = new UriNdefBuilder(urlString);
+        // 複数行入力された場合は、1行ずつ別々のタグに書き込むバッチモードにする
+        ArrayList<String> urls = new ArrayList<String>();
+        for (String line : urlString.split("\n")) {
+            if (line.trim().length() > 0)
+                urls.add(line.trim());
+        }
+        if (urls.size() > 1) {
+            performMoveToWriteActivity(urls);
+            return;
+        }
+
+        // 書き込む前に、タグに収まるかどうかを確かめる
+        CompactNdefBuilder builder = new CompactNdefBuilder().addUri(urlString.trim());
+        if (!builder.isWithinCapacity()) {
+            String message = getString(R.string.size_over, builder.getByteCount(),
+                    builder.getBlockCount(), BlockImage.MAX_DATA_BLOCK_COUNT);
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         NdefMessage ndefMessage = builder.build();
         performMoveToWriteActivity(ndefMessage);
     }
@@ -77,4 +99,10 @@ public class HomeActivity extends Activity {
         startActivity(intent);
     }
 
+    private void performMoveToWriteActivity(ArrayList<String> urls) {
+        Intent intent = new Intent(this, WriteActivity.class);
+        intent.putStringArrayListExtra(WriteActivity.EXTRA_URI_LIST, urls);
+        startActivity(intent);
+    }
+
 }
@@ -20,19 +20,41 @@ import android.app.Activity;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.TagLostException;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import jp.tomorrowkey.android.felicalitewriter.batch.BatchJobQueue;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.AsyncTagWriter;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.CommandTrace;
 import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag;
-import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.SizeOverflowException;
 import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.UnsupportTagException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.TagMetrics;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.TagStateCache;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.TimeoutPolicy;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.WritePlan;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.WritePlanCache;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.WriteCheckpointCache;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.WriteResult;
+import jp.tomorrowkey.android.felicalitewriter.journal.JournalEntry;
+import jp.tomorrowkey.android.felicalitewriter.journal.WriteJournal;
 
 public class WriteActivity extends Activity {
 
@@ -40,16 +62,115 @@ public class WriteActivity extends Activity {
 
     public static final String EXTRA_NDEF_MESSAGE = "ndef_message";
 
+    /**
+     * タグごとに1つずつ書き込むURIの一覧（ArrayList&lt;String&gt;）<br>
+     * 指定した場合は EXTRA_NDEF_MESSAGE より優先します
+     */
+    public static final String EXTRA_URI_LIST = "uri_list";
+
+    private static final String PREFERENCES_BATCH = "batch";
+
+    private static final String KEY_JOB_LIST_HASH = "job_list_hash";
+
+    private static final String KEY_POSITION = "position";
+
+    private static final int CHECKPOINT_CACHE_SIZE = 32;
+
+    private static final long CHECKPOINT_EXPIRE_MILLIS = 60 * 1000;
+
+    private static final int WRITE_PLAN_CACHE_SIZE = 4;
+
+    private static final int COMMAND_TRACE_SIZE = 32;
+
+    private static final String JOURNAL_FILE_NAME = "write.journal";
+
+    private static final String JOURNAL_INDEX_FILE_NAME = "write.journal.index";
+
+    /**
+     * 閉じるときに、実行中の書き込みがジャーナルに記録を積むまで待つ時間（秒）
+     */
+    private static final long JOURNAL_CLOSE_WAIT_SECONDS = 5;
+
     private NfcAdapter mNfcAdapter;
 
     private NdefMessage mNdefMessage;
 
+    /**
+     * バッチモードの書き込みジョブ。バッチモードでない場合は null
+     */
+    private BatchJobQueue mBatchJobQueue;
+
+    private TextView mStatusTextView;
+
+    /**
+     * タグへの書き込みを実行するスレッド
+     */
+    private ExecutorService mWriteExecutor;
+
+    /**
+     * UIスレッドで実行する Executor
+     */
+    private Executor mMainThreadExecutor;
+
+    private AsyncTagWriter mTagWriter;
+
+    /**
+     * バッチモードで、ジャーナルを引いている間は true。UIスレッドだけが使います
+     */
+    private boolean mLookingUpJournal;
+
+    /**
+     * 途中でタグが離れた書き込みを再開するための記録
+     */
+    private WriteCheckpointCache mCheckpointCache = new WriteCheckpointCache(
+            CHECKPOINT_CACHE_SIZE, CHECKPOINT_EXPIRE_MILLIS);
+
+    /**
+     * 最近書き込んだタグの状態
+     */
+    private TagStateCache mTagStateCache = new TagStateCache(CHECKPOINT_CACHE_SIZE,
+            CHECKPOINT_EXPIRE_MILLIS);
+
+    /**
+     * 書き込む NdefMessage から作成した書き込みプラン
+     */
+    private WritePlanCache mWritePlanCache = new WritePlanCache(WRITE_PLAN_CACHE_SIZE);
+
+    /**
+     * タグとの通信時間の記録
+     */
+    private TagMetrics mMetrics = new TagMetrics();
+
+    /**
+     * 失敗したときに出力する、直近のコマンドとレスポンス
+     */
+    private CommandTrace mCommandTrace = new CommandTrace(COMMAND_TRACE_SIZE);
+
+    /**
+     * 往復時間から決めるコマンドのタイムアウト
+     */
+    private TimeoutPolicy mTimeoutPolicy = new TimeoutPolicy();
+
+    /**
+     * 書き込んだタグの記録
+     */
+    private WriteJournal mJournal;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_write);
 
+        mStatusTextView = (TextView)findViewById(R.id.status_textview);
+        initTagWriter();
+
         Intent intent = getIntent();
+        ArrayList<String> uris = intent.getStringArrayListExtra(EXTRA_URI_LIST);
+        if (uris != null) {
+            initBatchJobQueue(uris);
+            return;
+        }
+
         Bundle extras = intent.getExtras();
         mNdefMessage = (NdefMessage)extras.getParcelable(EXTRA_NDEF_MESSAGE);
 
@@ -58,6 +179,117 @@ public class WriteActivity extends Activity {
             finish();
             return;
         }
+
+        try {
+            // タッチする前に作っておき、書き込み時は IDm の差し替えだけにする
+            mWritePlanCache.getWritePlan(mNdefMessage, WriteMode.USED_BLOCKS);
+        } catch (SizeOverflowException e) {
+            Toast.makeText(getApplicationContext(), "size over", Toast.LENGTH_SHORT).show();
+            Log.w(LOG_TAG, e.getMessage());
+            finish();
+            return;
+        }
+    }
+
+    private void initTagWriter() {
+        final Handler handler = new Handler();
+        mMainThreadExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+
+        mWriteExecutor = Executors.newSingleThreadExecutor();
+        mTagWriter = new AsyncTagWriter(mWriteExecutor, mMainThreadExecutor);
+
+        mJournal = new WriteJournal(new File(getFilesDir(), JOURNAL_FILE_NAME), new File(
+                getFilesDir(), JOURNAL_INDEX_FILE_NAME));
+        mTagWriter.setJournal(mJournal);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mWriteExecutor.shutdownNow();
+        Log.i(LOG_TAG, "tag metrics\n" + mMetrics.export());
+        Log.i(LOG_TAG, "timeout policy, " + mTimeoutPolicy);
+
+        closeJournal();
+    }
+
+    /**
+     * 中断した書き込みの記録を積み終わるのを待ってから、ジャーナルを閉じます<br>
+     * 閉じるときは書き込みスレッドの終了と同期を待つので、UIスレッドでは行いません
+     */
+    private void closeJournal() {
+        final ExecutorService writeExecutor = mWriteExecutor;
+        final WriteJournal journal = mJournal;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeExecutor.awaitTermination(JOURNAL_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // 待たずに閉じる
+                }
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "failed to write journal", e);
+                }
+            }
+        }, "WriteJournalCloser").start();
+    }
+
+    private void initBatchJobQueue(ArrayList<String> uris) {
+        try {
+            mBatchJobQueue = new BatchJobQueue(uris);
+        } catch (SizeOverflowException e) {
+            Toast.makeText(getApplicationContext(), "size over", Toast.LENGTH_SHORT).show();
+            Log.w(LOG_TAG, e.getMessage());
+            finish();
+            return;
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(getApplicationContext(), R.string.invalid_url, Toast.LENGTH_SHORT)
+                    .show();
+            finish();
+            return;
+        }
+
+        restoreBatchProgress();
+        updateBatchStatus();
+    }
+
+    /**
+     * 同じジョブ列の進捗が保存されていれば、続きから再開します
+     */
+    private void restoreBatchProgress() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES_BATCH, MODE_PRIVATE);
+        if (preferences.getInt(KEY_JOB_LIST_HASH, 0) != mBatchJobQueue.getJobListHash())
+            return;
+
+        int position = preferences.getInt(KEY_POSITION, 0);
+        if (position > 0 && position <= mBatchJobQueue.size())
+            mBatchJobQueue.setPosition(position);
+    }
+
+    private void saveBatchProgress() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES_BATCH, MODE_PRIVATE);
+        preferences.edit().putInt(KEY_JOB_LIST_HASH, mBatchJobQueue.getJobListHash())
+                .putInt(KEY_POSITION, mBatchJobQueue.getPosition()).commit();
+    }
+
+    private void updateBatchStatus() {
+        if (!mBatchJobQueue.hasNext()) {
+            mStatusTextView.setText(R.string.batch_completed);
+            return;
+        }
+
+        mStatusTextView.setText(getString(R.string.batch_progress, mBatchJobQueue.getPosition(),
+                mBatchJobQueue.size(), mBatchJobQueue.getThroughputMeter().getCountPerMinute(),
+                mBatchJobQueue.getNextUri()));
     }
 
     @Override
@@ -109,40 +341,158 @@ public class WriteActivity extends Activity {
         FeliCaLiteTag felicaLiteTag = null;
         try {
             felicaLiteTag = new FeliCaLiteTag(tag);
+            felicaLiteTag.setCheckpointCache(mCheckpointCache);
+            felicaLiteTag.setTagStateCache(mTagStateCache);
+            felicaLiteTag.setWritePlanCache(mWritePlanCache);
+            felicaLiteTag.setMetrics(mMetrics);
+            felicaLiteTag.setCommandTrace(mCommandTrace);
+            felicaLiteTag.setTimeoutPolicy(mTimeoutPolicy);
+            felicaLiteTag.setVerifyEnabled(true);
         } catch (UnsupportTagException e) {
-            Toast.makeText(getApplicationContext(), "this is not felica tag", Toast.LENGTH_SHORT)
-                    .show();
+            Toast.makeText(getApplicationContext(), "this is not felica lite tag",
+                    Toast.LENGTH_SHORT).show();
             return;
         }
 
+        if (mBatchJobQueue != null) {
+            writeBatchJob(felicaLiteTag, idm);
+            return;
+        }
+
+        // タグの種類ごとに属性情報ブロックが違うので、タッチしたタグの種類のプランを使う
+        WritePlan writePlan;
         try {
-            felicaLiteTag.applyNdefFlag(idm, true);
-        } catch (TagLostException e) {
-            Log.e(LOG_TAG, "TagLostException", e);
-            Toast.makeText(getApplicationContext(), "TagLostException", Toast.LENGTH_SHORT).show();
+            writePlan = mWritePlanCache.getWritePlan(mNdefMessage, WriteMode.USED_BLOCKS,
+                    felicaLiteTag.getProfile());
+        } catch (SizeOverflowException e) {
+            Toast.makeText(getApplicationContext(), "size over", Toast.LENGTH_SHORT).show();
+            Log.w(LOG_TAG, e.getMessage());
             return;
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "IOException", e);
-            Toast.makeText(getApplicationContext(), "IOException", Toast.LENGTH_SHORT).show();
+        }
+
+        Log.d(LOG_TAG, "write ndef message");
+        mTagWriter.write(felicaLiteTag, idm, writePlan, new WriteCallback() {
+            @Override
+            public void onComplete(byte[] idm, WriteResult result) {
+                Log.d(LOG_TAG, "wrote ndef message, " + result);
+                mStatusTextView.setText("");
+                Toast.makeText(getApplicationContext(), R.string.wrote_ndef, Toast.LENGTH_LONG)
+                        .show();
+            }
+        });
+    }
+
+    private void writeBatchJob(FeliCaLiteTag felicaLiteTag, byte[] idm) {
+        if (!mBatchJobQueue.hasNext()) {
+            Toast.makeText(getApplicationContext(), R.string.batch_completed, Toast.LENGTH_SHORT)
+                    .show();
             return;
         }
 
-        try {
-            Log.d(LOG_TAG, "write ndef message");
-            felicaLiteTag.writeNdefMessage(idm, mNdefMessage);
+        // 書き込みが終わるまで、次のジョブは渡さない
+        if (mTagWriter.isBusy() || mLookingUpJournal)
+            return;
 
-        } catch (TagLostException e) {
-            Log.e(LOG_TAG, "TagLostException", e);
+        // 書き込み直後の同じタグをもう一度タッチしても、次のジョブを消費しない
+        if (mTagStateCache.isWrittenRecently(idm)) {
+            Log.d(LOG_TAG, "ignore recently written tag, hit=" + mTagStateCache.getHitCount()
+                    + ", miss=" + mTagStateCache.getMissCount());
             return;
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "IOException", e);
+        }
+
+        // ジャーナルは開き終わるまで待つことがあるので、書き込みスレッドで引いて結果をUIスレッドで受け取る
+        mLookingUpJournal = true;
+        final FeliCaLiteTag tag = felicaLiteTag;
+        final byte[] tagIdm = idm;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final JournalEntry entry = lookupJournal(tagIdm);
+                mMainThreadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLookingUpJournal = false;
+                        onJournalLookedUp(tag, tagIdm, entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param entry ジャーナルに記録されている最後の書き込み。ない場合は null
+     */
+    private void onJournalLookedUp(FeliCaLiteTag felicaLiteTag, byte[] idm, JournalEntry entry) {
+        if (mWriteExecutor.isShutdown())
             return;
-        } catch (SizeOverflowException e) {
-            Toast.makeText(getApplicationContext(), "size over", Toast.LENGTH_SHORT).show();
-            Log.w(LOG_TAG, e.getMessage());
+
+        // このジョブ列のどれかをすでに書き込んだタグには、次のジョブを書き込まない
+        if (entry != null && entry.isSuccess() && mBatchJobQueue.contains(entry.getContentHash())) {
+            Toast.makeText(getApplicationContext(), R.string.already_written, Toast.LENGTH_SHORT)
+                    .show();
             return;
         }
 
-        Toast.makeText(getApplicationContext(), R.string.wrote_ndef, Toast.LENGTH_LONG).show();
+        mTagWriter.write(felicaLiteTag, idm, mBatchJobQueue.getNextWritePlan(),
+                new WriteCallback() {
+                    @Override
+                    public void onComplete(byte[] idm, WriteResult result) {
+                        String uri = mBatchJobQueue.complete();
+                        Log.d(LOG_TAG, "wrote batch job, uri=" + uri + ", " + result);
+
+                        saveBatchProgress();
+                        updateBatchStatus();
+                        Toast.makeText(getApplicationContext(), R.string.wrote_ndef,
+                                Toast.LENGTH_SHORT).show();
+                    }
+
+                    @Override
+                    public void onError(byte[] idm, Exception e) {
+                        super.onError(idm, e);
+                        updateBatchStatus();
+                    }
+                });
+    }
+
+    /**
+     * 書き込みスレッドで呼び出します
+     * 
+     * @param idm IDm
+     * @return ジャーナルに記録されている最後の書き込み。ない場合や読めない場合は null
+     */
+    private JournalEntry lookupJournal(byte[] idm) {
+        try {
+            return mJournal.lookup(idm);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "failed to lookup journal", e);
+            return null;
+        }
+    }
+
+    /**
+     * 書き込みの進捗と失敗を画面に表示するコールバック
+     */
+    private abstract class WriteCallback implements AsyncTagWriter.Callback {
+        @Override
+        public void onProgress(byte[] idm, int writtenCount, int totalCount) {
+            mStatusTextView.setText(getString(R.string.writing, writtenCount, totalCount));
+        }
+
+        @Override
+        public void onError(byte[] idm, Exception e) {
+            if (e instanceof CancellationException) {
+                Log.d(LOG_TAG, "write was cancelled");
+                return;
+            }
+
+            String name = e.getClass().getSimpleName();
+            Log.e(LOG_TAG, name, e);
+
+            StringBuilder trace = new StringBuilder();
+            mCommandTrace.dump(trace);
+            Log.d(LOG_TAG, "command trace\n" + trace);
+            mStatusTextView.setText("");
+            Toast.makeText(getApplicationContext(), name, Toast.LENGTH_SHORT).show();
+        }
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.batch;
+
+import android.nfc.TagLostException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.WritePlan;
+import jp.tomorrowkey.android.felicalitewriter.ndef.UriRecordEncoder;
+import jp.tomorrowkey.android.felicalitewriter.util.ThroughputMeter;
+
+/**
+ * タグごとに異なるURIを書き込むための、書き込みジョブの列<br>
+ * 読み込んだ時点ですべてのURIを {@link WritePlan} に変換しておき、タグにタッチするたびに次のジョブを書き込みます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BatchJobQueue {
+
+    /**
+     * 書き込むURI
+     */
+    private List<String> mUris;
+
+    /**
+     * 各URIを書き込むコマンド
+     */
+    private WritePlan[] mWritePlans;
+
+    /**
+     * 各ジョブの書き込む内容のハッシュ値
+     */
+    private Set<Long> mContentHashes = new HashSet<Long>();
+
+    /**
+     * 次に書き込むジョブの位置
+     */
+    private int mPosition;
+
+    /**
+     * 書き込み枚数の計測
+     */
+    private ThroughputMeter mThroughputMeter = new ThroughputMeter();
+
+    /**
+     * @param uris 書き込むURI。空の行は無視します
+     * @throws SizeOverflowException タグに収まらないURIがある場合に発生します
+     */
+    public BatchJobQueue(List<String> uris) throws SizeOverflowException {
+        if (uris == null)
+            throw new IllegalArgumentException();
+
+        mUris = new ArrayList<String>(uris.size());
+        for (String uri : uris) {
+            if (uri != null && uri.trim().length() > 0)
+                mUris.add(uri.trim());
+        }
+        if (mUris.isEmpty())
+            throw new IllegalArgumentException("no job");
+
+        // 同じURIが何度も出てくる場合は、同じ書き込みプランを使い回す
+        // NdefMessage を経由せずに変換するので、端末なしでもジョブ列を作成できる
+        Map<String, WritePlan> writePlans = new HashMap<String, WritePlan>();
+        mWritePlans = new WritePlan[mUris.size()];
+        BlockImage image = new BlockImage();
+        byte[] buffer = new byte[UriRecordEncoder.MAX_NDEF_LENGTH];
+        for (int i = 0; i < mWritePlans.length; i++) {
+            String uri = mUris.get(i);
+            WritePlan writePlan = writePlans.get(uri);
+            if (writePlan == null) {
+                UriRecordEncoder.encode(uri, image, buffer);
+                writePlan = FeliCaLiteTag.createWritePlan(image, WriteMode.USED_BLOCKS);
+                writePlans.put(uri, writePlan);
+            }
+            mWritePlans[i] = writePlan;
+            mContentHashes.add(writePlan.getContentHash());
+        }
+    }
+
+    /**
+     * 次に書き込むジョブを書き込みます<br>
+     * 書き込みに成功した場合だけ、次のジョブに進みます
+     * 
+     * @param tag タグ
+     * @param idm IDm
+     * @return 書き込んだURI
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public String writeNext(FeliCaLiteTag tag, byte[] idm) throws TagLostException, IOException {
+        if (!hasNext())
+            throw new IllegalStateException("all jobs are completed");
+
+        tag.connect();
+        try {
+            tag.applyNdefFlag(idm, true);
+            tag.write(idm, getNextWritePlan());
+        } finally {
+            tag.close();
+        }
+
+        return complete();
+    }
+
+    /**
+     * @return 次に書き込むジョブのコマンド
+     */
+    public WritePlan getNextWritePlan() {
+        if (!hasNext())
+            throw new IllegalStateException("all jobs are completed");
+        return mWritePlans[mPosition];
+    }
+
+    /**
+     * {@link #getNextWritePlan()} の書き込みが成功したことを記録して、次のジョブに進みます<br>
+     * 書き込みを別のスレッドで行う場合に使います
+     * 
+     * @return 書き込んだURI
+     */
+    public String complete() {
+        if (!hasNext())
+            throw new IllegalStateException("all jobs are completed");
+
+        String uri = mUris.get(mPosition);
+        mPosition++;
+        mThroughputMeter.record();
+        return uri;
+    }
+
+    /**
+     * 書き込む内容のハッシュ値が、このジョブ列のどれかと同じかどうかを判定します<br>
+     * タグにすでにこのジョブ列の内容が書き込まれているかを調べるのに使います
+     * 
+     * @param contentHash {@link WritePlan#getContentHash()} の値
+     * @return 同じ内容のジョブがあれば true
+     */
+    public boolean contains(long contentHash) {
+        return mContentHashes.contains(contentHash);
+    }
+
+    /**
+     * @return 書き込んでいないジョブがあれば true
+     */
+    public boolean hasNext() {
+        return mPosition < mWritePlans.length;
+    }
+
+    /**
+     * @return 次に書き込むURI
+     */
+    public String getNextUri() {
+        if (!hasNext())
+            throw new IllegalStateException("all jobs are completed");
+        return mUris.get(mPosition);
+    }
+
+    /**
+     * @return 次に書き込むジョブの位置。書き込みが完了したジョブの数と同じです
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * 保存しておいた進捗から再開するときに、次に書き込むジョブの位置を指定します
+     * 
+     * @param position ジョブの位置
+     */
+    public void setPosition(int position) {
+        if (position < 0 || position > mWritePlans.length)
+            throw new IllegalArgumentException();
+        mPosition = position;
+    }
+
+    /**
+     * @return ジョブの数
+     */
+    public int size() {
+        return mWritePlans.length;
+    }
+
+    /**
+     * @return 書き込み枚数の計測
+     */
+    public ThroughputMeter getThroughputMeter() {
+        return mThroughputMeter;
+    }
+
+    /**
+     * 同じジョブ列かどうかを判別するための値を返します<br>
+     * 進捗を保存するときのキーとして使います
+     * 
+     * @return URIの一覧から計算した値
+     */
+    public int getJobListHash() {
+        return mUris.hashCode();
+    }
+}
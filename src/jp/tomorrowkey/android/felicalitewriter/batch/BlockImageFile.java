@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+
+/**
+ * あらかじめ作成した {@link BlockImage} を並べたファイル<br>
+ * ファイルの構成は次のとおりで、数値はすべてビッグエンディアンです。
+ * 
+ * <pre>
+ * ヘッダ（32バイト）
+ *   0  マジックナンバー "FLBI"
+ *   4  バージョン
+ *   8  レコード数
+ *  12  1レコードのバイト数（224）
+ *  16  インデックスの開始位置
+ *  24  イメージの開始位置
+ * インデックス（レコード数 x 8バイト）
+ *   レコードのイメージの位置。タグに収まらず作成できなかったレコードは -1
+ * イメージ（レコード数 x 224バイト）
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BlockImageFile implements Closeable {
+
+    static final int MAGIC = 0x464c4249;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int INDEX_ENTRY_SIZE = 8;
+
+    /**
+     * インデックスで作成できなかったレコードを表す値
+     */
+    static final long NO_IMAGE = -1;
+
+    private RandomAccessFile mFile;
+
+    private FileChannel mChannel;
+
+    /**
+     * メモリにマップしたインデックス
+     */
+    private MappedByteBuffer mIndex;
+
+    private int mSize;
+
+    /**
+     * イメージを読み込む作業領域
+     */
+    private ByteBuffer mImageBuffer = ByteBuffer.allocate(BlockImage.SIZE);
+
+    /**
+     * 読み込み用にファイルを開きます
+     * 
+     * @param file ファイル
+     * @throws IOException 形式が正しくない場合にも発生します
+     */
+    public BlockImageFile(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(12) != BlockImage.SIZE)
+                throw new IOException("unsupported file, " + file);
+
+            mSize = header.getInt(8);
+            mIndex = mChannel.map(FileChannel.MapMode.READ_ONLY, getIndexOffset(0), (long)mSize
+                    * INDEX_ENTRY_SIZE);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param size レコード数
+     * @return ファイルのバイト数
+     */
+    static long getFileSize(int size) {
+        return getImageOffset(size, size);
+    }
+
+    /**
+     * @param index レコードの位置
+     * @return インデックスの項目の位置
+     */
+    static long getIndexOffset(int index) {
+        return HEADER_SIZE + (long)index * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * @param size レコード数
+     * @param index レコードの位置
+     * @return イメージの位置
+     */
+    static long getImageOffset(int size, int index) {
+        return getIndexOffset(size) + (long)index * BlockImage.SIZE;
+    }
+
+    /**
+     * @return レコード数
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * レコードのイメージを読み込みます
+     * 
+     * @param index レコードの位置
+     * @param image 読み込み先
+     * @return イメージがあれば true。作成できなかったレコードは false
+     * @throws IOException
+     */
+    public boolean read(int index, BlockImage image) throws IOException {
+        if (index < 0 || index >= mSize)
+            throw new IndexOutOfBoundsException("index=" + index);
+
+        long position = mIndex.getLong(index * INDEX_ENTRY_SIZE);
+        if (position == NO_IMAGE)
+            return false;
+
+        ByteBuffer buffer = mImageBuffer;
+        buffer.clear();
+        readFully(buffer, position);
+        image.put(0, buffer.array(), 0, BlockImage.SIZE);
+        return true;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int length = mChannel.read(buffer, position);
+            if (length < 0)
+                throw new IOException("unexpected end of file");
+            position += length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
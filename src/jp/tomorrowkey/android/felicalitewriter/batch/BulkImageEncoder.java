@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+import jp.tomorrowkey.android.felicalitewriter.ndef.UriRecordEncoder;
+
+/**
+ * URIの一覧から {@link BlockImageFile} をまとめて作成するツール<br>
+ * android.nfc を使わないので、PCやサーバーの JVM で実行できます。
+ * URIの一覧を一定数ずつに分けて複数のスレッドで変換し、各スレッドはメモリにマップした
+ * ファイルの自分の範囲に直接書き込みます
+ * 
+ * <pre>
+ * java BulkImageEncoder &lt;URIの一覧&gt; &lt;出力ファイル&gt; [スレッド数]
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BulkImageEncoder {
+
+    /**
+     * 1つのスレッドにまとめて渡すレコード数
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("usage: BulkImageEncoder <uri list> <output> [threads]");
+            System.exit(1);
+        }
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 3)
+            threadCount = Integer.parseInt(args[2]);
+
+        List<String> uris = readUris(new File(args[0]));
+
+        long startNanos = System.nanoTime();
+        int failedCount = encode(uris, new File(args[1]), threadCount);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        double recordsPerSecond = uris.size() * 1000000000.0 / Math.max(elapsedNanos, 1);
+        System.out.println("records=" + uris.size() + ", failed=" + failedCount + ", threads="
+                + threadCount + ", elapsed=" + elapsedNanos / 1000000L + "ms, records/sec="
+                + (long)recordsPerSecond);
+    }
+
+    /**
+     * URIの一覧を読み込みます。空の行は無視します
+     * 
+     * @param file UTF-8 で1行に1つのURIを書いたファイル
+     * @return URIの一覧
+     * @throws IOException
+     */
+    public static List<String> readUris(File file) throws IOException {
+        List<String> uris = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0)
+                    uris.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return uris;
+    }
+
+    /**
+     * URIの一覧を {@link BlockImageFile} の形式で書き出します
+     * 
+     * @param uris URIの一覧
+     * @param output 出力ファイル
+     * @param threadCount 変換するスレッド数
+     * @return タグに収まらず作成できなかったレコード数
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static int encode(List<String> uris, File output, int threadCount)
+            throws IOException, InterruptedException {
+        if (uris == null || output == null || threadCount <= 0)
+            throw new IllegalArgumentException();
+
+        int size = uris.size();
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            file.setLength(BlockImageFile.getFileSize(size));
+            FileChannel channel = file.getChannel();
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    BlockImageFile.HEADER_SIZE);
+            header.putInt(BlockImageFile.MAGIC);
+            header.putInt(BlockImageFile.VERSION);
+            header.putInt(size);
+            header.putInt(BlockImage.SIZE);
+            header.putLong(BlockImageFile.getIndexOffset(0));
+            header.putLong(BlockImageFile.getImageOffset(size, 0));
+            header.force();
+
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int from = 0; from < size; from += CHUNK_SIZE) {
+                int to = Math.min(from + CHUNK_SIZE, size);
+                futures.add(executor.submit(new EncodeTask(channel, uris, from, to)));
+            }
+
+            int failedCount = 0;
+            for (Future<Integer> future : futures) {
+                failedCount += future.get();
+            }
+            return failedCount;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * 一覧の一部を変換して、ファイルの対応する範囲に書き込むタスク
+     */
+    private static class EncodeTask implements Callable<Integer> {
+
+        private FileChannel mChannel;
+
+        private List<String> mUris;
+
+        private int mFrom;
+
+        private int mTo;
+
+        EncodeTask(FileChannel channel, List<String> uris, int from, int to) {
+            mChannel = channel;
+            mUris = uris;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            int size = mUris.size();
+            int count = mTo - mFrom;
+            MappedByteBuffer index = mChannel.map(FileChannel.MapMode.READ_WRITE,
+                    BlockImageFile.getIndexOffset(mFrom), (long)count
+                            * BlockImageFile.INDEX_ENTRY_SIZE);
+            MappedByteBuffer images = mChannel.map(FileChannel.MapMode.READ_WRITE,
+                    BlockImageFile.getImageOffset(size, mFrom), (long)count * BlockImage.SIZE);
+
+            BlockImage image = new BlockImage();
+            byte[] buffer = new byte[UriRecordEncoder.MAX_NDEF_LENGTH];
+            byte[] bytes = new byte[BlockImage.SIZE];
+            int failedCount = 0;
+            for (int i = mFrom; i < mTo; i++) {
+                try {
+                    UriRecordEncoder.encode(mUris.get(i), image, buffer);
+                } catch (SizeOverflowException e) {
+                    index.putLong(BlockImageFile.NO_IMAGE);
+                    images.position(images.position() + BlockImage.SIZE);
+                    failedCount++;
+                    continue;
+                }
+                image.copyTo(bytes, 0);
+                index.putLong(BlockImageFile.getImageOffset(size, i));
+                images.put(bytes);
+            }
+            index.force();
+            images.force();
+            return failedCount;
+        }
+    }
+}
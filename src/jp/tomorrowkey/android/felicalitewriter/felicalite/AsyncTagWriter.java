@@ -0,0 +1,399 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.OnBlockWrittenListener;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.StatusFlagException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.VerifyException;
+import jp.tomorrowkey.android.felicalitewriter.journal.JournalEntry;
+import jp.tomorrowkey.android.felicalitewriter.journal.WriteJournal;
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+
+/**
+ * UIスレッド以外で {@link WritePlan} をタグに書き込むクラス<br>
+ * 書き込みは指定した Executor で実行し、進捗と結果は別の Executor でコールバックに通知します。<br>
+ * 同じIDmのタグへの書き込みは、受け付けた順に1つずつ実行します。
+ * タグが離れて書き込みに失敗した場合は、同じIDmの実行待ちの書き込みをキャンセルします
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class AsyncTagWriter {
+
+    /**
+     * 書き込みの進捗と結果を受け取るコールバック
+     * 
+     * @author tomorrowkey@gmail.com
+     */
+    public interface Callback {
+        /**
+         * ブロックを1つ書き込むたびに呼び出されます
+         * 
+         * @param idm IDm
+         * @param writtenCount これまでに書き込んだブロック数
+         * @param totalCount 書き込むブロックの総数
+         */
+        public void onProgress(byte[] idm, int writtenCount, int totalCount);
+
+        /**
+         * 書き込みが完了したときに呼び出されます
+         * 
+         * @param idm IDm
+         * @param result 書き込み結果
+         */
+        public void onComplete(byte[] idm, WriteResult result);
+
+        /**
+         * 書き込みに失敗した、またはキャンセルされたときに呼び出されます
+         * 
+         * @param idm IDm
+         * @param e 原因。キャンセルされた場合は CancellationException
+         */
+        public void onError(byte[] idm, Exception e);
+    }
+
+    /**
+     * 書き込みを実行する Executor
+     */
+    private Executor mExecutor;
+
+    /**
+     * コールバックを呼び出す Executor
+     */
+    private Executor mCallbackExecutor;
+
+    /**
+     * IDmごとの書き込み待ちのタスク<br>
+     * 先頭のタスクが実行中です
+     */
+    private Map<Long, ArrayDeque<WriteTask>> mQueues = new HashMap<Long, ArrayDeque<WriteTask>>();
+
+    /**
+     * 書き込んだタグの記録先。null の場合は記録しません
+     */
+    private volatile WriteJournal mJournal;
+
+    /**
+     * @param executor 書き込みを実行する Executor
+     * @param callbackExecutor コールバックを呼び出す Executor。UIスレッドで実行するものを渡してください
+     */
+    public AsyncTagWriter(Executor executor, Executor callbackExecutor) {
+        if (executor == null || callbackExecutor == null)
+            throw new IllegalArgumentException();
+
+        mExecutor = executor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * 書き込みの結果を記録するジャーナルを設定します
+     * 
+     * @param journal ジャーナル。null の場合は記録しません
+     */
+    public void setJournal(WriteJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * NDEFフラグを立てたあとに、書き込みプランを書き込みます
+     * 
+     * @param tag タグ
+     * @param idm IDm
+     * @param writePlan 書き込みプラン
+     * @param callback コールバック。null の場合は通知しません
+     * @return 書き込み結果を受け取る Future。cancel(true) で書き込みを中断できます
+     */
+    public Future<WriteResult> write(FeliCaLiteTag tag, byte[] idm, WritePlan writePlan,
+            Callback callback) {
+        if (tag == null || idm == null || idm.length == 0 || writePlan == null)
+            throw new IllegalArgumentException();
+
+        byte[] idmCopy = idm.clone();
+        WriteTask task = new WriteTask(createWriteCallable(tag, idmCopy, writePlan, callback),
+                idmCopy, callback);
+
+        boolean isFirst;
+        synchronized (mQueues) {
+            ArrayDeque<WriteTask> queue = mQueues.get(task.mKey);
+            if (queue == null) {
+                queue = new ArrayDeque<WriteTask>();
+                mQueues.put(task.mKey, queue);
+            }
+            queue.add(task);
+            isFirst = queue.size() == 1;
+        }
+
+        if (isFirst)
+            mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * NDEFフラグを立ててから書き込みプランを書き込む処理を作成します
+     */
+    private Callable<WriteResult> createWriteCallable(final FeliCaLiteTag tag, final byte[] idm,
+            final WritePlan writePlan, final Callback callback) {
+        return new Callable<WriteResult>() {
+            @Override
+            public WriteResult call() throws Exception {
+                OnBlockWrittenListener listener = null;
+                if (callback != null) {
+                    listener = new OnBlockWrittenListener() {
+                        @Override
+                        public void onBlockWritten(int blockNumber, final int writtenCount,
+                                final int totalCount) {
+                            mCallbackExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onProgress(idm, writtenCount, totalCount);
+                                }
+                            });
+                        }
+                    };
+                }
+
+                tag.connect();
+                try {
+                    tag.applyNdefFlag(idm, true);
+                    WriteResult result = tag.write(idm, writePlan, listener);
+                    appendJournal(idm, writePlan, result, null);
+                    return result;
+                } catch (Exception e) {
+                    appendJournal(idm, writePlan, null, e);
+                    // タグが離れたので、同じタグへの続きの書き込みもタイムアウトを待つだけになる
+                    if (FeliCaLiteTag.isTagLost(e))
+                        cancelPending(idm);
+                    throw e;
+                } finally {
+                    tag.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * 書き込みの結果をジャーナルに積みます。ファイルへの書き込みは待ちません
+     * 
+     * @param result 書き込み結果。失敗した場合は null
+     * @param e 失敗した原因。成功した場合は null
+     */
+    private void appendJournal(byte[] idm, WritePlan writePlan, WriteResult result, Exception e) {
+        WriteJournal journal = mJournal;
+        if (journal == null)
+            return;
+
+        int journalResult;
+        int detail = 0;
+        if (result != null) {
+            journalResult = result.getWrittenBlockCount() > 0 ? JournalEntry.RESULT_WRITTEN
+                    : JournalEntry.RESULT_SKIPPED;
+            detail = result.getWrittenBlockCount();
+        } else if (e instanceof StatusFlagException) {
+            StatusFlagException statusFlagException = (StatusFlagException)e;
+            journalResult = JournalEntry.RESULT_STATUS_FLAG;
+            detail = (statusFlagException.getBlockNumber() << 16)
+                    | (statusFlagException.getStatusFlag1() << 8)
+                    | statusFlagException.getStatusFlag2();
+        } else if (e instanceof VerifyException) {
+            journalResult = JournalEntry.RESULT_VERIFY_FAILED;
+            detail = ((VerifyException)e).getMismatchedBlocks();
+        } else if (e instanceof InterruptedIOException) {
+            journalResult = JournalEntry.RESULT_CANCELLED;
+        } else if (FeliCaLiteTag.isTagLost(e)) {
+            journalResult = JournalEntry.RESULT_TAG_LOST;
+        } else {
+            journalResult = JournalEntry.RESULT_ERROR;
+        }
+
+        try {
+            journal.append(idm, writePlan.getContentHash(), journalResult, detail);
+        } catch (IOException journalError) {
+            // ジャーナルのエラーで書き込みを失敗にはしない。エラーはジャーナルを閉じるときに通知されます
+        }
+    }
+
+    /**
+     * 指定したIDmのタグへの、実行中と実行待ちの書き込みをすべてキャンセルします<br>
+     * 実行中の書き込みのキャンセルは、書き込みが中断してからコールバックに通知します。
+     * タグが離れて書き込みに失敗した場合の実行待ちの書き込みは、呼び出さなくてもキャンセルします
+     * 
+     * @param idm IDm
+     */
+    public void cancel(byte[] idm) {
+        WriteTask[] tasks;
+        synchronized (mQueues) {
+            ArrayDeque<WriteTask> queue = mQueues.get(ByteUtil.toLong(idm));
+            if (queue == null)
+                return;
+            tasks = queue.toArray(new WriteTask[queue.size()]);
+        }
+
+        for (WriteTask task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * 指定したIDmのタグへの、実行待ちの書き込みをキャンセルします。実行中の書き込みはそのままです
+     * 
+     * @param idm IDm
+     */
+    private void cancelPending(byte[] idm) {
+        WriteTask[] tasks;
+        synchronized (mQueues) {
+            ArrayDeque<WriteTask> queue = mQueues.get(ByteUtil.toLong(idm));
+            if (queue == null || queue.size() <= 1)
+                return;
+            tasks = queue.toArray(new WriteTask[queue.size()]);
+        }
+
+        // 先頭は実行中のタスク
+        for (int i = 1; i < tasks.length; i++) {
+            tasks[i].cancel(false);
+        }
+    }
+
+    /**
+     * @return 実行中と実行待ちの書き込みがあれば true
+     */
+    public boolean isBusy() {
+        synchronized (mQueues) {
+            return !mQueues.isEmpty();
+        }
+    }
+
+    /**
+     * 実行が終わったタスクを取り除き、同じIDmの次のタスクを実行します
+     * 
+     * @param task 実行が終わったタスク
+     */
+    private void onTaskFinished(WriteTask task) {
+        WriteTask next;
+        synchronized (mQueues) {
+            ArrayDeque<WriteTask> queue = mQueues.get(task.mKey);
+            queue.remove(task);
+            next = queue.peek();
+            if (next == null)
+                mQueues.remove(task.mKey);
+        }
+
+        if (next != null)
+            mExecutor.execute(next);
+    }
+
+    private class WriteTask extends FutureTask<WriteResult> {
+
+        private Long mKey;
+
+        private byte[] mIdm;
+
+        private Callback mCallback;
+
+        /**
+         * 書き込みを実行中であれば true。this で保護します
+         */
+        private boolean mRunning;
+
+        /**
+         * 結果を通知済みであれば true。this で保護します
+         */
+        private boolean mReported;
+
+        public WriteTask(Callable<WriteResult> callable, byte[] idm, Callback callback) {
+            super(callable);
+
+            mKey = ByteUtil.toLong(idm);
+            mIdm = idm;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mRunning = true;
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (this) {
+                    mRunning = false;
+                }
+                // 実行中にキャンセルされた場合は、書き込みが中断してからここで通知する
+                report();
+                // キャンセルされても、実行中の書き込みが終わるまで次の書き込みは始めない
+                onTaskFinished(this);
+            }
+        }
+
+        /**
+         * 実行中にキャンセルされると、書き込みが中断する前に呼び出されるので、
+         * 実行中の場合は {@link #run()} が終わるまで通知を遅らせます
+         */
+        @Override
+        protected void done() {
+            synchronized (this) {
+                if (mRunning)
+                    return;
+            }
+            report();
+        }
+
+        /**
+         * 結果をコールバックに一度だけ通知します
+         */
+        private void report() {
+            synchronized (this) {
+                if (mReported || !isDone())
+                    return;
+                mReported = true;
+            }
+            if (mCallback == null)
+                return;
+
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCallback.onComplete(mIdm, get());
+                    } catch (CancellationException e) {
+                        mCallback.onError(mIdm, e);
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            mCallback.onError(mIdm, (Exception)cause);
+                        } else {
+                            mCallback.onError(mIdm, e);
+                        }
+                    } catch (InterruptedException e) {
+                        mCallback.onError(mIdm, e);
+                    }
+                }
+            });
+        }
+    }
+}
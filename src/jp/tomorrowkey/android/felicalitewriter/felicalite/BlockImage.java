@@ -0,0 +1,421 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.util.Arrays;
+
+/**
+ * NDEFで使用する14ブロック（属性情報ブロック + データブロック13個）の内容<br>
+ * 224バイトの1つの配列に全ブロックを並べて保持し、ブロックは配列内の位置で参照します。<br>
+ * 1回のメモリ確保で1枚分の内容になるので、比較やキャッシュ、再利用が簡単にできます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BlockImage {
+
+    /**
+     * 1ブロックのバイト数
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * ブロック数（属性情報ブロック + データブロック）
+     */
+    public static final int BLOCK_COUNT = 14;
+
+    /**
+     * データブロックの最大数
+     */
+    public static final int MAX_DATA_BLOCK_COUNT = BLOCK_COUNT - 1;
+
+    /**
+     * 全ブロックのバイト数
+     */
+    public static final int SIZE = BLOCK_SIZE * BLOCK_COUNT;
+
+    /**
+     * 書き込みが完了していることを示す WriteF
+     */
+    public static final byte WRITE_F_OFF = (byte)0x00;
+
+    /**
+     * 書き込み中であることを示す WriteF
+     */
+    public static final byte WRITE_F_ON = (byte)0x0f;
+
+    private static final int WRITE_F_OFFSET = 9;
+
+    private static final int LN_OFFSET = 11;
+
+    private static final int CHECKSUM_OFFSET = 14;
+
+    /**
+     * 全ブロックの内容
+     */
+    private byte[] mData;
+
+    /**
+     * ハッシュ値のキャッシュ
+     */
+    private int mHashCode;
+
+    /**
+     * mHashCode が有効かどうか
+     */
+    private boolean mHashCodeValid;
+
+    /**
+     * すべて0のイメージを作成します
+     */
+    public BlockImage() {
+        mData = new byte[SIZE];
+    }
+
+    private BlockImage(byte[] data) {
+        mData = data;
+    }
+
+    /**
+     * NDEFメッセージのバイト列から、FeliCa Lite 用の属性情報ブロックを含むイメージを作成します
+     * 
+     * @param ndefMessageBytes NDEFメッセージのバイト列
+     * @return イメージ
+     * @throws SizeOverflowException NDEFメッセージが13ブロックに収まらない場合に発生します
+     */
+    public static BlockImage fromNdefMessage(byte[] ndefMessageBytes)
+            throws SizeOverflowException {
+        return fromNdefMessage(ndefMessageBytes, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * NDEFメッセージのバイト列から、タグの種類に合わせた属性情報ブロックを含むイメージを作成します
+     * 
+     * @param ndefMessageBytes NDEFメッセージのバイト列
+     * @param profile 書き込むタグの種類
+     * @return イメージ
+     * @throws SizeOverflowException NDEFメッセージがタグのデータブロックに収まらない場合に発生します
+     */
+    public static BlockImage fromNdefMessage(byte[] ndefMessageBytes, TagProfile profile)
+            throws SizeOverflowException {
+        if (ndefMessageBytes == null)
+            throw new IllegalArgumentException();
+
+        BlockImage image = new BlockImage();
+        image.setNdefMessage(ndefMessageBytes, 0, ndefMessageBytes.length, profile);
+        return image;
+    }
+
+    /**
+     * NDEFメッセージをデータブロックに書き込み、FeliCa Lite 用の属性情報ブロックを作り直します<br>
+     * メッセージの後ろの使用しない領域は0で埋めます
+     * 
+     * @param ndefMessageBytes NDEFメッセージを含むバッファ
+     * @param offset NDEFメッセージの開始位置
+     * @param length NDEFメッセージの長さ
+     * @throws SizeOverflowException NDEFメッセージが13ブロックに収まらない場合に発生します
+     */
+    public void setNdefMessage(byte[] ndefMessageBytes, int offset, int length)
+            throws SizeOverflowException {
+        setNdefMessage(ndefMessageBytes, offset, length, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * NDEFメッセージをデータブロックに書き込み、タグの種類に合わせて属性情報ブロックを作り直します<br>
+     * メッセージの後ろの使用しない領域は0で埋めます
+     * 
+     * @param ndefMessageBytes NDEFメッセージを含むバッファ
+     * @param offset NDEFメッセージの開始位置
+     * @param length NDEFメッセージの長さ
+     * @param profile 書き込むタグの種類
+     * @throws SizeOverflowException NDEFメッセージがタグのデータブロックに収まらない場合に発生します
+     */
+    public void setNdefMessage(byte[] ndefMessageBytes, int offset, int length,
+            TagProfile profile) throws SizeOverflowException {
+        if (profile == null)
+            throw new IllegalArgumentException();
+
+        int capacity = getCapacity(profile);
+        if (length > capacity)
+            throw new SizeOverflowException(length, capacity);
+
+        System.arraycopy(ndefMessageBytes, offset, mData, BLOCK_SIZE, length);
+        Arrays.fill(mData, BLOCK_SIZE + length, SIZE, (byte)0x00);
+        writeAttribute(length, profile);
+    }
+
+    /**
+     * @param profile タグの種類
+     * @return タグのデータブロックに書き込めるNDEFメッセージの長さ
+     */
+    public static int getCapacity(TagProfile profile) {
+        return Math.min(profile.getDataBlockCount(), MAX_DATA_BLOCK_COUNT) * BLOCK_SIZE;
+    }
+
+    /**
+     * FeliCa Lite 用の属性情報ブロックをその場で書き込みます
+     * 
+     * @param ndefLength NDEFメッセージの長さ
+     */
+    public void writeAttribute(int ndefLength) {
+        writeAttribute(ndefLength, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * タグの種類に合わせた属性情報ブロックをその場で書き込みます
+     * 
+     * @param ndefLength NDEFメッセージの長さ
+     * @param profile 書き込むタグの種類
+     */
+    public void writeAttribute(int ndefLength, TagProfile profile) {
+        byte[] data = mData;
+
+        // Ver
+        data[0] = (byte)0x10;
+
+        // Nbr
+        // Read Without Encrypitonで一度に読めるブロック数を指定します
+        // FeliCa Lite / Lite-S は、一度に4ブロック読み込める
+        data[1] = (byte)profile.getMaxReadBlockCount();
+
+        // Nbw
+        // Write Without Encryptionで一度に書き込めるブロック数を指定します
+        // FeliCa Lite / Lite-S は、一度に1ブロック書き込める
+        data[2] = (byte)profile.getMaxWriteBlockCount();
+
+        // Nmaxb
+        // NDEFとして使用できるブロック数
+        // FeliCa Lite / Lite-S は、データ領域は13ブロックまで
+        int dataBlockCount = profile.getDataBlockCount();
+        data[3] = (byte)((dataBlockCount >>> 8) & 0xff);
+        data[4] = (byte)(dataBlockCount & 0xff);
+
+        // unused
+        data[5] = (byte)0x00;
+        data[6] = (byte)0x00;
+        data[7] = (byte)0x00;
+        data[8] = (byte)0x00;
+
+        // WriteF
+        // 書き込みが完了した状態の0x00。書き込み中の0x0Fは WritePlan が組み立てます
+        data[WRITE_F_OFFSET] = WRITE_F_OFF;
+
+        // RW Flag
+        // Read Writeなので0x01
+        data[10] = (byte)0x01;
+
+        writeLength(ndefLength);
+    }
+
+    /**
+     * 属性情報ブロックのLnとチェックサムだけを書き換えます
+     * 
+     * @param ndefLength NDEFメッセージの長さ
+     */
+    public void writeLength(int ndefLength) {
+        // Ln
+        // NDEFデータの長さを指定します
+        mData[LN_OFFSET] = (byte)((ndefLength >>> 16) & 0xff);
+        mData[LN_OFFSET + 1] = (byte)((ndefLength >>> 8) & 0xff);
+        mData[LN_OFFSET + 2] = (byte)(ndefLength & 0xff);
+
+        writeChecksum();
+    }
+
+    /**
+     * 属性情報ブロックのチェックサムを書き込みます<br>
+     * チェックサムは先頭14バイトの合計です
+     */
+    public void writeChecksum() {
+        writeChecksum(mData, 0);
+        mHashCodeValid = false;
+    }
+
+    /**
+     * 属性情報ブロックのコピーの WriteF を書き換えて、チェックサムを計算し直します
+     * 
+     * @param block 属性情報ブロックを含むバッファ
+     * @param offset バッファ内での属性情報ブロックの開始位置
+     * @param writeF {@link #WRITE_F_ON} または {@link #WRITE_F_OFF}
+     */
+    static void writeWriteFlag(byte[] block, int offset, byte writeF) {
+        block[offset + WRITE_F_OFFSET] = writeF;
+        writeChecksum(block, offset);
+    }
+
+    /**
+     * @param block 属性情報ブロックを含むバッファ
+     * @param offset バッファ内での属性情報ブロックの開始位置
+     * @return WriteF が書き込み中を示していれば true
+     */
+    static boolean isWriting(byte[] block, int offset) {
+        return block[offset + WRITE_F_OFFSET] == WRITE_F_ON;
+    }
+
+    private static void writeChecksum(byte[] block, int offset) {
+        int sum = 0;
+        for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+            sum += block[offset + i] & 0xff;
+        }
+        block[offset + CHECKSUM_OFFSET] = (byte)((sum >>> 8) & 0xff);
+        block[offset + CHECKSUM_OFFSET + 1] = (byte)(sum & 0xff);
+    }
+
+    /**
+     * @return 属性情報ブロックのLn
+     */
+    public int getNdefLength() {
+        return ((mData[LN_OFFSET] & 0xff) << 16) | ((mData[LN_OFFSET + 1] & 0xff) << 8)
+                | (mData[LN_OFFSET + 2] & 0xff);
+    }
+
+    /**
+     * @return NDEFメッセージが使用するデータブロック数
+     */
+    public int getUsedDataBlockCount() {
+        return (getNdefLength() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @param blockNumber ブロック番号
+     * @return 配列内でのブロックの開始位置
+     */
+    public static int getBlockOffset(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= BLOCK_COUNT)
+            throw new IndexOutOfBoundsException("block=" + blockNumber);
+        return blockNumber * BLOCK_SIZE;
+    }
+
+    /**
+     * @param offset 位置
+     * @return 指定した位置のバイト
+     */
+    public byte get(int offset) {
+        return mData[offset];
+    }
+
+    /**
+     * 指定した位置に1バイト書き込みます
+     * 
+     * @param offset 書き込み先の位置
+     * @param value 書き込むバイト
+     */
+    public void put(int offset, byte value) {
+        mData[offset] = value;
+        mHashCodeValid = false;
+    }
+
+    /**
+     * 指定した位置にバイト列を書き込みます
+     * 
+     * @param offset 書き込み先の位置
+     * @param src 書き込むバイト列
+     * @param srcOffset 書き込むバイト列の開始位置
+     * @param length 書き込む長さ
+     */
+    public void put(int offset, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, mData, offset, length);
+        mHashCodeValid = false;
+    }
+
+    /**
+     * 指定した範囲を0で埋めます
+     * 
+     * @param offset 開始位置
+     * @param length 長さ
+     */
+    public void clear(int offset, int length) {
+        Arrays.fill(mData, offset, offset + length, (byte)0x00);
+        mHashCodeValid = false;
+    }
+
+    /**
+     * ブロックの内容をコピーします
+     * 
+     * @param blockNumber ブロック番号
+     * @param dst コピー先
+     * @param dstOffset コピー先の開始位置
+     */
+    public void copyBlock(int blockNumber, byte[] dst, int dstOffset) {
+        System.arraycopy(mData, getBlockOffset(blockNumber), dst, dstOffset, BLOCK_SIZE);
+    }
+
+    /**
+     * ブロックの内容が、他のバッファの16バイトと同じかどうかを判定します
+     * 
+     * @param blockNumber ブロック番号
+     * @param other 比較するバッファ
+     * @param otherOffset 比較するバッファの開始位置
+     * @return 同じであれば true
+     */
+    public boolean isSameBlock(int blockNumber, byte[] other, int otherOffset) {
+        int offset = getBlockOffset(blockNumber);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (mData[offset + i] != other[otherOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 全ブロックを1つのバッファにコピーします
+     * 
+     * @param dst コピー先
+     * @param dstOffset コピー先の開始位置
+     */
+    public void copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(mData, 0, dst, dstOffset, SIZE);
+    }
+
+    /**
+     * @return 同じ内容の新しいイメージ
+     */
+    public BlockImage copy() {
+        BlockImage image = new BlockImage(mData.clone());
+        image.mHashCode = mHashCode;
+        image.mHashCodeValid = mHashCodeValid;
+        return image;
+    }
+
+    /**
+     * @return 全ブロックを並べた配列。変更しないでください
+     */
+    byte[] array() {
+        return mData;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof BlockImage))
+            return false;
+
+        BlockImage other = (BlockImage)o;
+        if (hashCode() != other.hashCode())
+            return false;
+        return Arrays.equals(mData, other.mData);
+    }
+
+    @Override
+    public int hashCode() {
+        if (!mHashCodeValid) {
+            mHashCode = Arrays.hashCode(mData);
+            mHashCodeValid = true;
+        }
+        return mHashCode;
+    }
+}
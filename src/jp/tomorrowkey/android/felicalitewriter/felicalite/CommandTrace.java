@@ -0,0 +1,307 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+
+/**
+ * タグとやりとりしたコマンドとレスポンスを、そのままのバイト列で記録するリングバッファ<br>
+ * 領域は作成時にすべて確保しておき、記録するときはロックもメモリ確保も行いません。
+ * 容量を超えた分は古いものから上書きします。
+ * 記録するスレッドは通番のスロットを CAS で確保してから書き込むので、同じスロットに2つのスレッドが同時に書き込むことはありません<br>
+ * 16進表記への変換は {@link #dump(StringBuilder)} を呼び出したときだけ行います
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class CommandTrace {
+
+    /**
+     * 1フレームの最大バイト数。FeliCa のフレームは長さを1バイトで表すので、これを超えません
+     */
+    public static final int MAX_FRAME_LENGTH = 255;
+
+    /**
+     * レスポンスがなかった（例外で終わった）ことを表すレスポンス長
+     */
+    private static final int NO_RESPONSE = -1;
+
+    /**
+     * 書き込み中のスロットを表す通番
+     */
+    private static final long WRITING = -1;
+
+    /**
+     * 記録がないスロットを表す通番
+     */
+    private static final long EMPTY = -2;
+
+    private static final String COMMAND_PREFIX = " > ";
+
+    private static final String RESPONSE_PREFIX = " < ";
+
+    private static final String NO_RESPONSE_TEXT = "!";
+
+    private final int mMask;
+
+    /**
+     * 次に記録する通番
+     */
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * スロットごとの記録の通番。書き込み中は {@link #WRITING}、記録がない場合は {@link #EMPTY}
+     */
+    private final AtomicLongArray mSequences;
+
+    private final long[] mStartNanos;
+
+    private final long[] mElapsedNanos;
+
+    private final int[] mCommandLengths;
+
+    private final int[] mResponseLengths;
+
+    private final byte[] mCommands;
+
+    private final byte[] mResponses;
+
+    /**
+     * @param capacity 保持する往復の数。2の累乗に切り上げます
+     */
+    public CommandTrace(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 16))
+            throw new IllegalArgumentException();
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, EMPTY);
+        }
+        mStartNanos = new long[size];
+        mElapsedNanos = new long[size];
+        mCommandLengths = new int[size];
+        mResponseLengths = new int[size];
+        mCommands = new byte[size * MAX_FRAME_LENGTH];
+        mResponses = new byte[size * MAX_FRAME_LENGTH];
+    }
+
+    /**
+     * @return 保持できる往復の数
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return これまでに記録した往復の数（上書きされたものを含む）
+     */
+    public long getRecordCount() {
+        return mNextSequence.get();
+    }
+
+    /**
+     * コマンドとレスポンスの1往復を記録します<br>
+     * {@link #MAX_FRAME_LENGTH} を超える部分は切り捨てます。
+     * リングを一周追い越して、別のスレッドが同じスロットに書き込み中の場合や、
+     * より新しい往復がすでに記録されている場合は、待たずにこの往復を捨てます
+     * 
+     * @param startNanos コマンドを送った時刻（{@link System#nanoTime()}）
+     * @param elapsedNanos レスポンスが返るまでの時間
+     * @param command コマンドを含むバッファ
+     * @param offset コマンドの開始位置
+     * @param length コマンド長
+     * @param response レスポンス。例外で終わった場合は null
+     */
+    public void record(long startNanos, long elapsedNanos, byte[] command, int offset,
+            int length, byte[] response) {
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int)(sequence & mMask);
+        int base = slot * MAX_FRAME_LENGTH;
+
+        if (!claim(slot, sequence))
+            return;
+
+        int commandLength = Math.min(length, MAX_FRAME_LENGTH);
+        System.arraycopy(command, offset, mCommands, base, commandLength);
+        mCommandLengths[slot] = commandLength;
+
+        if (response != null) {
+            int responseLength = Math.min(response.length, MAX_FRAME_LENGTH);
+            System.arraycopy(response, 0, mResponses, base, responseLength);
+            mResponseLengths[slot] = responseLength;
+        } else {
+            mResponseLengths[slot] = NO_RESPONSE;
+        }
+        mStartNanos[slot] = startNanos;
+        mElapsedNanos[slot] = elapsedNanos;
+
+        mSequences.set(slot, sequence);
+    }
+
+    /**
+     * スロットを書き込み中にして、このスレッドだけが書き込めるようにします
+     * 
+     * @return 確保できた場合は true
+     */
+    private boolean claim(int slot, long sequence) {
+        while (true) {
+            long current = mSequences.get(slot);
+            if (current == WRITING || current >= sequence)
+                return false;
+            if (mSequences.compareAndSet(slot, current, WRITING))
+                return true;
+        }
+    }
+
+    /**
+     * 記録をすべて捨てます。書き込み中の往復は残ります
+     */
+    public void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            long current = mSequences.get(i);
+            if (current != WRITING)
+                mSequences.compareAndSet(i, current, EMPTY);
+        }
+    }
+
+    /**
+     * 保持している往復を古い順に、1往復1行で StringBuilder に追加します<br>
+     * 1行は「通番 開始からの経過時間(us) 往復時間(us) > コマンド < レスポンス」の形式です。
+     * レスポンスがなかった場合は「!」を出力します。
+     * 出力中に上書きされた往復は読み飛ばします
+     * 
+     * @param buffer 追加先
+     * @return 出力した往復の数
+     */
+    public int dump(StringBuilder buffer) {
+        long next = mNextSequence.get();
+        long first = Math.max(0, next - getCapacity());
+
+        byte[] command = new byte[MAX_FRAME_LENGTH];
+        byte[] response = new byte[MAX_FRAME_LENGTH];
+        long baseNanos = 0;
+        boolean hasBase = false;
+        int count = 0;
+        for (long sequence = first; sequence < next; sequence++) {
+            int slot = (int)(sequence & mMask);
+            if (mSequences.get(slot) != sequence)
+                continue;
+
+            long startNanos = mStartNanos[slot];
+            long elapsedNanos = mElapsedNanos[slot];
+            int commandLength = mCommandLengths[slot];
+            int responseLength = mResponseLengths[slot];
+            int base = slot * MAX_FRAME_LENGTH;
+            System.arraycopy(mCommands, base, command, 0, commandLength);
+            if (responseLength > 0)
+                System.arraycopy(mResponses, base, response, 0, responseLength);
+
+            // コピーしている間に上書きされていたら使わない。
+            // volatile の読み込みだけでは、前のコピーが後ろに並べ替えられることを防げないので、
+            // 読み書きを伴う getAndAdd を境界にしてから通番を確かめる
+            if (mSequences.getAndAdd(slot, 0) != sequence)
+                continue;
+
+            if (!hasBase) {
+                baseNanos = startNanos;
+                hasBase = true;
+            }
+            buffer.append(sequence);
+            buffer.append(' ');
+            buffer.append((startNanos - baseNanos) / 1000);
+            buffer.append(' ');
+            buffer.append(elapsedNanos / 1000);
+            buffer.append(COMMAND_PREFIX);
+            ByteUtil.appendHex(buffer, command, 0, commandLength, (char)0);
+            buffer.append(RESPONSE_PREFIX);
+            if (responseLength == NO_RESPONSE) {
+                buffer.append(NO_RESPONSE_TEXT);
+            } else {
+                ByteUtil.appendHex(buffer, response, 0, responseLength, (char)0);
+            }
+            buffer.append('\n');
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * {@link #dump(StringBuilder)} の出力に含まれるコマンドを順に送り直し、
+     * 記録されたレスポンスと比べます<br>
+     * シミュレータに送れば、端末やタグなしで失敗したタッチを再現できます。
+     * 記録でレスポンスがなかったコマンドは送りますが、比べません
+     * 
+     * @param trace {@link #dump(StringBuilder)} の出力
+     * @param transceiver 送り先
+     * @return 記録と異なるレスポンスを返した（または例外で終わった）コマンドの数
+     * @throws IOException 接続できなかった場合
+     */
+    public static int replay(CharSequence trace, Transceiver transceiver) throws IOException {
+        transceiver.connect();
+        try {
+            return replayLines(trace, transceiver);
+        } finally {
+            transceiver.close();
+        }
+    }
+
+    private static int replayLines(CharSequence trace, Transceiver transceiver) {
+        int mismatchCount = 0;
+        int lineStart = 0;
+        int length = trace.length();
+        while (lineStart < length) {
+            int lineEnd = indexOf(trace, '\n', lineStart, length);
+            int commandStart = indexOf(trace, '>', lineStart, lineEnd);
+            int responseStart = indexOf(trace, '<', lineStart, lineEnd);
+            if (commandStart < lineEnd && responseStart < lineEnd) {
+                byte[] command = ByteUtil.parseHex(trace, commandStart + 1, responseStart);
+                byte[] expected = null;
+                if (indexOf(trace, NO_RESPONSE_TEXT.charAt(0), responseStart, lineEnd) == lineEnd)
+                    expected = ByteUtil.parseHex(trace, responseStart + 1, lineEnd);
+
+                byte[] actual;
+                try {
+                    actual = transceiver.transceive(command);
+                } catch (IOException e) {
+                    actual = null;
+                }
+                if (expected != null && !Arrays.equals(expected, actual))
+                    mismatchCount++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return mismatchCount;
+    }
+
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return end;
+    }
+
+}
@@ -21,14 +21,15 @@ import android.nfc.Tag;
 import android.nfc.TagLostException;
 import android.nfc.tech.NfcF;
 
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 
 /**
  * @author tomorrowkey@gmail.com
  */
-public class FeliCaLiteTag {
+public class FeliCaLiteTag implements Closeable {
 
     protected static final String LOG_TAG = FeliCaLiteTag.class.getSimpleName();
 
@@ -38,176 +39,925 @@ public class FeliCaLiteTag {
     private static final byte WRITE_WITHOUT_ENCRYPTION = (byte)0x08;
 
     /**
-     * タグ
+     * 書き込みコマンドのレスポンスコード
      */
-    private NfcF mNfcF;
+    private static final byte WRITE_WITHOUT_ENCRYPTION_RESPONSE = (byte)0x09;
 
     /**
-     * TODO UnsupportTagException が発生するパターンに、FeliCa Lite判定を追加する
+     * 読み込みコマンド
+     */
+    private static final byte READ_WITHOUT_ENCRYPTION = (byte)0x06;
+
+    /**
+     * 読み込みコマンドのレスポンスコード
+     */
+    private static final byte READ_WITHOUT_ENCRYPTION_RESPONSE = (byte)0x07;
+
+    /**
+     * Read Without Encryptionで一度に読み込めるブロック数
+     */
+    public static final int MAX_READ_BLOCK_COUNT = 4;
+
+    /**
+     * RC ブロック
+     */
+    public static final int BLOCK_RC = 0x80;
+
+    /**
+     * ID ブロック
+     */
+    public static final int BLOCK_ID = 0x82;
+
+    /**
+     * D_ID ブロック
+     */
+    public static final int BLOCK_D_ID = 0x83;
+
+    /**
+     * SER_C ブロック
+     */
+    public static final int BLOCK_SER_C = 0x84;
+
+    /**
+     * SYS_C ブロック
+     */
+    public static final int BLOCK_SYS_C = 0x85;
+
+    /**
+     * CKV ブロック
+     */
+    public static final int BLOCK_CKV = 0x86;
+
+    /**
+     * MC ブロック
+     */
+    public static final int BLOCK_MC = 0x88;
+
+    /**
+     * dump で読み込むブロック<br>
+     * S_PAD0〜13と、認証なしで読み込めるシステムブロック
+     */
+    private static final int[] DUMP_BLOCKS = new int[] {
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d,
+            BLOCK_ID, BLOCK_D_ID, BLOCK_SER_C, BLOCK_SYS_C, BLOCK_CKV, BLOCK_MC
+    };
+
+    /**
+     * NDEFフラグを変更するときに読み込むブロック
+     */
+    private static final int[] NDEF_FLAG_BLOCKS = new int[] {
+            BLOCK_MC
+    };
+
+    /**
+     * NDEFで使用するブロック数（属性情報ブロック + データブロック）
+     */
+    private static final int NDEF_BLOCK_COUNT = BlockImage.BLOCK_COUNT;
+
+    /**
+     * 1ブロックのバイト数
+     */
+    private static final int BLOCK_SIZE = BlockImage.BLOCK_SIZE;
+
+    /**
+     * NDEFメッセージの書き込み方法
+     */
+    public enum WriteMode {
+        /**
+         * 属性情報ブロックと、NDEFメッセージが使用するデータブロックだけを書き込みます
+         */
+        USED_BLOCKS,
+
+        /**
+         * 使用していないデータブロックも0で埋めて、全ブロックを書き込みます
+         */
+        ZERO_FILL,
+
+        /**
+         * タグの現在の内容を読み込み、内容が異なるブロックだけを書き込みます<br>
+         * 途中で離れたタグは、チェックポイントではなく次のタッチで読み込んだ内容との差分から再開します
+         * 
+         * @see FeliCaLiteTag#update(byte[], BlockImage)
+         */
+        UPDATE,
+    }
+
+    /**
+     * コマンドの送受信先
+     */
+    private Transceiver mTransceiver;
+
+    /**
+     * connectの入れ子の深さ
+     */
+    private int mConnectDepth;
+
+    /**
+     * 実際にタグへ接続した回数
+     */
+    private int mConnectCount;
+
+    /**
+     * 失敗を記録する操作の入れ子の深さ<br>
+     * 1つの失敗を内側と外側の操作で二重に数えないように、最も外側の操作だけが記録します
+     */
+    private int mOperationDepth;
+
+    /**
+     * 書き込みが完了したブロックの記録先。null の場合は記録しません
+     */
+    private WriteCheckpointCache mCheckpointCache;
+
+    /**
+     * 最近書き込んだタグの状態。null の場合は使いません
+     */
+    private TagStateCache mTagStateCache;
+
+    /**
+     * NdefMessage ごとに作成済みの書き込みプラン。null の場合は書き込むたびに作成します
+     */
+    private WritePlanCache mWritePlanCache;
+
+    /**
+     * 通信時間の記録先。null の場合は記録しません
+     */
+    private TagMetrics mMetrics;
+
+    /**
+     * コマンドとレスポンスの記録先。null の場合は記録しません
+     */
+    private CommandTrace mCommandTrace;
+
+    /**
+     * コマンドごとのタイムアウトの決め方。null の場合は送受信先の既定のタイムアウトを使います
+     */
+    private TimeoutPolicy mTimeoutPolicy;
+
+    /**
+     * 送受信先の既定のタイムアウト（ミリ秒）。まだ取得していない場合は -1
+     */
+    private int mDefaultTimeout = -1;
+
+    /**
+     * 送受信先に設定したタイムアウト（ミリ秒）。設定していない場合は -1
+     */
+    private int mAppliedTimeout = -1;
+
+    /**
+     * 書き込んだあとに読み戻して確かめるかどうか
+     */
+    private boolean mVerifyEnabled;
+
+    /**
+     * タグの種類
+     */
+    private final TagProfile mProfile;
+
+    /**
+     * 検出時に取得済みの PMm とシステムコードからタグの種類を判定します<br>
+     * 判定にタグとの通信は使いません
      * 
      * @param tag
-     * @throws UnsupportTagException FeliCa系のタグでない場合に発生します
+     * @throws UnsupportTagException FeliCa Lite / Lite-S でない場合に発生します
      */
     public FeliCaLiteTag(Tag tag) throws UnsupportTagException {
         if (tag == null)
             throw new IllegalArgumentException();
 
-        mNfcF = NfcF.get(tag);
+        NfcF nfcF = NfcF.get(tag);
+
+        if (nfcF == null)
+            throw new UnsupportTagException("not NfcF");
+
+        TagProfile profile = TagProfile.classify(nfcF.getManufacturer(), nfcF.getSystemCode());
+        if (profile == null)
+            throw new UnsupportTagException("not FeliCa Lite");
+
+        mTransceiver = new NfcFTransceiver(nfcF);
+        mProfile = profile;
+    }
+
+    /**
+     * NfcF 以外の送受信先を使います<br>
+     * テスト用の送受信先を渡すと、端末やタグがなくてもコマンドを実行できます
+     * 
+     * @param transceiver 送受信先
+     */
+    public FeliCaLiteTag(Transceiver transceiver) {
+        this(transceiver, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * NfcF 以外の送受信先を、種類を指定して使います
+     * 
+     * @param transceiver 送受信先
+     * @param profile タグの種類
+     */
+    public FeliCaLiteTag(Transceiver transceiver, TagProfile profile) {
+        if (transceiver == null)
+            throw new IllegalArgumentException();
+        if (profile == null)
+            throw new IllegalArgumentException();
+
+        mTransceiver = transceiver;
+        mProfile = profile;
+    }
+
+    /**
+     * @return タグの種類
+     */
+    public TagProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * タグに接続します<br>
+     * close を呼ぶまでに発行したコマンドはすべて同じ接続で実行されます<br>
+     * 入れ子で呼び出した場合は、最も外側の close で切断されます
+     * 
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public void connect() throws TagLostException, IOException {
+        if (mConnectDepth == 0) {
+            TagMetrics metrics = mMetrics;
+            long startNanos = metrics != null ? System.nanoTime() : 0;
+            mTransceiver.connect();
+            if (metrics != null)
+                metrics.getConnectLatency().recordSince(startNanos);
+            mConnectCount++;
+        }
+        mConnectDepth++;
+    }
+
+    /**
+     * connect で開始した接続を終了します
+     */
+    @Override
+    public void close() {
+        if (mConnectDepth == 0)
+            return;
+
+        mConnectDepth--;
+        if (mConnectDepth == 0) {
+            // NfcF は切断するとタイムアウトが既定の値に戻る
+            mAppliedTimeout = -1;
+            try {
+                mTransceiver.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return 接続中であれば true
+     */
+    public boolean isConnected() {
+        return mConnectDepth > 0;
+    }
+
+    /**
+     * @return このインスタンスで実際にタグへ接続した回数
+     */
+    public int getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * 書き込みが完了したブロックの記録先を設定します<br>
+     * 設定すると、途中でタグが離れた書き込みを、同じタグの次のタッチで続きから再開します
+     * 
+     * @param checkpointCache 記録先。null の場合は記録しません
+     */
+    public void setCheckpointCache(WriteCheckpointCache checkpointCache) {
+        mCheckpointCache = checkpointCache;
+    }
+
+    /**
+     * 最近書き込んだタグの状態の記録先を設定します<br>
+     * 設定すると、MC がすでにNDEF化されている場合や、同じ内容をすでに書き込んでいる場合に書き込みを省略します
+     * 
+     * @param tagStateCache 記録先。null の場合は使いません
+     */
+    public void setTagStateCache(TagStateCache tagStateCache) {
+        mTagStateCache = tagStateCache;
+    }
+
+    /**
+     * {@link #writeNdefMessage(byte[], NdefMessage, WriteMode)} で使う書き込みプランの保持先を設定します<br>
+     * 設定すると、同じ NdefMessage を書き込む2回目以降はブロックへの割り当てを省略します
+     * 
+     * @param writePlanCache 保持先。null の場合は書き込むたびに作成します
+     */
+    public void setWritePlanCache(WritePlanCache writePlanCache) {
+        mWritePlanCache = writePlanCache;
+    }
+
+    /**
+     * コマンドの往復時間や失敗の回数の記録先を設定します
+     * 
+     * @param metrics 記録先。null の場合は記録しません
+     */
+    public void setMetrics(TagMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 実行したコマンドとレスポンスの記録先を設定します
+     * 
+     * @param commandTrace 記録先。null の場合は記録しません
+     */
+    public void setCommandTrace(CommandTrace commandTrace) {
+        mCommandTrace = commandTrace;
+    }
 
-        if (mNfcF == null)
-            throw new UnsupportTagException();
+    /**
+     * コマンドごとのタイムアウトの決め方を設定します<br>
+     * 設定すると、往復時間から求めたタイムアウトをコマンドの種類ごとに送受信先へ設定します
+     * 
+     * @param timeoutPolicy タイムアウトの決め方。null の場合は送受信先の既定のタイムアウトを使います
+     */
+    public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+        mTimeoutPolicy = timeoutPolicy;
+    }
+
+    /**
+     * 書き込んだあとに、書き込んだブロックを読み戻して確かめるかどうかを設定します<br>
+     * 4ブロックずつまとめて読み込むので、通常のURIなら1往復の追加で確かめられます
+     * 
+     * @param verifyEnabled 確かめる場合は true
+     * @see #verify(byte[], WritePlan)
+     */
+    public void setVerifyEnabled(boolean verifyEnabled) {
+        mVerifyEnabled = verifyEnabled;
+    }
+
+    /**
+     * コマンドのタイムアウトを設定します
+     * 
+     * @param timeout タイムアウト（ミリ秒）
+     */
+    public void setTimeout(int timeout) {
+        mTransceiver.setTimeout(timeout);
+        mDefaultTimeout = timeout;
+        mAppliedTimeout = timeout;
+    }
+
+    /**
+     * @return コマンドのタイムアウト（ミリ秒）
+     */
+    public int getTimeout() {
+        return mTransceiver.getTimeout();
     }
 
     /**
      * SYS_OPのNDEFフラグを変更します。<br>
-     * 大部分にマジックナンバーを使っているため0次発行の場合のみで動くという制限があります <br>
-     * FIXME SYS_OP 以外はタグから現在の値を取得してその値を使うようにしないと書き込みエラーが発生する場合がある
+     * MC を読み込んで SYS_OP だけを書き換えるので、MC_SP や RF_PRM などはタグの値のまま残ります。<br>
+     * すでに指定した状態になっている場合は書き込みません
      * 
      * @param isNdef true にした場合NDEF化される。false にした場合NDEFではなくなる。
+     * @throws StatusFlagException タグが書き込みを拒否した場合に発生します
      * @throws IOException
      * @throws TagLostException
      */
     public void applyNdefFlag(byte[] idm, boolean isNdef) throws TagLostException, IOException {
-        // @formatter:off
-        byte[] data = new byte[] {
-                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0x07, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
-            };
-        // @formatter:on
-        data[3] = isNdef ? (byte)0x01 : (byte)0;
+        TagStateCache tagStateCache = mTagStateCache;
+        if (tagStateCache != null && tagStateCache.isNdefFlagApplied(idm, isNdef))
+            return;
+
+        TagMetrics metrics = mMetrics;
+        long startNanos = metrics != null ? System.nanoTime() : 0;
+        mOperationDepth++;
+        try {
+            // MC の読み込みと書き込みを1回の接続で行う
+            connect();
+            writeNdefFlag(idm, isNdef);
+        } catch (IOException e) {
+            recordFailure(metrics, e);
+            throw e;
+        } finally {
+            mOperationDepth--;
+            close();
+            if (metrics != null)
+                metrics.getNdefFlagLatency().recordSince(startNanos);
+        }
+
+        if (tagStateCache != null)
+            tagStateCache.putNdefFlag(idm, isNdef);
+    }
 
-        // FIXME レスポンスを握りつぶしているので、どうにかする
-        writeWithoutEncryption(idm, 0x88, data);
+    private void writeNdefFlag(byte[] idm, boolean isNdef) throws TagLostException, IOException {
+        SystemBlocks systemBlocks = readSystemBlocks(idm, NDEF_FLAG_BLOCKS);
+        systemBlocks.setSysOp(isNdef ? SystemBlocks.SYS_OP_NDEF : 0);
+        writeSystemBlocks(idm, systemBlocks);
     }
 
     /**
-     * NdefMessageを書き込みます
+     * システムブロックをまとめて読み込みます<br>
+     * 4ブロックまでなら1回の Read Without Encryption で読み込みます。
+     * RC は読み込めないので指定できません
+     * 
+     * @param idm IDm
+     * @param blockNumbers システムブロックのブロック番号
+     * @return 読み込んだシステムブロック
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public SystemBlocks readSystemBlocks(byte[] idm, int[] blockNumbers) throws TagLostException,
+            IOException {
+        byte[] data = readWithoutEncryption(idm, blockNumbers);
+        return new SystemBlocks(blockNumbers, data);
+    }
+
+    /**
+     * 読み込んだときから内容が変わったシステムブロックだけを書き込みます<br>
+     * 変わったブロックがない場合は、タグと通信しません
+     * 
+     * @param idm IDm
+     * @param systemBlocks 書き込むシステムブロック
+     * @return 書き込んだブロック数
+     * @throws StatusFlagException タグが書き込みを拒否した場合に発生します
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public int writeSystemBlocks(byte[] idm, SystemBlocks systemBlocks) throws TagLostException,
+            IOException {
+        if (systemBlocks == null)
+            throw new IllegalArgumentException();
+
+        int[] blockNumbers = systemBlocks.getModifiedBlockNumbers();
+        if (blockNumbers.length == 0)
+            return 0;
+
+        try {
+            connect();
+            for (int blockNumber : blockNumbers) {
+                writeWithoutEncryption(idm, blockNumber, systemBlocks.getBlock(blockNumber));
+                systemBlocks.markWritten(blockNumber);
+            }
+        } finally {
+            close();
+        }
+        return blockNumbers.length;
+    }
+
+    /**
+     * NdefMessageを書き込みます<br>
+     * NDEFメッセージが使用するブロックだけを書き込みます
      * 
      * @param idm IDm
      * @param ndefMessage NDEF
+     * @return 書き込み結果
      * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
      * @throws TagLostException
      * @throws IOException
+     * @see #writeNdefMessage(byte[], NdefMessage, WriteMode)
      */
-    public void writeNdefMessage(byte[] idm, NdefMessage ndefMessage) throws SizeOverflowException,
-            TagLostException, IOException {
+    public WriteResult writeNdefMessage(byte[] idm, NdefMessage ndefMessage)
+            throws SizeOverflowException, TagLostException, IOException {
+        return writeNdefMessage(idm, ndefMessage, WriteMode.USED_BLOCKS);
+    }
+
+    /**
+     * NdefMessageを書き込みます<br>
+     * Type 3 Tag の手順どおり、WriteF を0x0Fにした属性情報ブロック、データブロック、
+     * WriteF を0x00に戻した属性情報ブロックの順に書き込みます。
+     * 途中でタグが離れても、読み取り側は書き込み中のNDEFとして扱います<br>
+     * {@link WriteMode#UPDATE} の場合は、書き込む前に使用するブロックを4ブロックずつまとめて読み込みます
+     * 
+     * @param idm IDm
+     * @param ndefMessage NDEF
+     * @param writeMode 書き込み方法
+     * @return 書き込み結果
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public WriteResult writeNdefMessage(byte[] idm, NdefMessage ndefMessage, WriteMode writeMode)
+            throws SizeOverflowException, TagLostException, IOException {
         if (idm == null || idm.length == 0)
             throw new IllegalArgumentException();
         if (ndefMessage == null)
             throw new IllegalArgumentException();
+        if (writeMode == null)
+            throw new IllegalArgumentException();
 
-        byte[][] datas = mappingBlock(ndefMessage);
+        WritePlanCache writePlanCache = mWritePlanCache;
+        if (writeMode != WriteMode.UPDATE) {
+            WritePlan writePlan;
+            if (writePlanCache != null) {
+                writePlan = writePlanCache.getWritePlan(ndefMessage, writeMode, mProfile);
+            } else {
+                writePlan = createWritePlan(mappingBlock(ndefMessage, mProfile), writeMode,
+                        mProfile);
+            }
+            return write(idm, writePlan);
+        }
 
-        for (int blockNumber = 0; blockNumber <= 13; blockNumber++) {
-            // FIXME レスポンスを握りつぶしているので、どうにかする
-            writeWithoutEncryption(idm, blockNumber, datas[blockNumber]);
+        BlockImage image;
+        if (writePlanCache != null) {
+            image = writePlanCache.getBlockImage(ndefMessage, mProfile);
+        } else {
+            image = mappingBlock(ndefMessage, mProfile);
         }
+        return update(idm, image);
     }
 
     /**
-     * NdefMessageからFeliCa Liteの各ブロックにマッピングします
+     * タグの現在の内容を4ブロックずつまとめて読み込み、内容が異なるブロックだけを書き込みます<br>
+     * 書き込むたびにタグの内容との差分からプランを作り直すので、{@link WriteCheckpointCache}
+     * の記録は使いません。途中でタグが離れた場合は、次のタッチで読み込んだ内容との差分として
+     * 残りのブロックだけを書き込みます
      * 
-     * @param ndefMessage
-     * @return
-     * @throws SizeOverflowException
+     * @param idm IDm
+     * @param image 書き込む内容
+     * @return 書き込み結果。読み込んだブロック数を含みます
+     * @throws TagLostException
      * @throws IOException
+     * @see WriteMode#UPDATE
      */
-    private byte[][] mappingBlock(NdefMessage ndefMessage) throws SizeOverflowException,
-            IOException {
-        byte[] ndefMessageBytes = ndefMessage.toByteArray();
-        int ndefMessageBytesLength = ndefMessageBytes.length;
-        int blockCount = (int)Math.ceil(ndefMessageBytesLength / 16.0);
-        if (blockCount > 13)
-            throw new SizeOverflowException(ndefMessageBytesLength, 16 * 13);
-
-        byte[][] datas = new byte[14][16];
-        datas[0] = createNdefHeader(ndefMessageBytesLength);
+    public WriteResult update(byte[] idm, BlockImage image) throws TagLostException, IOException {
+        if (idm == null || idm.length == 0)
+            throw new IllegalArgumentException();
+        if (image == null)
+            throw new IllegalArgumentException();
 
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(ndefMessageBytes);
+        int lastBlockNumber = image.getUsedDataBlockCount();
+        checkCapacity(lastBlockNumber, mProfile);
+        int readBlockCount = lastBlockNumber + 1;
+        WriteResult result;
+        connect();
         try {
-            inputStream = new ByteArrayInputStream(ndefMessageBytes);
-            int readLength;
-            for (int i = 1; i < datas.length; i++) {
-                readLength = inputStream.read(datas[i]);
-                if (readLength == -1)
-                    break;
+            int[] blockNumbers = new int[readBlockCount];
+            for (int i = 0; i < readBlockCount; i++) {
+                blockNumbers[i] = i;
             }
+            byte[] current = readWithoutEncryption(idm, blockNumbers);
+
+            // 差分のプランは毎回作り直すので、チェックポイントに記録しても再開には使えない
+            WritePlan writePlan = createWritePlan(image, lastBlockNumber, current);
+            result = write(idm, writePlan, null, null);
         } finally {
-            try {
-                if (inputStream != null)
-                    inputStream.close();
-            } catch (IOException e) {
-                // ignore
+            close();
+        }
+
+        return new WriteResult(result.getWrittenBlockCount(), result.getSkippedBlockCount(),
+                readBlockCount, result.getVerifiedBlockCount());
+    }
+
+    /**
+     * NdefMessageを FeliCa Lite に書き込むための {@link WritePlan} をあらかじめ作成します<br>
+     * タグの内容によって書き込むブロックが変わる {@link WriteMode#UPDATE} には使えません
+     * 
+     * @param ndefMessage NDEF
+     * @param writeMode 書き込み方法
+     * @return 書き込みプラン
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     * @see #write(byte[], WritePlan)
+     */
+    public static WritePlan createWritePlan(NdefMessage ndefMessage, WriteMode writeMode)
+            throws SizeOverflowException {
+        return createWritePlan(ndefMessage, writeMode, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * NdefMessageを指定した種類のタグに書き込むための {@link WritePlan} をあらかじめ作成します<br>
+     * 属性情報ブロックの Nbr、Nbw、Nmaxb はタグの種類の値になります
+     * 
+     * @param ndefMessage NDEF
+     * @param writeMode 書き込み方法。{@link WriteMode#UPDATE} は使えません
+     * @param profile 書き込むタグの種類
+     * @return 書き込みプラン
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     * @see #write(byte[], WritePlan)
+     */
+    public static WritePlan createWritePlan(NdefMessage ndefMessage, WriteMode writeMode,
+            TagProfile profile) throws SizeOverflowException {
+        if (ndefMessage == null)
+            throw new IllegalArgumentException();
+        if (writeMode == null || writeMode == WriteMode.UPDATE)
+            throw new IllegalArgumentException();
+
+        return createWritePlan(mappingBlock(ndefMessage, profile), writeMode, profile);
+    }
+
+    /**
+     * {@link BlockImage} を FeliCa Lite に書き込むための {@link WritePlan} をあらかじめ作成します<br>
+     * タグの内容によって書き込むブロックが変わる {@link WriteMode#UPDATE} には使えません
+     * 
+     * @param image 書き込む内容
+     * @param writeMode 書き込み方法
+     * @return 書き込みプラン
+     * @see #write(byte[], WritePlan)
+     */
+    public static WritePlan createWritePlan(BlockImage image, WriteMode writeMode) {
+        return createWritePlan(image, writeMode, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * {@link BlockImage} を指定した種類のタグに書き込むための {@link WritePlan} をあらかじめ作成します<br>
+     * {@link WriteMode#ZERO_FILL} はタグのデータブロック数（Nmaxb）まで0で埋めます。<br>
+     * コマンドは1ブロックずつ書き込むので、Nbw が1以上のタグであればそのまま使えます
+     * 
+     * @param image 書き込む内容
+     * @param writeMode 書き込み方法。{@link WriteMode#UPDATE} は使えません
+     * @param profile 書き込むタグの種類
+     * @return 書き込みプラン
+     * @throws IllegalArgumentException 内容がタグのデータブロックに収まらない場合に発生します
+     * @see #write(byte[], WritePlan)
+     */
+    public static WritePlan createWritePlan(BlockImage image, WriteMode writeMode,
+            TagProfile profile) {
+        if (image == null)
+            throw new IllegalArgumentException();
+        if (writeMode == null || writeMode == WriteMode.UPDATE)
+            throw new IllegalArgumentException();
+        if (profile == null)
+            throw new IllegalArgumentException();
+
+        int usedBlockCount = image.getUsedDataBlockCount();
+        checkCapacity(usedBlockCount, profile);
+
+        int lastBlockNumber;
+        if (writeMode == WriteMode.ZERO_FILL) {
+            lastBlockNumber = Math.min(profile.getDataBlockCount(), NDEF_BLOCK_COUNT - 1);
+        } else {
+            lastBlockNumber = usedBlockCount;
+        }
+
+        return createWritePlan(image, lastBlockNumber, null);
+    }
+
+    private static void checkCapacity(int lastBlockNumber, TagProfile profile) {
+        if (lastBlockNumber > profile.getDataBlockCount())
+            throw new IllegalArgumentException("too many blocks for " + profile + ", blocks="
+                    + lastBlockNumber);
+    }
+
+    /**
+     * Type 3 Tag の手順で書き込む {@link WritePlan} を作成します<br>
+     * データブロックを書き込む場合は、WriteF を0x0Fにした属性情報ブロックを最初に、
+     * WriteF を0x00にした属性情報ブロックを最後に書き込みます。
+     * データブロックを書き込まない場合は、最後の属性情報ブロックだけを書き込みます
+     * 
+     * @param image 書き込む内容
+     * @param lastBlockNumber 書き込む最後のデータブロック
+     * @param current 0番から連続して読み込んだタグの現在の内容。内容が同じブロックは書き込みません。<br>
+     *            null の場合はすべて書き込みます
+     * @return 書き込みプラン
+     */
+    private static WritePlan createWritePlan(BlockImage image, int lastBlockNumber,
+            byte[] current) {
+        int[] blockNumbers = new int[lastBlockNumber + 2];
+        int count = 1;
+
+        for (int blockNumber = 1; blockNumber <= lastBlockNumber; blockNumber++) {
+            if (current != null
+                    && image.isSameBlock(blockNumber, current, blockNumber * BLOCK_SIZE))
+                continue;
+
+            blockNumbers[count++] = blockNumber;
+        }
+
+        int first = 1;
+        if (count > 1) {
+            // 前回のタッチで書き込み中のまま離れたタグは、すでに0x0Fになっている
+            if (current == null || !BlockImage.isWriting(current, 0)) {
+                blockNumbers[0] = 0;
+                first = 0;
             }
+            blockNumbers[count++] = 0;
+        } else if (current == null || !image.isSameBlock(0, current, 0)) {
+            blockNumbers[count++] = 0;
         }
 
-        return datas;
+        if (first > 0 || count < blockNumbers.length) {
+            int[] trimmedBlockNumbers = new int[count - first];
+            System.arraycopy(blockNumbers, first, trimmedBlockNumbers, 0, count - first);
+            blockNumbers = trimmedBlockNumbers;
+        }
+
+        return new WritePlan(image, blockNumbers);
     }
 
-    private byte[] createNdefHeader(int ndefLength) {
-        ByteBuffer buffer = ByteBuffer.allocate(16);
+    /**
+     * {@link WritePlan} のIDmを書き換えて、すべてのコマンドを順に発行します<br>
+     * コマンドはプランのバッファからそのまま送信するので、通信路が必要とする以外のメモリ確保は行いません
+     * 
+     * @param idm IDm
+     * @param writePlan 書き込みプラン
+     * @return 書き込み結果
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public WriteResult write(byte[] idm, WritePlan writePlan) throws TagLostException,
+            IOException {
+        return write(idm, writePlan, null);
+    }
 
-        // Ver
-        buffer.put((byte)0x10);
+    /**
+     * {@link WritePlan} のIDmを書き換えて、すべてのコマンドを順に発行します<br>
+     * 1ブロック書き込むたびに listener に通知します。<br>
+     * 書き込み中のスレッドが割り込まれた場合は、次のブロックを書き込む前に中断します<br>
+     * 同じプランを複数のスレッドで使った場合は、1つずつ順に書き込みます<br>
+     * {@link #setCheckpointCache(WriteCheckpointCache)} を設定している場合は、
+     * 前回のタッチで書き込みが完了したコマンドを飛ばします<br>
+     * {@link #setTagStateCache(TagStateCache)} を設定している場合は、同じプランを書き込み済みのタグには何も送信しません<br>
+     * {@link #setVerifyEnabled(boolean)} を設定している場合は、書き込んだあとに読み戻して確かめます
+     * 
+     * @param idm IDm
+     * @param writePlan 書き込みプラン
+     * @param listener 進捗の通知先。null の場合は通知しません
+     * @return 書き込み結果
+     * @throws StatusFlagException タグが書き込みを拒否した場合に、そのブロックで中断して発生します
+     * @throws VerifyException 読み戻した内容が書き込んだ内容と違う場合に発生します
+     * @throws InterruptedIOException 割り込まれて中断した場合に発生します
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public WriteResult write(byte[] idm, WritePlan writePlan, OnBlockWrittenListener listener)
+            throws TagLostException, IOException {
+        return write(idm, writePlan, listener, mCheckpointCache);
+    }
 
-        // Nbr
-        // Read Without Encrypitonで一度に読めるブロック数を指定します
-        // FeliCa Liteなので、一度に4ブロック読み込める
-        buffer.put((byte)0x04);
+    private WriteResult write(byte[] idm, WritePlan writePlan, OnBlockWrittenListener listener,
+            WriteCheckpointCache checkpointCache) throws TagLostException, IOException {
+        if (writePlan == null)
+            throw new IllegalArgumentException();
+        checkCapacity(writePlan.getMaxBlockNumber(), mProfile);
 
-        // Nbw
-        // Write Without Encryptionで一度に書き込めるブロック数を指定します
-        // FeliCa Liteなので、一度に1ブロック書き込める
-        buffer.put((byte)0x01);
+        TagMetrics metrics = mMetrics;
+        TagStateCache tagStateCache = mTagStateCache;
+        if (tagStateCache != null && tagStateCache.isWritten(idm, writePlan)) {
+            if (metrics != null)
+                metrics.recordSkippedWrite();
+            return new WriteResult(0, getFullWriteFrameCount());
+        }
 
-        // Nmaxb
-        // NDEFとして使用できるブロック数
-        // FeliCa Liteなので、データ領域は13ブロックまで
-        buffer.put((byte)0x00);
-        buffer.put((byte)0x0d);
+        long startNanos = metrics != null ? System.nanoTime() : 0;
+        mOperationDepth++;
+        try {
+            WriteResult result = writeFrames(idm, writePlan, listener, checkpointCache);
+            if (metrics != null)
+                metrics.recordWrittenTag();
+            return result;
+        } catch (IOException e) {
+            // 読み戻しの失敗も、ここで1回だけ数える
+            recordFailure(metrics, e);
+            throw e;
+        } finally {
+            mOperationDepth--;
+            if (metrics != null)
+                metrics.getWriteLatency().recordSince(startNanos);
+        }
+    }
+
+    private WriteResult writeFrames(byte[] idm, WritePlan writePlan,
+            OnBlockWrittenListener listener, WriteCheckpointCache checkpointCache)
+            throws TagLostException, IOException {
+        TagStateCache tagStateCache = mTagStateCache;
+        int acknowledgedFrames = 0;
+        if (checkpointCache != null)
+            acknowledgedFrames = checkpointCache.getAcknowledgedFrames(idm, writePlan);
+        TagMetrics metrics = mMetrics;
+        if (metrics != null && acknowledgedFrames != 0)
+            metrics.recordResume();
+
+        int frameCount = writePlan.getFrameCount();
+        int totalCount = frameCount - Integer.bitCount(acknowledgedFrames);
+        int writtenCount = 0;
+        int verifiedCount = 0;
+        boolean isSuccess = false;
+        synchronized (writePlan) {
+            writePlan.setIdm(idm);
 
-        // unused
-        buffer.put((byte)0x00);
-        buffer.put((byte)0x00);
-        buffer.put((byte)0x00);
-        buffer.put((byte)0x00);
+            byte[] buffer = writePlan.getBuffer();
+            connect();
+            try {
+                for (int i = 0; i < frameCount; i++) {
+                    if ((acknowledgedFrames & (1 << i)) != 0)
+                        continue;
+
+                    if (Thread.interrupted())
+                        throw new InterruptedIOException("write was interrupted");
 
-        // WriteF
-        // 一枚で完結しているので、0x00
-        buffer.put((byte)0x00);
+                    // 失敗したブロックで中断し、残りのブロックは書き込まない
+                    int blockNumber = writePlan.getBlockNumber(i);
+                    int frameOffset = writePlan.getFrameOffset(i);
+                    byte[] response = executeRawCommand(buffer, frameOffset,
+                            WritePlan.FRAME_LENGTH);
+                    int status = checkResponse(response, WRITE_WITHOUT_ENCRYPTION_RESPONSE,
+                            buffer, frameOffset + 2);
+                    if (status != 0)
+                        throw new StatusFlagException(blockNumber, status >>> 8, status & 0xff);
+                    writtenCount++;
 
-        // RW Flag
-        // Read Writeなので0x01
-        buffer.put((byte)0x01);
+                    if (checkpointCache != null)
+                        checkpointCache.acknowledge(idm, writePlan, i);
+                    if (listener != null)
+                        listener.onBlockWritten(blockNumber, writtenCount, totalCount);
+                }
 
-        // Ln
-        // NDEFデータの長さを指定します
-        buffer.put((byte)((ndefLength >>> 16) & 0xff));
-        buffer.put((byte)((ndefLength >>> 8) & 0xff));
-        buffer.put((byte)(ndefLength & 0xff));
+                if (mVerifyEnabled) {
+                    try {
+                        verifiedCount = verify(idm, writePlan);
+                    } catch (VerifyException e) {
+                        // 読み戻した内容が違う場合は、次のタッチですべて書き直す
+                        if (checkpointCache != null)
+                            checkpointCache.remove(idm);
+                        throw e;
+                    }
+                }
+                isSuccess = true;
+            } finally {
+                close();
+
+                // 途中で失敗したタグは内容が分からないので、記録を消しておく
+                if (tagStateCache != null && !isSuccess)
+                    tagStateCache.remove(idm);
+            }
+        }
 
-        // Checksum
-        // チェックサムを指定します
-        buffer.put(checksum(buffer.array()));
+        if (checkpointCache != null)
+            checkpointCache.remove(idm);
+        if (tagStateCache != null)
+            tagStateCache.putWritten(idm, writePlan);
 
-        return buffer.array();
+        return new WriteResult(writtenCount, getFullWriteFrameCount() - writtenCount, 0,
+                verifiedCount);
     }
 
     /**
-     * チェックサムを作成します<br>
-     * すべてのバイト配列の合計を計算します
+     * 書き込みプランのブロックを4ブロックずつまとめて読み戻し、書き込んだ内容と比べます<br>
+     * 2回書き込む属性情報ブロックは、最後に書き込んだ内容と比べます
      * 
-     * @param byteArray
-     * @return
+     * @param idm IDm
+     * @param writePlan 書き込んだプラン
+     * @return 確かめたブロック数
+     * @throws VerifyException 内容が違うブロックがあった場合に発生します
+     * @throws TagLostException
+     * @throws IOException
      */
-    private byte[] checksum(byte[] byteArray) {
-        int sum = 0;
-        for (byte b : byteArray) {
-            sum += b & 0xff;
+    public int verify(byte[] idm, WritePlan writePlan) throws TagLostException, IOException {
+        if (writePlan == null)
+            throw new IllegalArgumentException();
+
+        int frameCount = writePlan.getFrameCount();
+        if (frameCount == 0)
+            return 0;
+
+        int[] frameIndexes = new int[frameCount];
+        int[] blockNumbers = new int[frameCount];
+        int blockCount = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if (!writePlan.isFinalWrite(i))
+                continue;
+            frameIndexes[blockCount] = i;
+            blockNumbers[blockCount] = writePlan.getBlockNumber(i);
+            blockCount++;
         }
-        return new byte[] {
-                (byte)((sum >>> 8) & 0xff), (byte)(sum & 0xff)
-        };
+        if (blockCount < frameCount) {
+            int[] trimmedBlockNumbers = new int[blockCount];
+            System.arraycopy(blockNumbers, 0, trimmedBlockNumbers, 0, blockCount);
+            blockNumbers = trimmedBlockNumbers;
+        }
+
+        byte[] data = readWithoutEncryption(idm, blockNumbers);
+
+        int mismatchedBlocks = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (!writePlan.isSameData(frameIndexes[i], data, i * BLOCK_SIZE))
+                mismatchedBlocks |= 1 << blockNumbers[i];
+        }
+        if (mismatchedBlocks != 0)
+            throw new VerifyException(mismatchedBlocks);
+
+        return blockCount;
+    }
+
+    /**
+     * 全ブロックを書き込む場合のコマンド数です<br>
+     * 属性情報ブロックは書き込み開始と終了の2回書き込みます
+     */
+    private int getFullWriteFrameCount() {
+        return Math.min(mProfile.getDataBlockCount(), NDEF_BLOCK_COUNT - 1) + 2;
+    }
+
+    /**
+     * NdefMessageからタグの各ブロックにマッピングします<br>
+     * タグの状態を使わない static メソッドです。NdefMessage は JVM で作成できないので、
+     * 端末なしでは中身の {@link BlockImage#fromNdefMessage(byte[], TagProfile)} を
+     * bench/ の BlockMappingBenchmark で測定します
+     * 
+     * @param ndefMessage
+     * @param profile 書き込むタグの種類
+     * @return
+     * @throws SizeOverflowException
+     */
+    static BlockImage mappingBlock(NdefMessage ndefMessage, TagProfile profile)
+            throws SizeOverflowException {
+        return BlockImage.fromNdefMessage(ndefMessage.toByteArray(), profile);
     }
 
     /**
@@ -218,6 +968,7 @@ public class FeliCaLiteTag {
      * @param blockNumber ブロック番号
      * @param data 書き込みデータ
      * @return レスポンス
+     * @throws StatusFlagException タグが書き込みを拒否した場合に発生します
      * @throws TagLostException
      * @throws IOException
      */
@@ -261,9 +1012,179 @@ public class FeliCaLiteTag {
         byte[] command = byteBuffer.array();
         byte[] response = executeCommand(command);
 
+        int status = checkResponse(response, WRITE_WITHOUT_ENCRYPTION_RESPONSE, idm, 0);
+        if (status != 0)
+            throw new StatusFlagException(blockNumber, status >>> 8, status & 0xff);
+
         return response;
     }
 
+    /**
+     * S_PAD0〜13と、認証なしで読み込めるシステムブロックをまとめて読み込みます
+     * 
+     * @param idm IDm
+     * @return 読み込んだブロックを {@link #getDumpBlockNumbers()} の順に連結したデータ
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public byte[] dump(byte[] idm) throws TagLostException, IOException {
+        return readWithoutEncryption(idm, DUMP_BLOCKS);
+    }
+
+    /**
+     * @return dump で読み込むブロック番号
+     */
+    public static int[] getDumpBlockNumbers() {
+        return DUMP_BLOCKS.clone();
+    }
+
+    /**
+     * Read Without Encryptionコマンドを発行します<br>
+     * FeliCa Liteなので、1度のコマンド発行で4ブロックまで読み込めます。<br>
+     * それより多く指定した場合は、{@link TagProfile#getMaxReadBlockCount()} ずつに分けてコマンドを発行します
+     * 
+     * @param idm IDm
+     * @param blockNumbers ブロック番号
+     * @return 読み込んだブロックを指定した順に連結したデータ
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public byte[] readWithoutEncryption(byte[] idm, int[] blockNumbers) throws TagLostException,
+            IOException {
+        if (idm == null || idm.length == 0)
+            throw new IllegalArgumentException();
+        if (blockNumbers == null || blockNumbers.length == 0)
+            throw new IllegalArgumentException();
+
+        byte[] data = new byte[blockNumbers.length * BLOCK_SIZE];
+
+        TagMetrics metrics = mMetrics;
+        long startNanos = metrics != null ? System.nanoTime() : 0;
+        mOperationDepth++;
+        try {
+            connect();
+            int maxBlockCount = mProfile.getMaxReadBlockCount();
+            for (int offset = 0; offset < blockNumbers.length; offset += maxBlockCount) {
+                int blockCount = Math.min(maxBlockCount, blockNumbers.length - offset);
+                byte[] command = createReadCommand(idm, blockNumbers, offset, blockCount);
+                byte[] response = executeCommand(command);
+                parseReadResponse(response, idm, blockNumbers, offset, blockCount, data);
+            }
+        } catch (IOException e) {
+            recordFailure(metrics, e);
+            throw e;
+        } finally {
+            mOperationDepth--;
+            close();
+            if (metrics != null)
+                metrics.getReadLatency().recordSince(startNanos);
+        }
+
+        return data;
+    }
+
+    /**
+     * Read Without Encryptionコマンドを組み立てます
+     * 
+     * @param idm IDm
+     * @param blockNumbers ブロック番号
+     * @param offset 今回読み込むブロックの開始位置
+     * @param blockCount 今回読み込むブロック数
+     * @return コマンド
+     */
+    private static byte[] createReadCommand(byte[] idm, int[] blockNumbers, int offset,
+            int blockCount) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1 + idm.length + 4 + blockCount * 2);
+
+        // Read Without Encryption
+        byteBuffer.put(READ_WITHOUT_ENCRYPTION);
+
+        // IDm
+        byteBuffer.put(idm);
+
+        // サービス数
+        // FeliCa Liteなので1に固定
+        byteBuffer.put((byte)0x01);
+
+        // サービスコード（リトルエンディアン）
+        // 読み込み専用の 0x00 0x0b
+        byteBuffer.put((byte)0x0b);
+        byteBuffer.put((byte)0x00);
+
+        // ブロック数
+        byteBuffer.put((byte)blockCount);
+
+        // ブロックリスト
+        // 2Byteのブロックリストエレメントを並べる
+        for (int i = offset; i < offset + blockCount; i++) {
+            byteBuffer.put((byte)0x80);
+            byteBuffer.put((byte)blockNumbers[i]);
+        }
+
+        return byteBuffer.array();
+    }
+
+    /**
+     * Read Without Encryptionのレスポンスを解析して、ブロックデータを書き出します
+     * 
+     * @param response レスポンス
+     * @param idm IDm
+     * @param blockNumbers ブロック番号
+     * @param offset 今回読み込んだブロックの開始位置
+     * @param blockCount 今回読み込んだブロック数
+     * @param data 書き出し先。offset番目のブロックから書き出します
+     * @throws StatusFlagException タグが読み込みを拒否した場合に発生します
+     * @throws IOException レスポンスが不正な場合に発生します
+     */
+    private static void parseReadResponse(byte[] response, byte[] idm, int[] blockNumbers,
+            int offset, int blockCount, byte[] data) throws IOException {
+        int status = checkResponse(response, READ_WITHOUT_ENCRYPTION_RESPONSE, idm, 0);
+        if (status != 0) {
+            // ステータスフラグ1はエラーが発生したブロックリストの位置（1始まり）
+            int position = status >>> 8;
+            int blockNumber = -1;
+            if (position >= 1 && position <= blockCount)
+                blockNumber = blockNumbers[offset + position - 1];
+            throw new StatusFlagException(blockNumber, status >>> 8, status & 0xff);
+        }
+
+        // ブロック数(1) + ブロックデータ(16 * n)
+        if (response.length < 13 + blockCount * BLOCK_SIZE || (response[12] & 0xff) != blockCount)
+            throw new IOException("invalid block count");
+
+        System.arraycopy(response, 13, data, offset * BLOCK_SIZE, blockCount * BLOCK_SIZE);
+    }
+
+    /**
+     * レスポンスのレスポンスコードとIDmを確認して、ステータスフラグを返します<br>
+     * 正常なレスポンスではメモリ確保を行わないので、ブロックを書き込むたびに呼び出せます
+     * 
+     * @param response レスポンス
+     * @param responseCode 期待するレスポンスコード
+     * @param idm コマンドに指定したIDmを含むバッファ
+     * @param idmOffset バッファ内でのIDmの開始位置
+     * @return ステータスフラグ1が0x00の場合は0。<br>
+     *         それ以外の場合はステータスフラグ1を上位、ステータスフラグ2を下位に並べた値
+     * @throws IOException レスポンスの形式が不正な場合に発生します
+     */
+    static int checkResponse(byte[] response, byte responseCode, byte[] idm, int idmOffset)
+            throws IOException {
+        // レスポンス長(1) + レスポンスコード(1) + IDm(8) + ステータスフラグ(2)
+        if (response == null || response.length < 12 || (response[0] & 0xff) != response.length)
+            throw new IOException("invalid response");
+        if (response[1] != responseCode)
+            throw new IOException("invalid response code, code=" + (response[1] & 0xff));
+        for (int i = 0; i < 8; i++) {
+            if (response[2 + i] != idm[idmOffset + i])
+                throw new IOException("invalid IDm in response");
+        }
+
+        int status1 = response[10] & 0xff;
+        if (status1 == 0x00)
+            return 0;
+        return (status1 << 8) | (response[11] & 0xff);
+    }
+
     /**
      * コマンドを実行します<br>
      * 自動的に先頭にコマンド長を付加します
@@ -287,7 +1208,8 @@ public class FeliCaLiteTag {
     }
 
     /**
-     * コマンドを渡された状態そのままで実行します
+     * コマンドを渡された状態そのままで実行します<br>
+     * 接続していない場合は、このコマンドのためだけに接続と切断を行います
      * 
      * @param rawCommand
      * @return
@@ -298,17 +1220,144 @@ public class FeliCaLiteTag {
         if (rawCommand == null || rawCommand.length == 0)
             throw new IllegalArgumentException();
 
+        return executeRawCommand(rawCommand, 0, rawCommand.length);
+    }
+
+    /**
+     * バッファの一部に置かれたコマンドを、そのままの状態で実行します
+     * 
+     * @param buffer コマンドを含むバッファ
+     * @param offset コマンドの開始位置
+     * @param length コマンド長
+     * @return
+     * @throws TagLostException
+     * @throws IOException
+     */
+    public byte[] executeRawCommand(byte[] buffer, int offset, int length)
+            throws TagLostException, IOException {
+        if (buffer == null || length <= 0 || offset < 0 || offset + length > buffer.length)
+            throw new IllegalArgumentException();
+
+        connect();
         try {
-            mNfcF.connect();
-            byte[] response = mNfcF.transceive(rawCommand);
+            TimeoutPolicy timeoutPolicy = mTimeoutPolicy;
+            if (timeoutPolicy != null && length > 1)
+                return transceive(timeoutPolicy, buffer, offset, length);
+            return exchange(buffer, offset, length);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * コマンドを1回だけ送受信し、その往復を {@link TagMetrics} と {@link CommandTrace} に記録します<br>
+     * 送り直した場合は、送った回数だけ記録します
+     */
+    private byte[] exchange(byte[] buffer, int offset, int length) throws IOException {
+        TagMetrics metrics = mMetrics;
+        CommandTrace commandTrace = mCommandTrace;
+        long startNanos = metrics != null || commandTrace != null ? System.nanoTime() : 0;
+        byte[] response = null;
+        try {
+            response = mTransceiver.transceive(buffer, offset, length);
             return response;
         } finally {
-            try {
-                mNfcF.close();
-            } catch (IOException e) {
-                // ignore
+            if (metrics != null && length > 1)
+                metrics.recordCommand(buffer[offset + 1], startNanos);
+            if (commandTrace != null)
+                commandTrace.record(startNanos, System.nanoTime() - startNanos, buffer, offset,
+                        length, response);
+        }
+    }
+
+    /**
+     * ポリシーが決めたタイムアウトでコマンドを送受信します<br>
+     * 短くしたタイムアウトで失敗した場合は、タグがまだあるかもしれないので、
+     * 一度だけ長めのタイムアウトで送り直します
+     */
+    private byte[] transceive(TimeoutPolicy timeoutPolicy, byte[] buffer, int offset,
+            int length) throws IOException {
+        if (mDefaultTimeout < 0)
+            mDefaultTimeout = mTransceiver.getTimeout();
+        int defaultTimeout = mDefaultTimeout;
+
+        byte commandCode = buffer[offset + 1];
+        int timeout = timeoutPolicy.getTimeout(commandCode, defaultTimeout);
+        applyTimeout(timeout);
+        long startNanos = System.nanoTime();
+        try {
+            byte[] response = exchange(buffer, offset, length);
+            timeoutPolicy.onResponse(commandCode, System.nanoTime() - startNanos);
+            return response;
+        } catch (IOException e) {
+            if (!isTagLost(e))
+                throw e;
+            if (timeout >= defaultTimeout) {
+                timeoutPolicy.onTagLost(timeout, defaultTimeout);
+                throw e;
             }
         }
+
+        TagMetrics metrics = mMetrics;
+        if (metrics != null)
+            metrics.recordRetry();
+
+        int retryTimeout = timeoutPolicy.getRetryTimeout(timeout, defaultTimeout);
+        applyTimeout(retryTimeout);
+        startNanos = System.nanoTime();
+        try {
+            byte[] response = exchange(buffer, offset, length);
+            timeoutPolicy.onFalsePositive(commandCode, System.nanoTime() - startNanos);
+            return response;
+        } catch (IOException e) {
+            if (isTagLost(e))
+                timeoutPolicy.onTagLost(timeout + retryTimeout, defaultTimeout);
+            throw e;
+        }
+    }
+
+    /**
+     * 最も外側の操作で発生した失敗だけを記録します
+     */
+    private void recordFailure(TagMetrics metrics, IOException e) {
+        if (metrics != null && mOperationDepth == 1)
+            metrics.recordFailure(e);
+    }
+
+    private void applyTimeout(int timeout) {
+        if (timeout == mAppliedTimeout)
+            return;
+
+        mTransceiver.setTimeout(timeout);
+        mAppliedTimeout = timeout;
+    }
+
+    /**
+     * 例外がタグが離れたことによるものかどうかを調べます<br>
+     * 端末の {@link TagLostException} のほかに、端末の外で使う送受信先の
+     * {@link NoResponseException} もタグが離れたものとして扱います
+     * 
+     * @param e 発生した例外
+     * @return タグが離れたことによる例外であれば true
+     */
+    public static boolean isTagLost(Exception e) {
+        return e instanceof TagLostException || e instanceof NoResponseException;
+    }
+
+    /**
+     * ブロックを書き込むたびに呼び出されるリスナ
+     * 
+     * @author tomorrowkey@gmail.com
+     */
+    public interface OnBlockWrittenListener {
+        /**
+         * 属性情報ブロックは書き込み開始と終了の2回通知されます
+         * 
+         * @param blockNumber 書き込んだブロック番号
+         * @param writtenCount これまでに発行した書き込みコマンド数
+         * @param totalCount 発行する書き込みコマンドの総数
+         */
+        public void onBlockWritten(int blockNumber, int writtenCount, int totalCount);
     }
 
     /**
@@ -318,37 +1367,105 @@ public class FeliCaLiteTag {
      */
     public static class UnsupportTagException extends Exception {
         private static final long serialVersionUID = 1L;
+
+        public UnsupportTagException() {
+            super();
+        }
+
+        public UnsupportTagException(String detailMessage) {
+            super(detailMessage);
+        }
     }
 
     /**
-     * タグに書き込めるサイズを越えた際に発生する例外です
+     * タグがコマンドをステータスフラグのエラーで拒否した際に発生する例外です
      * 
      * @author tomorrowkey@gmail.com
      */
-    public static class SizeOverflowException extends Exception {
+    public static class StatusFlagException extends IOException {
 
         private static final long serialVersionUID = 1L;
 
-        private int mSize;
+        private int mBlockNumber;
+
+        private int mStatusFlag1;
+
+        private int mStatusFlag2;
+
+        public StatusFlagException(int blockNumber, int statusFlag1, int statusFlag2) {
+            mBlockNumber = blockNumber;
+            mStatusFlag1 = statusFlag1;
+            mStatusFlag2 = statusFlag2;
+        }
+
+        @Override
+        public String getMessage() {
+            return "status error, block=" + mBlockNumber + ", status1="
+                    + Integer.toHexString(mStatusFlag1) + ", status2="
+                    + Integer.toHexString(mStatusFlag2);
+        }
+
+        /**
+         * @return エラーが発生したブロック番号。特定できない場合は-1
+         */
+        public int getBlockNumber() {
+            return mBlockNumber;
+        }
 
-        private int mCapacitySize;
+        public int getStatusFlag1() {
+            return mStatusFlag1;
+        }
 
-        public SizeOverflowException(int size, int capacitySize) {
-            mSize = size;
-            mCapacitySize = capacitySize;
+        public int getStatusFlag2() {
+            return mStatusFlag2;
+        }
+    }
+
+    /**
+     * 書き込んだあとに読み戻した内容が、書き込んだ内容と違っていた際に発生する例外です
+     * 
+     * @author tomorrowkey@gmail.com
+     */
+    public static class VerifyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private int mMismatchedBlocks;
+
+        public VerifyException(int mismatchedBlocks) {
+            mMismatchedBlocks = mismatchedBlocks;
         }
 
         @Override
         public String getMessage() {
-            return "size over, size=" + mSize + ", capacity=" + mCapacitySize;
+            StringBuilder builder = new StringBuilder("verify error, blocks=");
+            int[] blockNumbers = getMismatchedBlockNumbers();
+            for (int i = 0; i < blockNumbers.length; i++) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(blockNumbers[i]);
+            }
+            return builder.toString();
         }
 
-        public int getSize() {
-            return mSize;
+        /**
+         * @return 内容が違っていたブロックのビットマスク。ブロック番号nが (1 << n) に対応します
+         */
+        public int getMismatchedBlocks() {
+            return mMismatchedBlocks;
         }
 
-        public int getCapacity() {
-            return mCapacitySize;
+        /**
+         * @return 内容が違っていたブロック番号
+         */
+        public int[] getMismatchedBlockNumbers() {
+            int[] blockNumbers = new int[Integer.bitCount(mMismatchedBlocks)];
+            int count = 0;
+            for (int blockNumber = 0; blockNumber < NDEF_BLOCK_COUNT; blockNumber++) {
+                if ((mMismatchedBlocks & (1 << blockNumber)) != 0)
+                    blockNumbers[count++] = blockNumber;
+            }
+            return blockNumbers;
         }
     }
 }
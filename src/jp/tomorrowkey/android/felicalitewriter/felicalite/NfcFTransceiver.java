@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import android.nfc.tech.NfcF;
+
+import java.io.IOException;
+
+/**
+ * NfcF を使ってタグとコマンドを送受信します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class NfcFTransceiver implements Transceiver {
+
+    /**
+     * タグ
+     */
+    private NfcF mNfcF;
+
+    /**
+     * バッファの一部を送信するときに使う作業領域
+     */
+    private byte[] mScratch;
+
+    public NfcFTransceiver(NfcF nfcF) {
+        if (nfcF == null)
+            throw new IllegalArgumentException();
+
+        mNfcF = nfcF;
+    }
+
+    /**
+     * @return タグ
+     */
+    public NfcF getNfcF() {
+        return mNfcF;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mNfcF.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mNfcF.close();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        return mNfcF.transceive(data);
+    }
+
+    @Override
+    public byte[] transceive(byte[] buffer, int offset, int length) throws IOException {
+        if (offset == 0 && length == buffer.length)
+            return mNfcF.transceive(buffer);
+
+        // NfcF は配列全体を送信するので、同じ長さの作業領域を使い回す
+        if (mScratch == null || mScratch.length != length)
+            mScratch = new byte[length];
+        System.arraycopy(buffer, offset, mScratch, 0, length);
+        return mNfcF.transceive(mScratch);
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        mNfcF.setTimeout(timeout);
+    }
+
+    @Override
+    public int getTimeout() {
+        return mNfcF.getTimeout();
+    }
+}
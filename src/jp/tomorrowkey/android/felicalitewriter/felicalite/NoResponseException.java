@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+
+/**
+ * 端末の外で使う送受信先で、タグから応答がなかった際に発生する例外です<br>
+ * android.nfc.TagLostException は端末の外では作成できないので、代わりにこの例外を使います。
+ * {@link FeliCaLiteTag#isTagLost(Exception)} はこの例外を TagLostException と同じく、タグが離れたものとして扱います
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+class NoResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoResponseException(String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+/**
+ * タグに書き込めるサイズを越えた際に発生する例外です<br>
+ * NDEFのエンコードだけを行うクラスからも使えるように、android.jar に依存しないクラスにしています
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class SizeOverflowException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private int mSize;
+
+    private int mCapacitySize;
+
+    public SizeOverflowException(int size, int capacitySize) {
+        mSize = size;
+        mCapacitySize = capacitySize;
+    }
+
+    @Override
+    public String getMessage() {
+        return "size over, size=" + mSize + ", capacity=" + mCapacitySize;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacitySize;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.util.Arrays;
+
+/**
+ * FeliCa Lite のシステムブロック（RC、ID、D_ID、SER_C、SYS_C、CKV、MC）の内容<br>
+ * {@link FeliCaLiteTag#readSystemBlocks(byte[], int[])} でまとめて読み込んだ値を保持し、
+ * 各フィールドを型付きで読み書きします。<br>
+ * 読み込んだときの内容も保持しているので、値を変えたブロックだけを
+ * {@link FeliCaLiteTag#writeSystemBlocks(byte[], SystemBlocks)} で書き込めます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class SystemBlocks {
+
+    /**
+     * 1ブロックのバイト数
+     */
+    public static final int BLOCK_SIZE = BlockImage.BLOCK_SIZE;
+
+    /**
+     * SYS_OP で NDEF を使う場合の値
+     */
+    public static final int SYS_OP_NDEF = 0x01;
+
+    /**
+     * MC_ALL で0次発行（システムブロックを書き換えられる状態）を表す値
+     */
+    public static final int MC_ALL_INITIAL = 0xff;
+
+    private static final int BLOCK_RC = FeliCaLiteTag.BLOCK_RC;
+
+    /**
+     * MAC ブロック。RC と一緒にしか読めず、値も読み込むたびに変わるので扱いません
+     */
+    private static final int BLOCK_MAC = 0x81;
+
+    private static final int BLOCK_ID = FeliCaLiteTag.BLOCK_ID;
+
+    private static final int BLOCK_D_ID = FeliCaLiteTag.BLOCK_D_ID;
+
+    private static final int BLOCK_SER_C = FeliCaLiteTag.BLOCK_SER_C;
+
+    private static final int BLOCK_SYS_C = FeliCaLiteTag.BLOCK_SYS_C;
+
+    private static final int BLOCK_CKV = FeliCaLiteTag.BLOCK_CKV;
+
+    /**
+     * CK ブロック。カード鍵をメモリに残さないように扱いません
+     */
+    private static final int BLOCK_CK = 0x87;
+
+    private static final int BLOCK_MC = FeliCaLiteTag.BLOCK_MC;
+
+    /**
+     * 扱うシステムブロックの数（0x80〜0x88）
+     */
+    private static final int SLOT_COUNT = BLOCK_MC - BLOCK_RC + 1;
+
+    private static final int MC_SP_OFFSET = 0;
+
+    private static final int MC_ALL_OFFSET = 2;
+
+    private static final int SYS_OP_OFFSET = 3;
+
+    private static final int RF_PRM_OFFSET = 4;
+
+    /**
+     * ブロックごとの現在の内容。保持していないブロックは null
+     */
+    private byte[][] mBlocks = new byte[SLOT_COUNT][];
+
+    /**
+     * ブロックごとの読み込んだときの内容。読み込んでいないブロックは null
+     */
+    private byte[][] mOriginalBlocks = new byte[SLOT_COUNT][];
+
+    /**
+     * 内容を持たない状態で作成します<br>
+     * RC のように読み込めないブロックを書き込む場合は、{@link #setBlock(int, byte[])} で内容を設定します
+     */
+    public SystemBlocks() {
+    }
+
+    /**
+     * 読み込んだブロックから作成します
+     * 
+     * @param blockNumbers ブロック番号
+     * @param data ブロックを blockNumbers の順に連結したデータ
+     */
+    public SystemBlocks(int[] blockNumbers, byte[] data) {
+        if (blockNumbers == null || data == null || data.length < blockNumbers.length * BLOCK_SIZE)
+            throw new IllegalArgumentException();
+
+        for (int i = 0; i < blockNumbers.length; i++) {
+            int slot = toSlot(blockNumbers[i]);
+            mOriginalBlocks[slot] = Arrays.copyOfRange(data, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE);
+            mBlocks[slot] = mOriginalBlocks[slot].clone();
+        }
+    }
+
+    /**
+     * @param blockNumber ブロック番号
+     * @return 内容を保持している場合は true
+     */
+    public boolean hasBlock(int blockNumber) {
+        return mBlocks[toSlot(blockNumber)] != null;
+    }
+
+    /**
+     * @param blockNumber ブロック番号
+     * @return ブロックの内容のコピー
+     * @throws IllegalStateException 内容を保持していない場合
+     */
+    public byte[] getBlock(int blockNumber) {
+        return getExistingBlock(blockNumber).clone();
+    }
+
+    /**
+     * ブロックの内容をまとめて設定します
+     * 
+     * @param blockNumber ブロック番号
+     * @param data 16バイトの内容
+     */
+    public void setBlock(int blockNumber, byte[] data) {
+        if (data == null || data.length != BLOCK_SIZE)
+            throw new IllegalArgumentException();
+
+        mBlocks[toSlot(blockNumber)] = data.clone();
+    }
+
+    /**
+     * @param blockNumber ブロック番号
+     * @return 読み込んだときから内容が変わっている場合は true
+     */
+    public boolean isModified(int blockNumber) {
+        return isModifiedSlot(toSlot(blockNumber));
+    }
+
+    /**
+     * @return 読み込んだときから内容が変わったブロックの番号（昇順）
+     */
+    public int[] getModifiedBlockNumbers() {
+        int count = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (isModifiedSlot(slot))
+                count++;
+        }
+
+        int[] blockNumbers = new int[count];
+        int index = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (isModifiedSlot(slot))
+                blockNumbers[index++] = BLOCK_RC + slot;
+        }
+        return blockNumbers;
+    }
+
+    private boolean isModifiedSlot(int slot) {
+        return mBlocks[slot] != null && !Arrays.equals(mBlocks[slot], mOriginalBlocks[slot]);
+    }
+
+    /**
+     * 現在の内容を、タグに書き込まれている内容として扱います
+     * 
+     * @param blockNumber 書き込んだブロック番号
+     */
+    void markWritten(int blockNumber) {
+        int slot = toSlot(blockNumber);
+        mOriginalBlocks[slot] = mBlocks[slot] != null ? mBlocks[slot].clone() : null;
+    }
+
+    /**
+     * @return ID の先頭8バイト（IDm と同じ値）
+     */
+    public byte[] getIdm() {
+        return Arrays.copyOfRange(getExistingBlock(BLOCK_ID), 0, 8);
+    }
+
+    /**
+     * @return ID の DFC（データフォーマットコード）
+     */
+    public int getDataFormatCode() {
+        return getBigEndian16(BLOCK_ID, 8);
+    }
+
+    /**
+     * @return D_ID の IDd
+     */
+    public byte[] getDeviceId() {
+        return Arrays.copyOfRange(getExistingBlock(BLOCK_D_ID), 0, 8);
+    }
+
+    /**
+     * @return D_ID の PMm
+     */
+    public byte[] getPmm() {
+        return Arrays.copyOfRange(getExistingBlock(BLOCK_D_ID), 8, 16);
+    }
+
+    /**
+     * @return SER_C のサービスコード
+     */
+    public int getServiceCode() {
+        return getLittleEndian16(BLOCK_SER_C, 0);
+    }
+
+    /**
+     * @return SYS_C のシステムコード
+     */
+    public int getSystemCode() {
+        return getBigEndian16(BLOCK_SYS_C, 0);
+    }
+
+    /**
+     * @return CKV のカード鍵バージョン
+     */
+    public int getCardKeyVersion() {
+        return getLittleEndian16(BLOCK_CKV, 0);
+    }
+
+    /**
+     * @return MC_SP。ビットが1の S_PAD と REG が書き込めます
+     */
+    public int getMcSp() {
+        return getLittleEndian16(BLOCK_MC, MC_SP_OFFSET);
+    }
+
+    /**
+     * @return MC_ALL
+     */
+    public int getMcAll() {
+        return getExistingBlock(BLOCK_MC)[MC_ALL_OFFSET] & 0xff;
+    }
+
+    /**
+     * @return 0次発行の状態で、システムブロックを書き換えられる場合は true
+     */
+    public boolean isInitialIssuance() {
+        return getMcAll() == MC_ALL_INITIAL;
+    }
+
+    /**
+     * @return SYS_OP
+     */
+    public int getSysOp() {
+        return getExistingBlock(BLOCK_MC)[SYS_OP_OFFSET] & 0xff;
+    }
+
+    /**
+     * SYS_OP だけを書き換えます。MC の他のフィールドはそのまま残します
+     * 
+     * @param sysOp SYS_OP
+     */
+    public void setSysOp(int sysOp) {
+        getExistingBlock(BLOCK_MC)[SYS_OP_OFFSET] = (byte)sysOp;
+    }
+
+    /**
+     * @return SYS_OP で NDEF を使う設定になっている場合は true
+     */
+    public boolean isNdefEnabled() {
+        return getSysOp() == SYS_OP_NDEF;
+    }
+
+    /**
+     * @return RF_PRM
+     */
+    public int getRfPrm() {
+        return getExistingBlock(BLOCK_MC)[RF_PRM_OFFSET] & 0xff;
+    }
+
+    private byte[] getExistingBlock(int blockNumber) {
+        byte[] block = mBlocks[toSlot(blockNumber)];
+        if (block == null)
+            throw new IllegalStateException(String.format("block 0x%02x is not loaded",
+                    blockNumber));
+        return block;
+    }
+
+    private int getBigEndian16(int blockNumber, int offset) {
+        byte[] block = getExistingBlock(blockNumber);
+        return ((block[offset] & 0xff) << 8) | (block[offset + 1] & 0xff);
+    }
+
+    private int getLittleEndian16(int blockNumber, int offset) {
+        byte[] block = getExistingBlock(blockNumber);
+        return (block[offset] & 0xff) | ((block[offset + 1] & 0xff) << 8);
+    }
+
+    private static int toSlot(int blockNumber) {
+        if (blockNumber < BLOCK_RC || blockNumber > BLOCK_MC)
+            throw new IllegalArgumentException(String.format("not a system block: 0x%02x",
+                    blockNumber));
+        if (blockNumber == BLOCK_MAC || blockNumber == BLOCK_CK)
+            throw new IllegalArgumentException(String.format("unsupported block: 0x%02x",
+                    blockNumber));
+        return blockNumber - BLOCK_RC;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.StatusFlagException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.VerifyException;
+import jp.tomorrowkey.android.felicalitewriter.util.LatencyHistogram;
+
+/**
+ * タグとの通信にかかった時間と失敗の回数を記録するクラス<br>
+ * 複数の {@link FeliCaLiteTag} に同じインスタンスを設定して、タッチをまたいで集計します。
+ * 記録するときはロックもメモリ確保も行わないので、RF通信の合間に呼び出しても影響がありません
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class TagMetrics {
+
+    /**
+     * 時間を記録するコマンドの種類
+     */
+    public enum Command {
+        POLLING, READ, WRITE, OTHER;
+
+        /**
+         * @param commandCode コマンドコード
+         * @return コマンドの種類
+         */
+        static Command fromCode(byte commandCode) {
+            switch (commandCode) {
+                case 0x00:
+                    return POLLING;
+                case 0x06:
+                    return READ;
+                case 0x08:
+                    return WRITE;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * 失敗の種類
+     */
+    public enum Failure {
+        /**
+         * タグが離れた、または応答がタイムアウトした
+         */
+        TAG_LOST,
+
+        /**
+         * タグがステータスフラグでエラーを返した
+         */
+        STATUS_FLAG,
+
+        /**
+         * 書き込みを中断した
+         */
+        INTERRUPTED,
+
+        /**
+         * 読み戻した内容が書き込んだ内容と違っていた
+         */
+        VERIFY,
+
+        /**
+         * その他の通信エラー
+         */
+        IO;
+
+        /**
+         * @param e 発生した例外
+         * @return 失敗の種類
+         */
+        static Failure of(IOException e) {
+            if (e instanceof StatusFlagException)
+                return STATUS_FLAG;
+            if (e instanceof VerifyException)
+                return VERIFY;
+            if (e instanceof InterruptedIOException)
+                return INTERRUPTED;
+            if (FeliCaLiteTag.isTagLost(e))
+                return TAG_LOST;
+            return IO;
+        }
+    }
+
+    /**
+     * コマンドの種類ごとの往復時間
+     */
+    private LatencyHistogram[] mCommandLatencies;
+
+    /**
+     * タグへの接続にかかった時間
+     */
+    private LatencyHistogram mConnectLatency = new LatencyHistogram();
+
+    /**
+     * MC のNDEFフラグの書き込みにかかった時間
+     */
+    private LatencyHistogram mNdefFlagLatency = new LatencyHistogram();
+
+    /**
+     * NDEFの書き込みにかかった時間
+     */
+    private LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+    /**
+     * ブロックの読み込みにかかった時間
+     */
+    private LatencyHistogram mReadLatency = new LatencyHistogram();
+
+    /**
+     * 失敗の種類ごとの回数
+     */
+    private AtomicLongArray mFailures;
+
+    /**
+     * 書き込みが完了したタグの数
+     */
+    private AtomicLong mWrittenTagCount = new AtomicLong();
+
+    /**
+     * 前回のタッチの続きから書き込みを再開した回数
+     */
+    private AtomicLong mResumeCount = new AtomicLong();
+
+    /**
+     * 書き込み済みのタグだったので書き込みを省略した回数
+     */
+    private AtomicLong mSkippedWriteCount = new AtomicLong();
+
+    /**
+     * 短くしたタイムアウトで応答がなく、コマンドを送り直した回数
+     */
+    private AtomicLong mRetryCount = new AtomicLong();
+
+    /**
+     * 集計を始めた時刻（ナノ秒）
+     */
+    private volatile long mStartNanos;
+
+    public TagMetrics() {
+        Command[] commands = Command.values();
+        mCommandLatencies = new LatencyHistogram[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            mCommandLatencies[i] = new LatencyHistogram();
+        }
+        mFailures = new AtomicLongArray(Failure.values().length);
+        mStartNanos = System.nanoTime();
+    }
+
+    void recordCommand(byte commandCode, long startNanos) {
+        mCommandLatencies[Command.fromCode(commandCode).ordinal()].recordSince(startNanos);
+    }
+
+    void recordFailure(IOException e) {
+        mFailures.incrementAndGet(Failure.of(e).ordinal());
+    }
+
+    void recordWrittenTag() {
+        mWrittenTagCount.incrementAndGet();
+    }
+
+    void recordResume() {
+        mResumeCount.incrementAndGet();
+    }
+
+    void recordSkippedWrite() {
+        mSkippedWriteCount.incrementAndGet();
+    }
+
+    void recordRetry() {
+        mRetryCount.incrementAndGet();
+    }
+
+    /**
+     * @param command コマンドの種類
+     * @return コマンドの往復時間
+     */
+    public LatencyHistogram getCommandLatency(Command command) {
+        return mCommandLatencies[command.ordinal()];
+    }
+
+    /**
+     * @return タグへの接続にかかった時間
+     */
+    public LatencyHistogram getConnectLatency() {
+        return mConnectLatency;
+    }
+
+    /**
+     * @return MC のNDEFフラグの書き込みにかかった時間
+     */
+    public LatencyHistogram getNdefFlagLatency() {
+        return mNdefFlagLatency;
+    }
+
+    /**
+     * @return NDEFの書き込みにかかった時間
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return ブロックの読み込みにかかった時間
+     */
+    public LatencyHistogram getReadLatency() {
+        return mReadLatency;
+    }
+
+    /**
+     * @param failure 失敗の種類
+     * @return 失敗した回数
+     */
+    public long getFailureCount(Failure failure) {
+        return mFailures.get(failure.ordinal());
+    }
+
+    /**
+     * @return 書き込みが完了したタグの数
+     */
+    public long getWrittenTagCount() {
+        return mWrittenTagCount.get();
+    }
+
+    /**
+     * @return 前回のタッチの続きから書き込みを再開した回数
+     */
+    public long getResumeCount() {
+        return mResumeCount.get();
+    }
+
+    /**
+     * @return 書き込み済みのタグだったので書き込みを省略した回数
+     */
+    public long getSkippedWriteCount() {
+        return mSkippedWriteCount.get();
+    }
+
+    /**
+     * @return 短くしたタイムアウトで応答がなく、コマンドを送り直した回数
+     * @see TimeoutPolicy
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * @return 集計を始めてから1秒あたりに書き込みが完了したタグの数
+     */
+    public double getTagsPerSecond() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        if (elapsedNanos <= 0)
+            return 0;
+        return mWrittenTagCount.get() * 1000000000.0 / elapsedNanos;
+    }
+
+    /**
+     * 集計をすべて消して、現在時刻から集計し直します
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mCommandLatencies) {
+            histogram.reset();
+        }
+        mConnectLatency.reset();
+        mNdefFlagLatency.reset();
+        mWriteLatency.reset();
+        mReadLatency.reset();
+        for (int i = 0; i < mFailures.length(); i++) {
+            mFailures.set(i, 0);
+        }
+        mWrittenTagCount.set(0);
+        mResumeCount.set(0);
+        mSkippedWriteCount.set(0);
+        mRetryCount.set(0);
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * 集計結果を1項目1行のテキストとして書き出します<br>
+     * 各行は「名前 値」の形式で、時間はマイクロ秒です。端末から回収してそのまま集計できます
+     * 
+     * @return 集計結果
+     */
+    public String export() {
+        StringBuilder builder = new StringBuilder();
+        for (Command command : Command.values()) {
+            builder.append("command.").append(command.name().toLowerCase(Locale.US)).append(' ');
+            getCommandLatency(command).appendTo(builder);
+            builder.append('\n');
+        }
+        appendHistogram(builder, "connect", mConnectLatency);
+        appendHistogram(builder, "phase.ndef_flag", mNdefFlagLatency);
+        appendHistogram(builder, "phase.write", mWriteLatency);
+        appendHistogram(builder, "phase.read", mReadLatency);
+        builder.append("command.retries ").append(getRetryCount()).append('\n');
+        for (Failure failure : Failure.values()) {
+            builder.append("failure.").append(failure.name().toLowerCase(Locale.US)).append(' ')
+                    .append(getFailureCount(failure)).append('\n');
+        }
+        builder.append("tags.written ").append(getWrittenTagCount()).append('\n');
+        builder.append("tags.resumed ").append(getResumeCount()).append('\n');
+        builder.append("tags.skipped ").append(getSkippedWriteCount()).append('\n');
+        builder.append("tags.per_second ").append(getTagsPerSecond()).append('\n');
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name,
+            LatencyHistogram histogram) {
+        builder.append(name).append(' ');
+        histogram.appendTo(builder);
+        builder.append('\n');
+    }
+
+    @Override
+    public String toString() {
+        return export();
+    }
+}
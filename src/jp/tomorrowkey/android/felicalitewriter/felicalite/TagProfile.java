@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+/**
+ * 対応しているタグの種類ごとの性質<br>
+ * PMm の IC 種別とシステムコードから {@link #classify(byte[], byte[])} で求めます。
+ * タグとの通信は行わないので、対応していないタグには RF の時間を使わずに済みます。<br>
+ * インスタンスは種類ごとに1つだけで、内容は変わりません
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public final class TagProfile {
+
+    /**
+     * FeliCa Lite のシステムコード
+     */
+    public static final int SYSTEM_CODE_FELICA_LITE = 0x88b4;
+
+    /**
+     * NDEF のシステムコード<br>
+     * SYS_OP で NDEF を有効にした FeliCa Lite は、このシステムコードでも応答します
+     */
+    public static final int SYSTEM_CODE_NDEF = 0x12fc;
+
+    /**
+     * FeliCa Lite（RC-S965）
+     */
+    public static final TagProfile FELICA_LITE = new TagProfile(0, "FeliCa Lite", 0xf0, 4, 1,
+            BlockImage.MAX_DATA_BLOCK_COUNT);
+
+    /**
+     * FeliCa Lite-S（RC-S966）
+     */
+    public static final TagProfile FELICA_LITE_S = new TagProfile(1, "FeliCa Lite-S", 0xf1, 4,
+            1, BlockImage.MAX_DATA_BLOCK_COUNT);
+
+    /**
+     * 種類の数。{@link #getIndex()} はこれより小さい値です
+     */
+    static final int PROFILE_COUNT = 2;
+
+    /**
+     * PMm の IC 種別から引く表。対応していない IC 種別は null
+     */
+    private static final TagProfile[] PROFILES = new TagProfile[0x100];
+
+    static {
+        PROFILES[FELICA_LITE.mIcType] = FELICA_LITE;
+        PROFILES[FELICA_LITE_S.mIcType] = FELICA_LITE_S;
+    }
+
+    /**
+     * PMm 内の IC 種別の位置
+     */
+    private static final int PMM_IC_TYPE_OFFSET = 1;
+
+    private final int mIndex;
+
+    private final String mName;
+
+    private final int mIcType;
+
+    private final int mMaxReadBlockCount;
+
+    private final int mMaxWriteBlockCount;
+
+    private final int mDataBlockCount;
+
+    private TagProfile(int index, String name, int icType, int maxReadBlockCount,
+            int maxWriteBlockCount, int dataBlockCount) {
+        mIndex = index;
+        mName = name;
+        mIcType = icType;
+        mMaxReadBlockCount = maxReadBlockCount;
+        mMaxWriteBlockCount = maxWriteBlockCount;
+        mDataBlockCount = dataBlockCount;
+    }
+
+    /**
+     * PMm とシステムコードからタグの種類を求めます
+     * 
+     * @param pmm PMm（{@code NfcF#getManufacturer()}）
+     * @param systemCode システムコード（{@code NfcF#getSystemCode()}）
+     * @return タグの種類。対応していないタグの場合は null
+     */
+    public static TagProfile classify(byte[] pmm, byte[] systemCode) {
+        if (pmm == null || pmm.length <= PMM_IC_TYPE_OFFSET)
+            return null;
+        if (systemCode == null || systemCode.length != 2)
+            return null;
+
+        int code = ((systemCode[0] & 0xff) << 8) | (systemCode[1] & 0xff);
+        if (code != SYSTEM_CODE_FELICA_LITE && code != SYSTEM_CODE_NDEF)
+            return null;
+
+        return PROFILES[pmm[PMM_IC_TYPE_OFFSET] & 0xff];
+    }
+
+    /**
+     * @return 種類ごとの0から始まる番号。種類ごとに値を持つ配列の添字に使います
+     */
+    int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return 種類の名前
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return PMm の IC 種別
+     */
+    public int getIcType() {
+        return mIcType;
+    }
+
+    /**
+     * @return Read Without Encryption で一度に読み込めるブロック数（Nbr）
+     */
+    public int getMaxReadBlockCount() {
+        return mMaxReadBlockCount;
+    }
+
+    /**
+     * @return Write Without Encryption で一度に書き込めるブロック数（Nbw）
+     */
+    public int getMaxWriteBlockCount() {
+        return mMaxWriteBlockCount;
+    }
+
+    /**
+     * @return NDEF のデータとして使えるブロック数（Nmaxb）
+     */
+    public int getDataBlockCount() {
+        return mDataBlockCount;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+import jp.tomorrowkey.android.felicalitewriter.util.ExpiringLruCache;
+
+/**
+ * 最近書き込んだタグの状態を IDm ごとに記録するキャッシュ<br>
+ * MC のNDEFフラグと、最後に書き込んだ {@link WritePlan} のハッシュ値を記録しておき、
+ * 同じタグに同じ内容を書き込もうとした場合にRF通信を省略できるようにします
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class TagStateCache {
+
+    /**
+     * タグの状態
+     */
+    private static class TagState {
+        /**
+         * NDEFフラグが既知かどうか
+         */
+        boolean mNdefFlagKnown;
+
+        boolean mNdefFlag;
+
+        /**
+         * 書き込んだ内容が既知かどうか
+         */
+        boolean mContentKnown;
+
+        long mContentHash;
+
+        TagState copy() {
+            TagState state = new TagState();
+            state.mNdefFlagKnown = mNdefFlagKnown;
+            state.mNdefFlag = mNdefFlag;
+            state.mContentKnown = mContentKnown;
+            state.mContentHash = mContentHash;
+            return state;
+        }
+    }
+
+    private ExpiringLruCache<Long, TagState> mCache;
+
+    private AtomicLong mHitCount = new AtomicLong();
+
+    private AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param maxSize 記録するタグの上限
+     * @param expireMillis 記録の有効期限（ミリ秒）。最後に書き込んだ時刻から数えます
+     */
+    public TagStateCache(int maxSize, long expireMillis) {
+        mCache = new ExpiringLruCache<Long, TagState>(maxSize, expireMillis);
+    }
+
+    /**
+     * MC のNDEFフラグが、すでに指定した値になっているかどうかを判定します
+     * 
+     * @param idm IDm
+     * @param isNdef NDEFフラグ
+     * @return すでに指定した値であることが分かっていれば true
+     */
+    public boolean isNdefFlagApplied(byte[] idm, boolean isNdef) {
+        TagState state = mCache.get(ByteUtil.toLong(idm));
+        return count(state != null && state.mNdefFlagKnown && state.mNdefFlag == isNdef);
+    }
+
+    /**
+     * 同じタグに、同じ書き込みプランを書き込み済みかどうかを判定します
+     * 
+     * @param idm IDm
+     * @param writePlan 書き込みプラン
+     * @return 書き込み済みであれば true
+     */
+    public boolean isWritten(byte[] idm, WritePlan writePlan) {
+        TagState state = mCache.get(ByteUtil.toLong(idm));
+        return count(state != null && state.mContentKnown
+                && state.mContentHash == writePlan.getContentHash());
+    }
+
+    /**
+     * 有効期限内に何かを書き込んだタグかどうかを判定します<br>
+     * ヒット数とミス数には数えません
+     * 
+     * @param idm IDm
+     * @return 書き込んだ記録があれば true
+     */
+    public boolean isWrittenRecently(byte[] idm) {
+        TagState state = mCache.get(ByteUtil.toLong(idm));
+        return state != null && state.mContentKnown;
+    }
+
+    /**
+     * MC のNDEFフラグを書き込んだことを記録します
+     * 
+     * @param idm IDm
+     * @param isNdef 書き込んだNDEFフラグ
+     */
+    public void putNdefFlag(byte[] idm, boolean isNdef) {
+        Long key = ByteUtil.toLong(idm);
+        synchronized (mCache) {
+            TagState state = copyOrCreate(mCache.get(key));
+            state.mNdefFlagKnown = true;
+            state.mNdefFlag = isNdef;
+            mCache.put(key, state);
+        }
+    }
+
+    /**
+     * 書き込みプランを最後まで書き込んだことを記録します
+     * 
+     * @param idm IDm
+     * @param writePlan 書き込んだプラン
+     */
+    public void putWritten(byte[] idm, WritePlan writePlan) {
+        Long key = ByteUtil.toLong(idm);
+        synchronized (mCache) {
+            TagState state = copyOrCreate(mCache.get(key));
+            state.mContentKnown = true;
+            state.mContentHash = writePlan.getContentHash();
+            mCache.put(key, state);
+        }
+    }
+
+    /**
+     * タグの記録を取り除きます<br>
+     * 書き込みに失敗して、タグの状態が分からなくなった場合に呼び出します
+     * 
+     * @param idm IDm
+     */
+    public void remove(byte[] idm) {
+        mCache.remove(ByteUtil.toLong(idm));
+    }
+
+    /**
+     * @return RF通信を省略できた回数
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return RF通信が必要だった回数
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    private boolean count(boolean hit) {
+        if (hit) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return hit;
+    }
+
+    private static TagState copyOrCreate(TagState state) {
+        return state == null ? new TagState() : state.copy();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.TagMetrics.Command;
+
+/**
+ * コマンドの往復時間からタイムアウトを決めるポリシー<br>
+ * コマンドの種類ごとに直近の往復時間のパーセンタイルを求め、その数倍をタイムアウトにします。
+ * タグが離れたときに、プラットフォームの既定のタイムアウトを待たずに {@code TagLostException} を返せます。<br>
+ * 短くしたタイムアウトで失敗した場合、{@link FeliCaLiteTag} は一度だけ長めのタイムアウトで送り直します。
+ * 送り直して応答があった場合は誤検出として、そのコマンドの倍率を上げます。<br>
+ * 複数の {@link FeliCaLiteTag} に同じインスタンスを設定して、タッチをまたいで学習します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class TimeoutPolicy {
+
+    /**
+     * 往復時間を保持する数
+     */
+    private static final int WINDOW_SIZE = 32;
+
+    /**
+     * タイムアウトを短くするのに必要な往復時間の数
+     */
+    private static final int MIN_SAMPLE_COUNT = 8;
+
+    /**
+     * タイムアウトに使うパーセンタイル
+     */
+    private static final double PERCENTILE = 0.95;
+
+    /**
+     * パーセンタイルに掛ける倍率の初期値
+     */
+    private static final int INITIAL_MULTIPLIER = 2;
+
+    /**
+     * 誤検出が続いたときの倍率の上限
+     */
+    private static final int MAX_MULTIPLIER = 16;
+
+    /**
+     * 倍率を1段階戻すのに必要な、誤検出のない往復の数
+     */
+    private static final int DECAY_RESPONSE_COUNT = WINDOW_SIZE * 4;
+
+    /**
+     * タイムアウトに加える余裕（ミリ秒）
+     */
+    private static final int MARGIN_MILLIS = 2;
+
+    /**
+     * タイムアウトの下限（ミリ秒）
+     */
+    private static final int MIN_TIMEOUT_MILLIS = 5;
+
+    /**
+     * 送り直すときのタイムアウトの倍率
+     */
+    private static final int RETRY_MULTIPLIER = 2;
+
+    /**
+     * コマンドの種類ごとの状態
+     */
+    private final Window[] mWindows;
+
+    private long mLostTagCount;
+
+    private long mFalsePositiveCount;
+
+    /**
+     * 既定のタイムアウトと比べて、待たずに済んだ時間の合計（ミリ秒）
+     */
+    private long mSavedMillis;
+
+    public TimeoutPolicy() {
+        Command[] commands = Command.values();
+        mWindows = new Window[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            mWindows[i] = new Window();
+        }
+    }
+
+    /**
+     * コマンドに使うタイムアウトを返します<br>
+     * 往復時間が十分に集まっていないコマンドや、種類の分からないコマンドには既定のタイムアウトを返します
+     * 
+     * @param commandCode コマンドコード
+     * @param defaultTimeout 既定のタイムアウト（ミリ秒）
+     * @return タイムアウト（ミリ秒）
+     */
+    public synchronized int getTimeout(byte commandCode, int defaultTimeout) {
+        Command command = Command.fromCode(commandCode);
+        if (command == Command.OTHER)
+            return defaultTimeout;
+
+        Window window = mWindows[command.ordinal()];
+        if (window.mCount < MIN_SAMPLE_COUNT)
+            return defaultTimeout;
+
+        long percentileMicros = window.getPercentileMicros(PERCENTILE);
+        long timeout = (percentileMicros * window.mMultiplier + 999) / 1000 + MARGIN_MILLIS;
+        timeout = Math.max(timeout, MIN_TIMEOUT_MILLIS);
+
+        // 送り直しを含めても既定のタイムアウトより短くならない場合は、既定のまま使う
+        if (timeout * (1 + RETRY_MULTIPLIER) >= defaultTimeout)
+            return defaultTimeout;
+        return (int)timeout;
+    }
+
+    /**
+     * 短くしたタイムアウトで失敗したときに、送り直すためのタイムアウトを返します
+     * 
+     * @param timeout 失敗したときのタイムアウト（ミリ秒）
+     * @param defaultTimeout 既定のタイムアウト（ミリ秒）
+     * @return タイムアウト（ミリ秒）
+     */
+    public int getRetryTimeout(int timeout, int defaultTimeout) {
+        return Math.min(timeout * RETRY_MULTIPLIER, defaultTimeout);
+    }
+
+    /**
+     * 応答があったコマンドの往復時間を記録します
+     * 
+     * @param commandCode コマンドコード
+     * @param elapsedNanos 往復時間（ナノ秒）
+     */
+    public synchronized void onResponse(byte commandCode, long elapsedNanos) {
+        Command command = Command.fromCode(commandCode);
+        if (command == Command.OTHER)
+            return;
+
+        mWindows[command.ordinal()].add(elapsedNanos / 1000);
+    }
+
+    /**
+     * 短くしたタイムアウトで失敗したあと、送り直して応答があったことを記録します<br>
+     * そのコマンドの倍率を上げて、以降のタイムアウトを長くします
+     * 
+     * @param commandCode コマンドコード
+     * @param elapsedNanos 送り直したコマンドの往復時間（ナノ秒）
+     */
+    public synchronized void onFalsePositive(byte commandCode, long elapsedNanos) {
+        mFalsePositiveCount++;
+
+        Command command = Command.fromCode(commandCode);
+        if (command == Command.OTHER)
+            return;
+
+        Window window = mWindows[command.ordinal()];
+        window.mMultiplier = Math.min(window.mMultiplier * 2, MAX_MULTIPLIER);
+        window.mResponseCountSinceBackoff = 0;
+        window.add(elapsedNanos / 1000);
+    }
+
+    /**
+     * タグが離れたと判断したことを記録します
+     * 
+     * @param waitedMillis 応答を待ったタイムアウトの合計（ミリ秒）
+     * @param defaultTimeout 既定のタイムアウト（ミリ秒）
+     */
+    public synchronized void onTagLost(int waitedMillis, int defaultTimeout) {
+        mLostTagCount++;
+        mSavedMillis += Math.max(0, defaultTimeout - waitedMillis);
+    }
+
+    /**
+     * @return タグが離れたと判断した回数
+     */
+    public synchronized long getLostTagCount() {
+        return mLostTagCount;
+    }
+
+    /**
+     * @return 送り直して応答があった（タイムアウトが短すぎた）回数
+     */
+    public synchronized long getFalsePositiveCount() {
+        return mFalsePositiveCount;
+    }
+
+    /**
+     * @return 既定のタイムアウトと比べて、待たずに済んだ時間の合計（ミリ秒）
+     */
+    public synchronized long getSavedMillis() {
+        return mSavedMillis;
+    }
+
+    /**
+     * @return タグが離れた1回あたりに、待たずに済んだ時間（ミリ秒）
+     */
+    public synchronized double getSavedMillisPerLostTag() {
+        return mLostTagCount > 0 ? (double)mSavedMillis / mLostTagCount : 0.0;
+    }
+
+    /**
+     * 学習した往復時間と集計をすべて捨てます
+     */
+    public synchronized void reset() {
+        for (Window window : mWindows) {
+            window.reset();
+        }
+        mLostTagCount = 0;
+        mFalsePositiveCount = 0;
+        mSavedMillis = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "lost=%d, falsePositive=%d, saved=%dms (%.1fms/tag)",
+                mLostTagCount, mFalsePositiveCount, mSavedMillis, getSavedMillisPerLostTag());
+    }
+
+    /**
+     * 1種類のコマンドの直近の往復時間と倍率
+     */
+    private static class Window {
+        /**
+         * 往復時間（マイクロ秒）のリングバッファ
+         */
+        private long[] mSamples = new long[WINDOW_SIZE];
+
+        /**
+         * パーセンタイルを求めるときの作業領域
+         */
+        private long[] mSorted = new long[WINDOW_SIZE];
+
+        private int mNextIndex;
+
+        private int mCount;
+
+        private int mMultiplier = INITIAL_MULTIPLIER;
+
+        private int mResponseCountSinceBackoff;
+
+        void add(long micros) {
+            mSamples[mNextIndex] = micros;
+            mNextIndex = (mNextIndex + 1) % WINDOW_SIZE;
+            if (mCount < WINDOW_SIZE)
+                mCount++;
+
+            // 誤検出がしばらくなければ、倍率を1段階戻す
+            mResponseCountSinceBackoff++;
+            if (mResponseCountSinceBackoff >= DECAY_RESPONSE_COUNT
+                    && mMultiplier > INITIAL_MULTIPLIER) {
+                mMultiplier /= 2;
+                mResponseCountSinceBackoff = 0;
+            }
+        }
+
+        long getPercentileMicros(double percentile) {
+            System.arraycopy(mSamples, 0, mSorted, 0, mCount);
+            Arrays.sort(mSorted, 0, mCount);
+            int index = (int)Math.ceil(percentile * mCount) - 1;
+            return mSorted[Math.max(0, Math.min(index, mCount - 1))];
+        }
+
+        void reset() {
+            mNextIndex = 0;
+            mCount = 0;
+            mMultiplier = INITIAL_MULTIPLIER;
+            mResponseCountSinceBackoff = 0;
+        }
+    }
+
+}
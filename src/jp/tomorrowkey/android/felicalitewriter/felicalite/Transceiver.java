@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+
+/**
+ * FeliCaのコマンドを送受信する通信路
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public interface Transceiver {
+
+    /**
+     * タグに接続します
+     * 
+     * @throws IOException
+     */
+    public void connect() throws IOException;
+
+    /**
+     * タグから切断します
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException;
+
+    /**
+     * コマンドを送信して、レスポンスを受信します
+     * 
+     * @param data 先頭にコマンド長を含むコマンド
+     * @return 先頭にレスポンス長を含むレスポンス
+     * @throws IOException
+     */
+    public byte[] transceive(byte[] data) throws IOException;
+
+    /**
+     * バッファの一部に置かれたコマンドを送信して、レスポンスを受信します
+     * 
+     * @param buffer 先頭にコマンド長を含むコマンドが置かれたバッファ
+     * @param offset コマンドの開始位置
+     * @param length コマンド長
+     * @return 先頭にレスポンス長を含むレスポンス
+     * @throws IOException
+     */
+    public byte[] transceive(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * コマンドのタイムアウトを設定します
+     * 
+     * @param timeout タイムアウト（ミリ秒）
+     */
+    public void setTimeout(int timeout);
+
+    /**
+     * @return コマンドのタイムアウト（ミリ秒）
+     */
+    public int getTimeout();
+}
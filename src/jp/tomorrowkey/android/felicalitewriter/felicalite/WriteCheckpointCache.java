@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+import jp.tomorrowkey.android.felicalitewriter.util.ExpiringLruCache;
+
+/**
+ * 書き込みの途中でタグが離れたときに、書き込みが完了したコマンドを IDm ごとに記録するキャッシュ<br>
+ * 同じタグに同じ {@link WritePlan} をもう一度書き込むときは、記録されているコマンドを飛ばして続きから書き込めます。<br>
+ * 属性情報ブロックは1つのプランで2回書き込むので、ブロック番号ではなくプラン内のコマンドの位置で記録します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WriteCheckpointCache {
+
+    /**
+     * 書き込み途中の状態
+     */
+    private static class Checkpoint {
+        /**
+         * 書き込んでいたプラン
+         */
+        WritePlan mWritePlan;
+
+        /**
+         * 書き込みが完了したコマンドのビットマスク。コマンドの位置nが (1 << n) に対応します
+         */
+        int mAcknowledgedFrames;
+
+        Checkpoint(WritePlan writePlan) {
+            mWritePlan = writePlan;
+        }
+    }
+
+    private ExpiringLruCache<Long, Checkpoint> mCache;
+
+    /**
+     * @param maxSize 記録するタグの上限
+     * @param expireMillis 記録の有効期限（ミリ秒）
+     */
+    public WriteCheckpointCache(int maxSize, long expireMillis) {
+        mCache = new ExpiringLruCache<Long, Checkpoint>(maxSize, expireMillis);
+    }
+
+    /**
+     * @param idm IDm
+     * @param writePlan 書き込むプラン
+     * @return 同じプランで書き込みが完了したコマンドのビットマスク。記録がない場合は0
+     */
+    public int getAcknowledgedFrames(byte[] idm, WritePlan writePlan) {
+        Checkpoint checkpoint = mCache.get(ByteUtil.toLong(idm));
+        if (checkpoint == null || checkpoint.mWritePlan != writePlan)
+            return 0;
+
+        synchronized (checkpoint) {
+            return checkpoint.mAcknowledgedFrames;
+        }
+    }
+
+    /**
+     * コマンドの書き込みが完了したことを記録します
+     * 
+     * @param idm IDm
+     * @param writePlan 書き込んでいるプラン
+     * @param index 書き込みが完了したコマンドの位置
+     */
+    public void acknowledge(byte[] idm, WritePlan writePlan, int index) {
+        Long key = ByteUtil.toLong(idm);
+        Checkpoint checkpoint = mCache.get(key);
+        if (checkpoint == null || checkpoint.mWritePlan != writePlan) {
+            checkpoint = new Checkpoint(writePlan);
+            mCache.put(key, checkpoint);
+        }
+
+        synchronized (checkpoint) {
+            checkpoint.mAcknowledgedFrames |= 1 << index;
+        }
+    }
+
+    /**
+     * 書き込みが最後まで完了したタグの記録を取り除きます
+     * 
+     * @param idm IDm
+     */
+    public void remove(byte[] idm) {
+        mCache.remove(ByteUtil.toLong(idm));
+    }
+
+    /**
+     * @return 記録しているタグの数
+     */
+    public int size() {
+        return mCache.size();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+
+/**
+ * タグ1枚分の Write Without Encryption コマンドを、あらかじめ組み立てておくクラス<br>
+ * すべてのコマンドをコマンド長も含めて1つの連続したバッファに並べておき、
+ * タグごとに変わるIDmだけをその場で書き換えます。<br>
+ * 一度組み立てれば、同じ内容を何枚のタグに書き込んでもコマンドを作り直す必要はありません。<br>
+ * 属性情報ブロックは最後のコマンド以外にも置けます。その場合は WriteF を書き込み中の0x0Fにして組み立てるので、
+ * Type 3 Tag の手順どおり「0x0Fの属性情報 → データ → 0x00の属性情報」の順に書き込めます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WritePlan {
+
+    /**
+     * コマンド長(1) + コマンドコード(1) + IDm(8) + サービス数(1) + サービスコード(2) + ブロック数(1) +
+     * ブロックリスト(2) + ブロックデータ(16)
+     */
+    static final int FRAME_LENGTH = 32;
+
+    private static final int IDM_OFFSET = 2;
+
+    private static final int IDM_LENGTH = 8;
+
+    private static final int BLOCK_NUMBER_OFFSET = 15;
+
+    private static final int DATA_OFFSET = 16;
+
+    /**
+     * すべてのコマンドを並べたバッファ
+     */
+    private byte[] mBuffer;
+
+    /**
+     * コマンドの数
+     */
+    private int mFrameCount;
+
+    /**
+     * IDm を除いたコマンドの内容のハッシュ値
+     */
+    private long mContentHash;
+
+    /**
+     * イメージのブロックを指定した順に書き込むプランを作成します<br>
+     * 最後以外に指定した属性情報ブロックは、WriteF を0x0Fにしてチェックサムを計算し直します
+     * 
+     * @param image 書き込む内容
+     * @param blockNumbers 書き込むブロック番号
+     */
+    public WritePlan(BlockImage image, int[] blockNumbers) {
+        if (image == null || blockNumbers == null)
+            throw new IllegalArgumentException();
+
+        mFrameCount = blockNumbers.length;
+        mBuffer = new byte[mFrameCount * FRAME_LENGTH];
+
+        for (int i = 0; i < mFrameCount; i++) {
+            int offset = i * FRAME_LENGTH;
+
+            // コマンド長
+            mBuffer[offset] = (byte)FRAME_LENGTH;
+
+            // Write Without Encryption
+            mBuffer[offset + 1] = (byte)0x08;
+
+            // IDm は setIdm で書き込む
+
+            // サービス数
+            // FeliCa Liteなので1に固定
+            mBuffer[offset + 10] = (byte)0x01;
+
+            // サービスコード（リトルエンディアン）
+            // 0x00 0x09
+            mBuffer[offset + 11] = (byte)0x09;
+            mBuffer[offset + 12] = (byte)0x00;
+
+            // ブロック数
+            // FeliCa Liteなので1に固定
+            mBuffer[offset + 13] = (byte)0x01;
+
+            // ブロックリスト
+            mBuffer[offset + 14] = (byte)0x80;
+            mBuffer[offset + BLOCK_NUMBER_OFFSET] = (byte)blockNumbers[i];
+
+            // 書き込みデータ
+            image.copyBlock(blockNumbers[i], mBuffer, offset + DATA_OFFSET);
+
+            // データブロックより先に書き込む属性情報ブロックは書き込み中にする
+            if (blockNumbers[i] == 0 && i < mFrameCount - 1)
+                BlockImage.writeWriteFlag(mBuffer, offset + DATA_OFFSET, BlockImage.WRITE_F_ON);
+        }
+
+        // IDm を書き込む前なので、IDm 部分は常に0で計算される
+        mContentHash = ByteUtil.hash64(mBuffer, 0, mBuffer.length);
+    }
+
+    /**
+     * すべてのコマンドのIDmを書き換えます
+     * 
+     * @param idm IDm（8バイト）
+     */
+    public void setIdm(byte[] idm) {
+        if (idm == null || idm.length != IDM_LENGTH)
+            throw new IllegalArgumentException();
+
+        for (int offset = 0; offset < mBuffer.length; offset += FRAME_LENGTH) {
+            System.arraycopy(idm, 0, mBuffer, offset + IDM_OFFSET, IDM_LENGTH);
+        }
+    }
+
+    /**
+     * @return コマンドの数
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return 書き込むブロックと内容から計算したハッシュ値。IDm には依存しません
+     */
+    public long getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * @param index コマンドの位置
+     * @return 書き込むブロック番号
+     */
+    public int getBlockNumber(int index) {
+        return mBuffer[getFrameOffset(index) + BLOCK_NUMBER_OFFSET] & 0xff;
+    }
+
+    /**
+     * @return 書き込むブロック番号の最大値。コマンドがない場合は0
+     */
+    public int getMaxBlockNumber() {
+        int maxBlockNumber = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            maxBlockNumber = Math.max(maxBlockNumber, getBlockNumber(i));
+        }
+        return maxBlockNumber;
+    }
+
+    /**
+     * @return 書き込むブロック番号。書き込む順に並んでいます
+     */
+    public int[] getBlockNumbers() {
+        int[] blockNumbers = new int[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            blockNumbers[i] = getBlockNumber(i);
+        }
+        return blockNumbers;
+    }
+
+    /**
+     * @param index コマンドの位置
+     * @return 同じブロックをこれより後のコマンドで書き込まない場合は true。
+     *         書き込み終わったときのタグの内容は、このコマンドのデータと同じになります
+     */
+    public boolean isFinalWrite(int index) {
+        int blockNumber = getBlockNumber(index);
+        for (int i = index + 1; i < mFrameCount; i++) {
+            if (getBlockNumber(i) == blockNumber)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 書き込むデータが、他のバッファの16バイトと同じかどうかを判定します
+     * 
+     * @param index コマンドの位置
+     * @param other 比較するバッファ
+     * @param otherOffset 比較するバッファの開始位置
+     * @return 同じであれば true
+     */
+    boolean isSameData(int index, byte[] other, int otherOffset) {
+        int offset = getFrameOffset(index) + DATA_OFFSET;
+        for (int i = 0; i < BlockImage.BLOCK_SIZE; i++) {
+            if (mBuffer[offset + i] != other[otherOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param index コマンドの位置
+     * @return バッファ内でのコマンドの開始位置
+     */
+    int getFrameOffset(int index) {
+        if (index < 0 || index >= mFrameCount)
+            throw new IndexOutOfBoundsException();
+        return index * FRAME_LENGTH;
+    }
+
+    /**
+     * @return すべてのコマンドを並べたバッファ
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import android.nfc.NdefMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+/**
+ * NdefMessage から作成した {@link BlockImage} と {@link WritePlan} を保持する LRU キャッシュ<br>
+ * 同じ NdefMessage を何枚ものタグに書き込む場合に、タッチのたびにブロックへの割り当てやチェックサムの計算をやり直さないようにします<br>
+ * NdefMessage の比較は NdefMessage#equals に従います。equals を実装していない古い端末では同じインスタンスだけが一致するので、
+ * 書き込む NdefMessage は使い回してください
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WritePlanCache {
+
+    private static final int WRITE_MODE_COUNT = WriteMode.values().length;
+
+    /**
+     * 1つの NdefMessage から作成したもの
+     */
+    private static class CachedPlans {
+        /**
+         * {@link TagProfile} ごとのブロックの内容。必要になったときに作成します
+         */
+        BlockImage[] mImages = new BlockImage[TagProfile.PROFILE_COUNT];
+
+        /**
+         * {@link TagProfile} と {@link WriteMode} の順序ごとの書き込みプラン。必要になったときに作成します
+         */
+        WritePlan[][] mWritePlans = new WritePlan[TagProfile.PROFILE_COUNT][WRITE_MODE_COUNT];
+    }
+
+    private LinkedHashMap<NdefMessage, CachedPlans> mMap;
+
+    /**
+     * @param maxSize 保持する NdefMessage の上限
+     */
+    public WritePlanCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException();
+
+        mMap = new LinkedHashMap<NdefMessage, CachedPlans>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NdefMessage, CachedPlans> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * NdefMessage を FeliCa Lite に書き込むための {@link WritePlan} を返します。ない場合は作成して保持します<br>
+     * タッチする前に呼んでおけば、書き込み時の処理は IDm の差し替えだけになります
+     * 
+     * @param ndefMessage NDEF
+     * @param writeMode 書き込み方法。{@link WriteMode#UPDATE} は使えません
+     * @return 書き込みプラン
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     */
+    public WritePlan getWritePlan(NdefMessage ndefMessage, WriteMode writeMode)
+            throws SizeOverflowException {
+        return getWritePlan(ndefMessage, writeMode, TagProfile.FELICA_LITE);
+    }
+
+    /**
+     * NdefMessage を指定した種類のタグに書き込むための {@link WritePlan} を返します。ない場合は作成して保持します
+     * 
+     * @param ndefMessage NDEF
+     * @param writeMode 書き込み方法。{@link WriteMode#UPDATE} は使えません
+     * @param profile 書き込むタグの種類
+     * @return 書き込みプラン
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     */
+    public synchronized WritePlan getWritePlan(NdefMessage ndefMessage, WriteMode writeMode,
+            TagProfile profile) throws SizeOverflowException {
+        if (writeMode == null || writeMode == WriteMode.UPDATE)
+            throw new IllegalArgumentException();
+
+        CachedPlans entry = getCachedPlans(ndefMessage);
+        WritePlan[] writePlans = entry.mWritePlans[profile.getIndex()];
+        WritePlan writePlan = writePlans[writeMode.ordinal()];
+        if (writePlan == null) {
+            writePlan = FeliCaLiteTag.createWritePlan(getBlockImage(entry, ndefMessage, profile),
+                    writeMode, profile);
+            writePlans[writeMode.ordinal()] = writePlan;
+        }
+        return writePlan;
+    }
+
+    /**
+     * NdefMessage を割り当てた {@link BlockImage} を返します。ない場合は作成して保持します<br>
+     * 返した BlockImage は共有しているので、変更しないでください
+     * 
+     * @param ndefMessage NDEF
+     * @param profile 書き込むタグの種類
+     * @return ブロックの内容
+     * @throws SizeOverflowException NdefMessageのサイズが大きすぎる場合に発生します
+     */
+    synchronized BlockImage getBlockImage(NdefMessage ndefMessage, TagProfile profile)
+            throws SizeOverflowException {
+        return getBlockImage(getCachedPlans(ndefMessage), ndefMessage, profile);
+    }
+
+    private static BlockImage getBlockImage(CachedPlans entry, NdefMessage ndefMessage,
+            TagProfile profile) throws SizeOverflowException {
+        if (profile == null)
+            throw new IllegalArgumentException();
+
+        BlockImage image = entry.mImages[profile.getIndex()];
+        if (image == null) {
+            image = FeliCaLiteTag.mappingBlock(ndefMessage, profile);
+            entry.mImages[profile.getIndex()] = image;
+        }
+        return image;
+    }
+
+    private CachedPlans getCachedPlans(NdefMessage ndefMessage) {
+        if (ndefMessage == null)
+            throw new IllegalArgumentException();
+
+        CachedPlans entry = mMap.get(ndefMessage);
+        if (entry == null) {
+            entry = new CachedPlans();
+            mMap.put(ndefMessage, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return 保持している NdefMessage の数
+     */
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    /**
+     * すべて取り除きます
+     */
+    public synchronized void clear() {
+        mMap.clear();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+/**
+ * NDEFメッセージの書き込み結果
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WriteResult {
+
+    /**
+     * 書き込んだブロック数
+     */
+    private int mWrittenBlockCount;
+
+    /**
+     * 全ブロックを書き込む場合と比べて、書き込みを省略したブロック数
+     */
+    private int mSkippedBlockCount;
+
+    /**
+     * 差分を取るために読み込んだブロック数
+     */
+    private int mReadBlockCount;
+
+    /**
+     * 書き込んだあとに読み戻して確かめたブロック数
+     */
+    private int mVerifiedBlockCount;
+
+    public WriteResult(int writtenBlockCount, int skippedBlockCount) {
+        this(writtenBlockCount, skippedBlockCount, 0);
+    }
+
+    public WriteResult(int writtenBlockCount, int skippedBlockCount, int readBlockCount) {
+        this(writtenBlockCount, skippedBlockCount, readBlockCount, 0);
+    }
+
+    public WriteResult(int writtenBlockCount, int skippedBlockCount, int readBlockCount,
+            int verifiedBlockCount) {
+        mWrittenBlockCount = writtenBlockCount;
+        mSkippedBlockCount = skippedBlockCount;
+        mReadBlockCount = readBlockCount;
+        mVerifiedBlockCount = verifiedBlockCount;
+    }
+
+    /**
+     * @return 書き込んだブロック数。Write Without Encryptionの発行回数と同じです
+     */
+    public int getWrittenBlockCount() {
+        return mWrittenBlockCount;
+    }
+
+    /**
+     * @return 書き込みを省略したブロック数。省略できたRFの往復回数と同じです
+     */
+    public int getSkippedBlockCount() {
+        return mSkippedBlockCount;
+    }
+
+    /**
+     * @return 差分を取るために読み込んだブロック数。4ブロックで1往復です
+     */
+    public int getReadBlockCount() {
+        return mReadBlockCount;
+    }
+
+    /**
+     * @return 書き込んだあとに読み戻して確かめたブロック数。4ブロックで1往復です
+     */
+    public int getVerifiedBlockCount() {
+        return mVerifiedBlockCount;
+    }
+
+    @Override
+    public String toString() {
+        return "written=" + mWrittenBlockCount + ", skipped=" + mSkippedBlockCount + ", read="
+                + mReadBlockCount + ", verified=" + mVerifiedBlockCount;
+    }
+}
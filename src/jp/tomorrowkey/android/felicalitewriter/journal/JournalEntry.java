@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.journal;
+
+/**
+ * 書き込みジャーナルの1件分の記録
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class JournalEntry {
+
+    /**
+     * 書き込みに成功した。詳細は書き込んだブロック数
+     */
+    public static final int RESULT_WRITTEN = 0;
+
+    /**
+     * 同じ内容が書き込み済みだったので、何も書き込まなかった
+     */
+    public static final int RESULT_SKIPPED = 1;
+
+    /**
+     * タグが離れた、または応答がタイムアウトした
+     */
+    public static final int RESULT_TAG_LOST = 2;
+
+    /**
+     * タグがステータスフラグでエラーを返した。詳細はブロック番号（上位16ビット）とステータスフラグ1, 2
+     */
+    public static final int RESULT_STATUS_FLAG = 3;
+
+    /**
+     * 書き込みを中断した
+     */
+    public static final int RESULT_CANCELLED = 4;
+
+    /**
+     * その他のエラー
+     */
+    public static final int RESULT_ERROR = 5;
+
+    /**
+     * 読み戻した内容が書き込んだ内容と違っていた。詳細は違っていたブロックのビットマスク
+     */
+    public static final int RESULT_VERIFY_FAILED = 6;
+
+    private long mIdm;
+
+    private long mContentHash;
+
+    private long mTimestamp;
+
+    private int mResult;
+
+    private int mDetail;
+
+    /**
+     * @param idm IDm
+     * @param contentHash 書き込んだ内容のハッシュ値
+     * @param timestamp 時刻（ミリ秒）
+     * @param result 結果。RESULT_ で始まる定数
+     * @param detail 結果の詳細
+     */
+    public JournalEntry(long idm, long contentHash, long timestamp, int result, int detail) {
+        mIdm = idm;
+        mContentHash = contentHash;
+        mTimestamp = timestamp;
+        mResult = result;
+        mDetail = detail;
+    }
+
+    /**
+     * @return IDm
+     */
+    public long getIdm() {
+        return mIdm;
+    }
+
+    /**
+     * @return 書き込んだ内容のハッシュ値
+     */
+    public long getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * @return 時刻（ミリ秒）
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return 結果。RESULT_ で始まる定数
+     */
+    public int getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return 結果の詳細
+     */
+    public int getDetail() {
+        return mDetail;
+    }
+
+    /**
+     * @return 書き込みに成功した、または書き込み済みだった場合に true
+     */
+    public boolean isSuccess() {
+        return mResult == RESULT_WRITTEN || mResult == RESULT_SKIPPED;
+    }
+
+    @Override
+    public String toString() {
+        return "idm=" + Long.toHexString(mIdm) + ", hash=" + Long.toHexString(mContentHash)
+                + ", time=" + mTimestamp + ", result=" + mResult + ", detail=" + mDetail;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * IDm ごとに最後の記録を引けるようにした、メモリにマップするハッシュ表<br>
+ * オープンアドレス法（線形探索）で、使用率が半分を超えたら2倍の大きさのファイルに作り直します。
+ * ジャーナルから作り直せるので、どこまでのジャーナルを反映したかをヘッダに記録しておきます
+ * 
+ * <pre>
+ * ヘッダ（32バイト）
+ *   0  マジックナンバー "FLJI"
+ *   4  バージョン
+ *   8  スロット数（2のべき乗）
+ *  12  登録件数
+ *  16  反映済みのジャーナルの長さ
+ * スロット（40バイト）
+ *   0  IDm
+ *   8  内容のハッシュ値
+ *  16  時刻
+ *  24  結果
+ *  28  詳細
+ *  32  使用中なら1
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+class JournalIndex {
+
+    private static final int MAGIC = 0x464c4a49;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int SLOT_SIZE = 40;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int COUNT_OFFSET = 12;
+
+    private static final int JOURNAL_LENGTH_OFFSET = 16;
+
+    private static final int SLOT_HASH_OFFSET = 8;
+
+    private static final int SLOT_TIMESTAMP_OFFSET = 16;
+
+    private static final int SLOT_RESULT_OFFSET = 24;
+
+    private static final int SLOT_DETAIL_OFFSET = 28;
+
+    private static final int SLOT_USED_OFFSET = 32;
+
+    private File mFile;
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private MappedByteBuffer mBuffer;
+
+    private int mCapacity;
+
+    private int mCount;
+
+    private JournalIndex(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mCapacity = buffer.getInt(CAPACITY_OFFSET);
+        mCount = buffer.getInt(COUNT_OFFSET);
+    }
+
+    /**
+     * インデックスを開きます。ない場合や壊れている場合は空のインデックスを作成します<br>
+     * 作り直している途中で終了した場合に残る一時ファイルは削除します。
+     * 名前を変える前に終了した場合は、元のファイルがそのまま残っています
+     * 
+     * @param file ファイル
+     * @return インデックス
+     * @throws IOException
+     */
+    static JournalIndex open(File file) throws IOException {
+        File tmpFile = getTmpFile(file);
+        if (tmpFile.exists() && !tmpFile.delete())
+            throw new IOException("failed to delete " + tmpFile);
+
+        if (file.exists()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            long length = randomAccessFile.length();
+            if (length >= HEADER_SIZE) {
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, length);
+                int capacity = buffer.getInt(CAPACITY_OFFSET);
+                if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && capacity > 0
+                        && Integer.bitCount(capacity) == 1 && length == getFileSize(capacity))
+                    return new JournalIndex(file, randomAccessFile, buffer);
+            }
+            randomAccessFile.close();
+        }
+        return create(file, INITIAL_CAPACITY);
+    }
+
+    private static JournalIndex create(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        randomAccessFile.setLength(getFileSize(capacity));
+        MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, getFileSize(capacity));
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.putLong(JOURNAL_LENGTH_OFFSET, 0);
+        return new JournalIndex(file, randomAccessFile, buffer);
+    }
+
+    /**
+     * @return 作り直すときに使う一時ファイル
+     */
+    static File getTmpFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static long getFileSize(int capacity) {
+        return HEADER_SIZE + (long)capacity * SLOT_SIZE;
+    }
+
+    /**
+     * @return 反映済みのジャーナルの長さ。作成したばかりの場合は0
+     */
+    long getJournalLength() {
+        return mBuffer.getLong(JOURNAL_LENGTH_OFFSET);
+    }
+
+    /**
+     * 反映済みのジャーナルの長さを記録します<br>
+     * スロットを書き込んでから呼び出してください。スロットより先にヘッダが保存されないように、スロットを保存してから書き込みます
+     * 
+     * @param journalLength ジャーナルの長さ
+     */
+    void setJournalLength(long journalLength) {
+        mBuffer.force();
+        mBuffer.putLong(JOURNAL_LENGTH_OFFSET, journalLength);
+    }
+
+    /**
+     * @return 登録件数
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @param idm IDm
+     * @return 最後の記録。ない場合は null
+     */
+    JournalEntry get(long idm) {
+        MappedByteBuffer buffer = mBuffer;
+        int mask = mCapacity - 1;
+        for (int i = hash(idm) & mask;; i = (i + 1) & mask) {
+            int offset = getSlotOffset(i);
+            if (buffer.getInt(offset + SLOT_USED_OFFSET) == 0)
+                return null;
+            if (buffer.getLong(offset) == idm)
+                return new JournalEntry(idm, buffer.getLong(offset + SLOT_HASH_OFFSET),
+                        buffer.getLong(offset + SLOT_TIMESTAMP_OFFSET),
+                        buffer.getInt(offset + SLOT_RESULT_OFFSET),
+                        buffer.getInt(offset + SLOT_DETAIL_OFFSET));
+        }
+    }
+
+    /**
+     * 記録を登録します。同じIDmの記録があれば置き換えます
+     * 
+     * @param entry 記録
+     * @throws IOException
+     */
+    void put(JournalEntry entry) throws IOException {
+        if ((mCount + 1) * 2 > mCapacity)
+            grow();
+
+        if (putSlot(mBuffer, mCapacity, entry.getIdm(), entry.getContentHash(),
+                entry.getTimestamp(), entry.getResult(), entry.getDetail())) {
+            mCount++;
+            mBuffer.putInt(COUNT_OFFSET, mCount);
+        }
+    }
+
+    /**
+     * @return 新しいIDmの場合は true
+     */
+    private static boolean putSlot(MappedByteBuffer buffer, int capacity, long idm,
+            long contentHash, long timestamp, int result, int detail) {
+        int mask = capacity - 1;
+        int i = hash(idm) & mask;
+        int offset = getSlotOffset(i);
+        while (buffer.getInt(offset + SLOT_USED_OFFSET) != 0 && buffer.getLong(offset) != idm) {
+            i = (i + 1) & mask;
+            offset = getSlotOffset(i);
+        }
+
+        boolean isNew = buffer.getInt(offset + SLOT_USED_OFFSET) == 0;
+        buffer.putLong(offset, idm);
+        buffer.putLong(offset + SLOT_HASH_OFFSET, contentHash);
+        buffer.putLong(offset + SLOT_TIMESTAMP_OFFSET, timestamp);
+        buffer.putInt(offset + SLOT_RESULT_OFFSET, result);
+        buffer.putInt(offset + SLOT_DETAIL_OFFSET, detail);
+        buffer.putInt(offset + SLOT_USED_OFFSET, 1);
+        return isNew;
+    }
+
+    /**
+     * 2倍のスロット数のファイルを作成して、すべての記録を移します
+     */
+    private void grow() throws IOException {
+        File tmpFile = getTmpFile(mFile);
+        JournalIndex index = create(tmpFile, mCapacity * 2);
+        MappedByteBuffer buffer = mBuffer;
+        for (int i = 0; i < mCapacity; i++) {
+            int offset = getSlotOffset(i);
+            if (buffer.getInt(offset + SLOT_USED_OFFSET) == 0)
+                continue;
+            putSlot(index.mBuffer, index.mCapacity, buffer.getLong(offset),
+                    buffer.getLong(offset + SLOT_HASH_OFFSET),
+                    buffer.getLong(offset + SLOT_TIMESTAMP_OFFSET),
+                    buffer.getInt(offset + SLOT_RESULT_OFFSET),
+                    buffer.getInt(offset + SLOT_DETAIL_OFFSET));
+        }
+        index.mCount = mCount;
+        index.mBuffer.putInt(COUNT_OFFSET, mCount);
+        index.mBuffer.putLong(JOURNAL_LENGTH_OFFSET, getJournalLength());
+        index.mBuffer.force();
+        index.mRandomAccessFile.close();
+
+        mRandomAccessFile.close();
+        if (!tmpFile.renameTo(mFile))
+            throw new IOException("failed to rename " + tmpFile + " to " + mFile);
+
+        JournalIndex grown = open(mFile);
+        mRandomAccessFile = grown.mRandomAccessFile;
+        mBuffer = grown.mBuffer;
+        mCapacity = grown.mCapacity;
+        mCount = grown.mCount;
+    }
+
+    /**
+     * すべての記録を消します。ジャーナルから作り直すときに使います
+     */
+    void clear() {
+        MappedByteBuffer buffer = mBuffer;
+        for (int i = 0; i < mCapacity; i++) {
+            buffer.putInt(getSlotOffset(i) + SLOT_USED_OFFSET, 0);
+        }
+        mCount = 0;
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.putLong(JOURNAL_LENGTH_OFFSET, 0);
+    }
+
+    void close() throws IOException {
+        mBuffer.force();
+        mRandomAccessFile.close();
+    }
+
+    private static int getSlotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(long idm) {
+        long h = idm * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
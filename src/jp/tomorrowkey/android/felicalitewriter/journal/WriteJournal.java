@@ -0,0 +1,454 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import jp.tomorrowkey.android.felicalitewriter.util.ByteUtil;
+
+/**
+ * 書き込んだタグを記録する追記専用のジャーナル<br>
+ * {@link #append(byte[], long, int, int)} は記録をキューに積むだけで、ファイルへの書き込みと同期は
+ * 専用のスレッドがまとめて行います（グループコミット）。
+ * 同期している間に積まれた記録は、次の1回の書き込みと同期でまとめて保存されます<br>
+ * IDm ごとの最後の記録は、メモリにマップしたインデックスから引けます<br>
+ * 開いたときに、途中までしか書き込まれていない末尾の記録を CRC で検出して切り捨て、
+ * インデックスに反映されていない記録をインデックスに反映します
+ * 
+ * <pre>
+ * ヘッダ（16バイト）
+ *   0  マジックナンバー "FLWJ"
+ *   4  バージョン
+ *   8  1件のバイト数
+ * 記録（36バイト）
+ *   0  IDm
+ *   8  内容のハッシュ値
+ *  16  時刻（ミリ秒）
+ *  24  結果
+ *  28  詳細
+ *  32  先頭32バイトの CRC32
+ * </pre>
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WriteJournal implements Closeable {
+
+    private static final int MAGIC = 0x464c574a;
+
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = 36;
+
+    private static final int CRC_OFFSET = 32;
+
+    /**
+     * 開くときに一度に読み込む記録の数
+     */
+    private static final int READ_RECORD_COUNT = 256;
+
+    private File mFile;
+
+    private File mIndexFile;
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private FileChannel mChannel;
+
+    private JournalIndex mIndex;
+
+    /**
+     * ジャーナルの長さ。書き込みスレッドだけが使います
+     */
+    private long mLength;
+
+    /**
+     * 書き込み待ちの記録。mLock で保護します
+     */
+    private List<JournalEntry> mPendingEntries = new ArrayList<JournalEntry>();
+
+    private final Object mLock = new Object();
+
+    /**
+     * 受け付けた記録の数
+     */
+    private long mAppendedCount;
+
+    /**
+     * 保存した記録の数
+     */
+    private long mCommittedCount;
+
+    private boolean mClosed;
+
+    /**
+     * 開くときや書き込みで発生したエラー。発生したあとは記録を受け付けません
+     */
+    private IOException mError;
+
+    /**
+     * 開き終わったら0になる
+     */
+    private CountDownLatch mOpenLatch = new CountDownLatch(1);
+
+    /**
+     * 開くときに切り捨てた末尾のバイト数
+     */
+    private long mTruncatedLength;
+
+    private Thread mThread;
+
+    /**
+     * ジャーナルを開きます<br>
+     * ファイルを開く処理と復旧は書き込みスレッドで行うので、このコンストラクタはすぐに戻ります
+     * 
+     * @param file ジャーナルのファイル
+     * @param indexFile インデックスのファイル
+     */
+    public WriteJournal(File file, File indexFile) {
+        if (file == null || indexFile == null)
+            throw new IllegalArgumentException();
+
+        mFile = file;
+        mIndexFile = indexFile;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "WriteJournal");
+        mThread.start();
+    }
+
+    /**
+     * 記録を書き込み待ちに積みます。ファイルへの書き込みは待ちません
+     * 
+     * @param idm IDm
+     * @param contentHash 書き込んだ内容のハッシュ値
+     * @param result 結果。{@link JournalEntry} の RESULT_ で始まる定数
+     * @param detail 結果の詳細
+     * @throws IOException 以前の書き込みに失敗している場合や、閉じたあとに呼び出した場合に発生します
+     */
+    public void append(byte[] idm, long contentHash, int result, int detail) throws IOException {
+        JournalEntry entry = new JournalEntry(ByteUtil.toLong(idm), contentHash,
+                System.currentTimeMillis(), result, detail);
+        synchronized (mLock) {
+            if (mClosed)
+                throw new IOException("journal is closed");
+            if (mError != null)
+                throw mError;
+
+            mPendingEntries.add(entry);
+            mAppendedCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * これまでに積んだ記録が保存されるまで待ちます
+     * 
+     * @throws IOException 書き込みに失敗した場合に発生します
+     */
+    public void flush() throws IOException {
+        synchronized (mLock) {
+            long target = mAppendedCount;
+            while (mCommittedCount < target && mError == null) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mError != null)
+                throw mError;
+        }
+    }
+
+    /**
+     * IDm の最後の記録を返します。開き終わるまで待ちます<br>
+     * 保存が済んだ記録だけが対象で、書き込み待ちの記録は含みません
+     * 
+     * @param idm IDm
+     * @return 最後の記録。ない場合は null
+     * @throws IOException 開くときにエラーが発生した場合に発生します
+     */
+    public JournalEntry lookup(byte[] idm) throws IOException {
+        awaitOpen();
+        synchronized (mIndex) {
+            return mIndex.get(ByteUtil.toLong(idm));
+        }
+    }
+
+    /**
+     * @return 記録したIDmの数
+     * @throws IOException 開くときにエラーが発生した場合に発生します
+     */
+    public int getIdmCount() throws IOException {
+        awaitOpen();
+        synchronized (mIndex) {
+            return mIndex.size();
+        }
+    }
+
+    /**
+     * @return 開くときに切り捨てた、途中までしか書き込まれていなかった末尾のバイト数
+     * @throws IOException 開くときにエラーが発生した場合に発生します
+     */
+    public long getTruncatedLength() throws IOException {
+        awaitOpen();
+        return mTruncatedLength;
+    }
+
+    private void awaitOpen() throws IOException {
+        try {
+            mOpenLatch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        synchronized (mLock) {
+            if (mIndex == null)
+                throw mError != null ? mError : new IOException("journal is not opened");
+        }
+    }
+
+    /**
+     * 積まれている記録をすべて保存してから閉じます
+     * 
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            mLock.notifyAll();
+        }
+
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        synchronized (mLock) {
+            if (mError != null)
+                throw mError;
+        }
+    }
+
+    private void runWriter() {
+        try {
+            open();
+        } catch (IOException e) {
+            fail(e);
+            closeQuietly();
+            return;
+        } finally {
+            mOpenLatch.countDown();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 16);
+        CRC32 crc = new CRC32();
+        List<JournalEntry> entries = new ArrayList<JournalEntry>();
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    while (mPendingEntries.isEmpty() && !mClosed) {
+                        mLock.wait();
+                    }
+                    if (mPendingEntries.isEmpty())
+                        break;
+
+                    List<JournalEntry> pending = mPendingEntries;
+                    mPendingEntries = entries;
+                    entries = pending;
+                }
+
+                buffer = commit(entries, buffer, crc);
+
+                synchronized (mLock) {
+                    mCommittedCount += entries.size();
+                    mLock.notifyAll();
+                }
+                entries.clear();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException());
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 記録をまとめて書き込み、1回だけ同期してからインデックスに反映します
+     * 
+     * @return 書き込みに使ったバッファ。足りない場合は大きくしたもの
+     */
+    private ByteBuffer commit(List<JournalEntry> entries, ByteBuffer buffer, CRC32 crc)
+            throws IOException {
+        int size = entries.size() * RECORD_SIZE;
+        if (buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+
+        buffer.clear();
+        for (JournalEntry entry : entries) {
+            int offset = buffer.position();
+            buffer.putLong(entry.getIdm());
+            buffer.putLong(entry.getContentHash());
+            buffer.putLong(entry.getTimestamp());
+            buffer.putInt(entry.getResult());
+            buffer.putInt(entry.getDetail());
+            crc.reset();
+            crc.update(buffer.array(), offset, CRC_OFFSET);
+            buffer.putInt((int)crc.getValue());
+        }
+        buffer.flip();
+
+        long position = mLength;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+        mChannel.force(false);
+        mLength = position;
+
+        synchronized (mIndex) {
+            for (JournalEntry entry : entries) {
+                mIndex.put(entry);
+            }
+            mIndex.setJournalLength(mLength);
+        }
+        return buffer;
+    }
+
+    /**
+     * ジャーナルとインデックスを開き、壊れた末尾を切り捨ててインデックスを最新にします
+     */
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+
+        long fileLength = mChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (fileLength < HEADER_SIZE) {
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+            header.flip();
+            mChannel.truncate(0);
+            mChannel.write(header, 0);
+            mChannel.force(false);
+            fileLength = HEADER_SIZE;
+        } else {
+            mChannel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(8) != RECORD_SIZE)
+                throw new IOException("unsupported journal, " + mFile);
+        }
+
+        JournalIndex index = JournalIndex.open(mIndexFile);
+
+        // インデックスに反映済みの記録は同期済みなので、それより後ろだけを確かめる
+        long position = index.getJournalLength();
+        if (position < HEADER_SIZE || position > fileLength
+                || (position - HEADER_SIZE) % RECORD_SIZE != 0) {
+            index.clear();
+            position = HEADER_SIZE;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * READ_RECORD_COUNT);
+        CRC32 crc = new CRC32();
+        boolean isBroken = false;
+        while (!isBroken && position + RECORD_SIZE <= fileLength) {
+            buffer.clear();
+            long remaining = fileLength - position;
+            if (remaining < buffer.capacity())
+                buffer.limit((int)(remaining - remaining % RECORD_SIZE));
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, position + buffer.position()) < 0)
+                    break;
+            }
+            buffer.flip();
+
+            byte[] array = buffer.array();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int offset = buffer.position();
+                crc.reset();
+                crc.update(array, offset, CRC_OFFSET);
+                if (buffer.getInt(offset + CRC_OFFSET) != (int)crc.getValue()) {
+                    isBroken = true;
+                    break;
+                }
+
+                index.put(new JournalEntry(buffer.getLong(offset), buffer.getLong(offset + 8),
+                        buffer.getLong(offset + 16), buffer.getInt(offset + 24),
+                        buffer.getInt(offset + 28)));
+                buffer.position(offset + RECORD_SIZE);
+                position += RECORD_SIZE;
+            }
+        }
+
+        if (position < fileLength) {
+            mTruncatedLength = fileLength - position;
+            mChannel.truncate(position);
+            mChannel.force(false);
+        }
+        index.setJournalLength(position);
+
+        mLength = position;
+        synchronized (mLock) {
+            mIndex = index;
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (mLock) {
+            if (mError == null)
+                mError = e;
+            mLock.notifyAll();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (mIndex != null) {
+                synchronized (mIndex) {
+                    mIndex.close();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        try {
+            if (mRandomAccessFile != null)
+                mRandomAccessFile.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+/**
+ * URI、テキスト、スマートポスター、MIME のレコードを、できるだけ小さく並べたNDEFメッセージを作成するクラス<br>
+ * ペイロードが255バイト以下のレコードは SR（Short Record）にし、ID は付けません。
+ * URIは最も長く一致するプロトコルを省略します<br>
+ * FeliCa Lite は1回に1ブロックしか書き込めないので、1ブロック小さくなるごとに書き込みが1往復減ります。
+ * 書き込む前に {@link #getByteCount()} と {@link #getBlockCount()} で大きさを確かめられます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class CompactNdefBuilder {
+
+    private static final int FLAG_MB = 0x80;
+
+    private static final int FLAG_ME = 0x40;
+
+    private static final int FLAG_SR = 0x10;
+
+    private static final int MAX_SHORT_PAYLOAD_LENGTH = 0xff;
+
+    private static final byte[] TYPE_URI = new byte[] {
+        'U'
+    };
+
+    private static final byte[] TYPE_TEXT = new byte[] {
+        'T'
+    };
+
+    private static final byte[] TYPE_SMART_POSTER = new byte[] {
+            'S', 'p'
+    };
+
+    /**
+     * 1つのレコード
+     */
+    private static class Record {
+        short mTnf;
+
+        byte[] mType;
+
+        byte[] mPayload;
+
+        Record(short tnf, byte[] type, byte[] payload) {
+            mTnf = tnf;
+            mType = type;
+            mPayload = payload;
+        }
+
+        /**
+         * @return ヘッダを含めたレコードのバイト数
+         */
+        int getByteCount() {
+            boolean isShort = mPayload.length <= MAX_SHORT_PAYLOAD_LENGTH;
+            return 2 + (isShort ? 1 : 4) + mType.length + mPayload.length;
+        }
+
+        /**
+         * @return 書き込んだ後の位置
+         */
+        int writeTo(byte[] dst, int offset, boolean isFirst, boolean isLast) {
+            boolean isShort = mPayload.length <= MAX_SHORT_PAYLOAD_LENGTH;
+            int header = mTnf & 0x07;
+            if (isFirst)
+                header |= FLAG_MB;
+            if (isLast)
+                header |= FLAG_ME;
+            if (isShort)
+                header |= FLAG_SR;
+
+            dst[offset++] = (byte)header;
+            dst[offset++] = (byte)mType.length;
+            if (isShort) {
+                dst[offset++] = (byte)mPayload.length;
+            } else {
+                dst[offset++] = (byte)(mPayload.length >>> 24);
+                dst[offset++] = (byte)(mPayload.length >>> 16);
+                dst[offset++] = (byte)(mPayload.length >>> 8);
+                dst[offset++] = (byte)mPayload.length;
+            }
+            System.arraycopy(mType, 0, dst, offset, mType.length);
+            offset += mType.length;
+            System.arraycopy(mPayload, 0, dst, offset, mPayload.length);
+            return offset + mPayload.length;
+        }
+    }
+
+    private List<Record> mRecords = new ArrayList<Record>();
+
+    /**
+     * URIのレコードを追加します
+     * 
+     * @param uri URI
+     * @return このインスタンス
+     */
+    public CompactNdefBuilder addUri(String uri) {
+        if (uri == null || uri.length() == 0)
+            throw new IllegalArgumentException();
+
+        mRecords.add(createUriRecord(uri));
+        return this;
+    }
+
+    /**
+     * テキストのレコードを追加します
+     * 
+     * @param text テキスト
+     * @param languageCode BCP 47 の言語タグ。"zh-Hant" のような書体や地域も含めてそのまま使い、
+     *            "en_US" のような区切りの "_" だけを "-" にします
+     * @return このインスタンス
+     */
+    public CompactNdefBuilder addText(String text, String languageCode) {
+        if (text == null)
+            throw new IllegalArgumentException();
+
+        mRecords.add(createTextRecord(text, languageCode));
+        return this;
+    }
+
+    /**
+     * テキストのレコードを追加します
+     * 
+     * @param text テキスト
+     * @param locale 言語。言語、国、バリアントを "-" でつないだ言語タグにします
+     * @return このインスタンス
+     */
+    public CompactNdefBuilder addText(String text, Locale locale) {
+        if (locale == null)
+            throw new IllegalArgumentException();
+
+        // Locale#toLanguageTag は API Level 21 からなので、使わずに組み立てる
+        StringBuilder languageTag = new StringBuilder(locale.getLanguage());
+        if (locale.getCountry().length() > 0)
+            languageTag.append('-').append(locale.getCountry());
+        if (locale.getVariant().length() > 0)
+            languageTag.append('-').append(locale.getVariant());
+        return addText(text, languageTag.toString());
+    }
+
+    /**
+     * スマートポスターのレコードを追加します
+     * 
+     * @param uri URI
+     * @param title タイトル。null の場合はタイトルを付けません
+     * @param languageCode タイトルの言語コード
+     * @return このインスタンス
+     */
+    public CompactNdefBuilder addSmartPoster(String uri, String title, String languageCode) {
+        if (uri == null || uri.length() == 0)
+            throw new IllegalArgumentException();
+
+        List<Record> records = new ArrayList<Record>(2);
+        records.add(createUriRecord(uri));
+        if (title != null)
+            records.add(createTextRecord(title, languageCode));
+
+        byte[] payload = toByteArray(records);
+        mRecords.add(new Record(NdefRecord.TNF_WELL_KNOWN, TYPE_SMART_POSTER, payload));
+        return this;
+    }
+
+    /**
+     * MIME タイプのレコードを追加します
+     * 
+     * @param mimeType MIME タイプ
+     * @param data データ
+     * @return このインスタンス
+     */
+    public CompactNdefBuilder addMime(String mimeType, byte[] data) {
+        if (mimeType == null || mimeType.length() == 0 || data == null)
+            throw new IllegalArgumentException();
+
+        mRecords.add(new Record(NdefRecord.TNF_MIME_MEDIA, getBytes(mimeType, "US-ASCII"), data
+                .clone()));
+        return this;
+    }
+
+    /**
+     * @return NDEFメッセージのバイト数
+     */
+    public int getByteCount() {
+        return getByteCount(mRecords);
+    }
+
+    /**
+     * @return NDEFメッセージが使用するデータブロック数
+     */
+    public int getBlockCount() {
+        return (getByteCount() + BlockImage.BLOCK_SIZE - 1) / BlockImage.BLOCK_SIZE;
+    }
+
+    /**
+     * @return FeliCa Lite のデータブロックに収まる場合は true
+     */
+    public boolean isWithinCapacity() {
+        return getBlockCount() <= BlockImage.MAX_DATA_BLOCK_COUNT;
+    }
+
+    /**
+     * @return NDEFメッセージのバイト列
+     */
+    public byte[] toByteArray() {
+        if (mRecords.isEmpty())
+            throw new IllegalStateException("no record");
+
+        return toByteArray(mRecords);
+    }
+
+    /**
+     * @return NDEFメッセージを割り当てたイメージ
+     * @throws SizeOverflowException FeliCa Lite のデータブロックに収まらない場合に発生します
+     */
+    public BlockImage toBlockImage() throws SizeOverflowException {
+        return BlockImage.fromNdefMessage(toByteArray());
+    }
+
+    /**
+     * NDEFメッセージを組み立てます<br>
+     * 各レコードは ID のない NdefRecord にするので、NdefMessage#toByteArray も {@link #toByteArray()}
+     * と同じ大きさになります
+     * 
+     * @return NDEFメッセージ
+     */
+    public NdefMessage build() {
+        if (mRecords.isEmpty())
+            throw new IllegalStateException("no record");
+
+        NdefRecord[] records = new NdefRecord[mRecords.size()];
+        for (int i = 0; i < records.length; i++) {
+            Record record = mRecords.get(i);
+            records[i] = new NdefRecord(record.mTnf, record.mType, new byte[0], record.mPayload);
+        }
+        return new NdefMessage(records);
+    }
+
+    private static Record createUriRecord(String uri) {
+        return new Record(NdefRecord.TNF_WELL_KNOWN, TYPE_URI, UriRecordEncoder.createPayload(uri));
+    }
+
+    private static Record createTextRecord(String text, String languageCode) {
+        byte[] language = getBytes(getLanguageTag(languageCode), "US-ASCII");
+        byte[] textBytes = getBytes(text, "UTF-8");
+
+        // ステータスバイト: UTF-8（bit7 = 0）と言語コードの長さ
+        byte[] payload = new byte[1 + language.length + textBytes.length];
+        payload[0] = (byte)language.length;
+        System.arraycopy(language, 0, payload, 1, language.length);
+        System.arraycopy(textBytes, 0, payload, 1 + language.length, textBytes.length);
+        return new Record(NdefRecord.TNF_WELL_KNOWN, TYPE_TEXT, payload);
+    }
+
+    /**
+     * 言語コードを、テキストレコードに入れる言語タグにします<br>
+     * 主言語だけにすると "zh-Hant" と "zh-Hans" の区別がなくなるので、区切りの "_" を "-" にするだけで、
+     * 書体や地域はそのまま残します
+     * 
+     * @param languageCode "ja-JP" や "en_US"、"zh-Hant" などの言語コード
+     * @return 言語タグ
+     */
+    static String getLanguageTag(String languageCode) {
+        if (languageCode == null || languageCode.length() == 0)
+            throw new IllegalArgumentException();
+
+        // ステータスバイトの下位6ビットが言語タグの長さ
+        int length = languageCode.length();
+        if (length > 0x3f)
+            throw new IllegalArgumentException("invalid language code, " + languageCode);
+
+        char[] languageTag = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = languageCode.charAt(i);
+            if (c == '_')
+                c = '-';
+            boolean isSeparator = c == '-';
+            if (isSeparator && (i == 0 || i == length - 1 || languageTag[i - 1] == '-'))
+                throw new IllegalArgumentException("invalid language code, " + languageCode);
+            if (!isSeparator && !isAlphaNumeric(c))
+                throw new IllegalArgumentException("invalid language code, " + languageCode);
+            languageTag[i] = c;
+        }
+        return new String(languageTag);
+    }
+
+    private static boolean isAlphaNumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static int getByteCount(List<Record> records) {
+        int byteCount = 0;
+        for (Record record : records) {
+            byteCount += record.getByteCount();
+        }
+        return byteCount;
+    }
+
+    private static byte[] toByteArray(List<Record> records) {
+        byte[] bytes = new byte[getByteCount(records)];
+        int offset = 0;
+        int size = records.size();
+        for (int i = 0; i < size; i++) {
+            offset = records.get(i).writeTo(bytes, offset, i == 0, i == size - 1);
+        }
+        return bytes;
+    }
+
+    private static byte[] getBytes(String s, String charsetName) {
+        try {
+            return s.getBytes(charsetName);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+/**
+ * RTD-URI の URI識別子コード（プロトコルの省略形）の一覧<br>
+ * 先頭の文字ごとに、長いプロトコルから順に並べた候補表を持っているので、
+ * 最も長く一致するプロトコルを一度の走査で見つけられます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriPrefix {
+
+    /**
+     * プロトコルリスト<br>
+     * 添字が URI識別子コードです
+     */
+    // @formatter:off
+    private static final String[] PROTOCOLS = new String[] {
+            "",
+            "http://www.",
+            "https://www.",
+            "http://",
+            "https://",
+            "tel:",
+            "mailto:",
+            "ftp://anonymous:anonymous@",
+            "ftp://ftp.",
+            "ftps://",
+            "sftp://",
+            "smb://",
+            "nfs://",
+            "ftp://",
+            "dav://",
+            "news:",
+            "telnet://",
+            "imap:",
+            "rtsp://",
+            "urn:",
+            "pop:",
+            "sip:",
+            "sips:",
+            "tftp:",
+            "btspp://",
+            "btl2cap://",
+            "btgoep://",
+            "tcpobex://",
+            "irdaobex://",
+            "file://",
+            "urn:epc:id:",
+            "urn:epc:tag:",
+            "urn:epc:pat:",
+            "urn:epc:raw:",
+            "urn:epc:",
+            "urn:nfc:",
+    };
+    // @formatter:on
+
+    /**
+     * 先頭の文字ごとの候補<br>
+     * 各候補は長いプロトコルから順に並んでいます
+     */
+    private static final int[][] CANDIDATES = new int[128][];
+    static {
+        int[] counts = new int[CANDIDATES.length];
+        for (int i = 1; i < PROTOCOLS.length; i++) {
+            counts[PROTOCOLS[i].charAt(0)]++;
+        }
+        for (int c = 0; c < CANDIDATES.length; c++) {
+            CANDIDATES[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int i = 1; i < PROTOCOLS.length; i++) {
+            int c = PROTOCOLS[i].charAt(0);
+            int[] candidates = CANDIDATES[c];
+
+            // 挿入ソートで長い順に並べる
+            int position = counts[c]++;
+            while (position > 0
+                    && PROTOCOLS[candidates[position - 1]].length() < PROTOCOLS[i].length()) {
+                candidates[position] = candidates[position - 1];
+                position--;
+            }
+            candidates[position] = i;
+        }
+    }
+
+    private UriPrefix() {
+    }
+
+    /**
+     * URIの先頭に最も長く一致するプロトコルの URI識別子コードを返します
+     * 
+     * @param uri URI
+     * @return URI識別子コード。一致するプロトコルがない場合は0
+     */
+    public static int find(CharSequence uri) {
+        if (uri == null || uri.length() == 0)
+            return 0;
+
+        char first = uri.charAt(0);
+        if (first >= CANDIDATES.length)
+            return 0;
+
+        int[] candidates = CANDIDATES[first];
+        for (int i = 0; i < candidates.length; i++) {
+            if (startsWith(uri, PROTOCOLS[candidates[i]]))
+                return candidates[i];
+        }
+        return 0;
+    }
+
+    /**
+     * @param index URI識別子コード
+     * @return プロトコル
+     */
+    public static String get(int index) {
+        return PROTOCOLS[index];
+    }
+
+    /**
+     * @return URI識別子コードの数
+     */
+    public static int size() {
+        return PROTOCOLS.length;
+    }
+
+    private static boolean startsWith(CharSequence uri, String protocol) {
+        int length = protocol.length();
+        if (uri.length() < length)
+            return false;
+
+        // 1文字目は候補表で一致している
+        for (int i = 1; i < length; i++) {
+            if (uri.charAt(i) != protocol.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import java.io.UnsupportedEncodingException;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+/**
+ * RTD-URI のレコード1つだけのNDEFメッセージを、android.nfc を使わずにバイト列にするクラス<br>
+ * NdefRecord と同じく、ペイロードが255バイト以下の場合は SR（Short Record）形式にします。
+ * FeliCa Lite のデータブロックには255バイトを超えるメッセージは入らないので、SR 形式だけを扱います<br>
+ * 端末がなくても動くので、PCやサーバーでタグの内容をまとめて作成する場合にも使えます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriRecordEncoder {
+
+    /**
+     * レコードヘッダ（MB, ME, SR, TNF=Well Known）
+     */
+    private static final byte RECORD_HEADER = (byte)0xd1;
+
+    /**
+     * レコードタイプ（'U'）
+     */
+    private static final byte RECORD_TYPE = (byte)'U';
+
+    /**
+     * レコードヘッダ、タイプ長、ペイロード長、タイプのバイト数
+     */
+    static final int RECORD_HEADER_LENGTH = 4;
+
+    static final int PAYLOAD_LENGTH_OFFSET = 2;
+
+    /**
+     * SRレコードに入るペイロードの最大長
+     */
+    private static final int MAX_SHORT_PAYLOAD_LENGTH = 0xff;
+
+    /**
+     * FeliCa Lite に書き込めるNDEFメッセージの最大長
+     */
+    public static final int MAX_NDEF_LENGTH = BlockImage.MAX_DATA_BLOCK_COUNT
+            * BlockImage.BLOCK_SIZE;
+
+    private UriRecordEncoder() {
+    }
+
+    /**
+     * URIからペイロード（URI識別子コード + 省略後のURI）を作成します
+     * 
+     * @param uri URI
+     * @return ペイロード
+     */
+    public static byte[] createPayload(String uri) {
+        if (uri == null)
+            throw new IllegalArgumentException();
+
+        int index = UriPrefix.find(uri);
+        byte[] body = getBodyBytes(uri, index);
+
+        byte[] payload = new byte[1 + body.length];
+        payload[0] = (byte)index;
+        System.arraycopy(body, 0, payload, 1, body.length);
+        return payload;
+    }
+
+    /**
+     * URIのNDEFメッセージをバッファに書き込みます
+     * 
+     * @param uri URI
+     * @param dst 書き込み先
+     * @param offset 書き込み先の開始位置
+     * @return 書き込んだNDEFメッセージの長さ
+     * @throws SizeOverflowException SRレコードまたは書き込み先に収まらない場合に発生します
+     */
+    public static int encode(String uri, byte[] dst, int offset) throws SizeOverflowException {
+        if (uri == null || dst == null)
+            throw new IllegalArgumentException();
+
+        int index = UriPrefix.find(uri);
+        byte[] body = getBodyBytes(uri, index);
+
+        int payloadLength = 1 + body.length;
+        int ndefLength = RECORD_HEADER_LENGTH + payloadLength;
+        int capacity = Math.min(dst.length - offset, RECORD_HEADER_LENGTH
+                + MAX_SHORT_PAYLOAD_LENGTH);
+        if (ndefLength > capacity)
+            throw new SizeOverflowException(ndefLength, capacity);
+
+        dst[offset] = RECORD_HEADER;
+        dst[offset + 1] = (byte)0x01;
+        dst[offset + PAYLOAD_LENGTH_OFFSET] = (byte)payloadLength;
+        dst[offset + 3] = RECORD_TYPE;
+        dst[offset + RECORD_HEADER_LENGTH] = (byte)index;
+        System.arraycopy(body, 0, dst, offset + RECORD_HEADER_LENGTH + 1, body.length);
+        return ndefLength;
+    }
+
+    /**
+     * URIのNDEFメッセージを {@link BlockImage} に割り当てます
+     * 
+     * @param uri URI
+     * @param image 書き込み先。属性情報ブロックも作り直します
+     * @param buffer 作業領域。{@link #MAX_NDEF_LENGTH} バイト以上
+     * @throws SizeOverflowException タグに収まらない場合に発生します
+     */
+    public static void encode(String uri, BlockImage image, byte[] buffer)
+            throws SizeOverflowException {
+        if (image == null || buffer == null || buffer.length < MAX_NDEF_LENGTH)
+            throw new IllegalArgumentException();
+
+        int ndefLength = encode(uri, buffer, 0);
+        image.setNdefMessage(buffer, 0, ndefLength);
+    }
+
+    private static byte[] getBodyBytes(String uri, int index) {
+        try {
+            return uri.substring(UriPrefix.get(index).length()).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import java.io.UnsupportedEncodingException;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+/**
+ * 連番を含むURIのテンプレートから、RTD-URI のNDEFを割り当てた {@link BlockImage} を作成するクラス<br>
+ * テンプレートの {@value #SERIAL} を連番に置き換えます。<br>
+ * プロトコルの省略形と固定部分のバイト列は最初に一度だけ作成しておき、連番ごとには
+ * 連番以降のバイト、ペイロード長、Ln、チェックサムだけを書き換えます。<br>
+ * 連番を続けて変換する場合は {@link #cursor(long)} を使います。
+ * カーソルは同じ {@link BlockImage} を使い回すので、連番ごとのメモリ確保はありません
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriTemplateEncoder {
+
+    /**
+     * 連番に置き換える文字列
+     */
+    public static final String SERIAL = "{serial}";
+
+    private static final int MAX_NDEF_LENGTH = UriRecordEncoder.MAX_NDEF_LENGTH;
+
+    /**
+     * long の最大桁数
+     */
+    private static final int MAX_DIGITS = 19;
+
+    /**
+     * 連番の前までのNDEFメッセージ
+     */
+    private byte[] mHead;
+
+    /**
+     * 連番より後ろのURI
+     */
+    private byte[] mTail;
+
+    /**
+     * @param template 連番の位置に {@value #SERIAL} を1つだけ含むURI
+     * @throws SizeOverflowException 固定部分だけでタグに収まらない場合に発生します
+     */
+    public UriTemplateEncoder(String template) throws SizeOverflowException {
+        if (template == null)
+            throw new IllegalArgumentException();
+
+        int serialIndex = template.indexOf(SERIAL);
+        if (serialIndex < 0 || template.indexOf(SERIAL, serialIndex + 1) >= 0)
+            throw new IllegalArgumentException("template must contain one " + SERIAL);
+
+        try {
+            mTail = template.substring(serialIndex + SERIAL.length()).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        // プロトコルは連番より前の固定部分だけから決めます。ペイロード長は連番ごとに書き換えます
+        byte[] buffer = new byte[MAX_NDEF_LENGTH];
+        int headLength = UriRecordEncoder.encode(template.substring(0, serialIndex), buffer, 0);
+        mHead = new byte[headLength];
+        System.arraycopy(buffer, 0, mHead, 0, headLength);
+
+        int minLength = mHead.length + 1 + mTail.length;
+        if (minLength > MAX_NDEF_LENGTH)
+            throw new SizeOverflowException(minLength, MAX_NDEF_LENGTH);
+    }
+
+    /**
+     * 連番を埋め込んだイメージを作成します<br>
+     * 呼び出すたびに新しいイメージを作成します。連番を続けて変換する場合は {@link #cursor(long)} を使ってください
+     * 
+     * @param serial 連番。0以上
+     * @return 属性情報ブロックを含むイメージ
+     * @throws SizeOverflowException 連番を埋め込むとタグに収まらない場合に発生します
+     */
+    public BlockImage encode(long serial) throws SizeOverflowException {
+        return cursor(serial).next();
+    }
+
+    /**
+     * 指定した連番から1つずつ増やしながらイメージを作成するカーソルを返します
+     * 
+     * @param firstSerial 最初の連番。0以上
+     * @return カーソル
+     */
+    public Cursor cursor(long firstSerial) {
+        if (firstSerial < 0)
+            throw new IllegalArgumentException("serial=" + firstSerial);
+
+        return new Cursor(firstSerial);
+    }
+
+    /**
+     * @param serial 連番。0以上
+     * @return 連番を埋め込んだNDEFメッセージの長さ
+     */
+    public int getNdefLength(long serial) {
+        if (serial < 0)
+            throw new IllegalArgumentException("serial=" + serial);
+
+        int digitCount = 1;
+        while (serial >= 10) {
+            serial /= 10;
+            digitCount++;
+        }
+        return mHead.length + digitCount + mTail.length;
+    }
+
+    /**
+     * 連番を1つずつ増やしながらイメージを作成するカーソル<br>
+     * {@link #next()} は呼び出すたびに同じ {@link BlockImage} を書き換えて返すので、
+     * 返したイメージは次に呼び出すまでしか有効ではありません。保持しておく場合は {@link BlockImage#copy()}
+     * してください<br>
+     * カーソルはスレッドセーフではありません。同じエンコーダから作成したカーソルどうしは、
+     * それぞれ別のイメージを持つので、別のスレッドで使えます
+     * 
+     * @author tomorrowkey@gmail.com
+     */
+    public class Cursor {
+
+        private long mSerial;
+
+        /**
+         * 連番を10進数にする作業領域
+         */
+        private byte[] mDigits = new byte[MAX_DIGITS];
+
+        private BlockImage mImage = new BlockImage();
+
+        /**
+         * mImage に書き込んだNDEFメッセージの長さ。固定部分を書き込む前は -1
+         */
+        private int mLastNdefLength = -1;
+
+        private Cursor(long firstSerial) {
+            mSerial = firstSerial;
+        }
+
+        /**
+         * @return 次の {@link #next()} で埋め込む連番
+         */
+        public long getSerial() {
+            return mSerial;
+        }
+
+        /**
+         * 連番を埋め込んだイメージを作成して、連番を1つ進めます<br>
+         * 返すイメージは次に呼び出すまで有効です。タグに収まらない場合は連番を進めません
+         * 
+         * @return 属性情報ブロックを含むイメージ
+         * @throws SizeOverflowException 連番を埋め込むとタグに収まらない場合に発生します
+         */
+        public BlockImage next() throws SizeOverflowException {
+            long serial = mSerial;
+            if (serial < 0)
+                throw new IllegalStateException("serial overflow");
+
+            byte[] digits = mDigits;
+            int digitOffset = digits.length;
+            long value = serial;
+            do {
+                digits[--digitOffset] = (byte)('0' + (value % 10));
+                value /= 10;
+            } while (value > 0);
+            int digitCount = digits.length - digitOffset;
+
+            int ndefLength = mHead.length + digitCount + mTail.length;
+            if (ndefLength > MAX_NDEF_LENGTH)
+                throw new SizeOverflowException(ndefLength, MAX_NDEF_LENGTH);
+            int payloadLength = ndefLength - UriRecordEncoder.RECORD_HEADER_LENGTH;
+
+            BlockImage image = mImage;
+            int offset = BlockImage.getBlockOffset(1);
+            if (mLastNdefLength < 0) {
+                image.put(offset, mHead, 0, mHead.length);
+                image.writeAttribute(0);
+            }
+            image.put(offset + UriRecordEncoder.PAYLOAD_LENGTH_OFFSET, (byte)payloadLength);
+
+            offset += mHead.length;
+            image.put(offset, digits, digitOffset, digitCount);
+            offset += digitCount;
+            image.put(offset, mTail, 0, mTail.length);
+
+            // 前回より短くなった場合は、残った部分を0で埋めます
+            if (mLastNdefLength > ndefLength)
+                image.clear(BlockImage.getBlockOffset(1) + ndefLength, mLastNdefLength
+                        - ndefLength);
+
+            image.writeLength(ndefLength);
+            mLastNdefLength = ndefLength;
+            mSerial = serial + 1;
+            return image;
+        }
+    }
+}
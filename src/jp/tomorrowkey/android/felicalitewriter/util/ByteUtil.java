@@ -23,26 +23,41 @@ package jp.tomorrowkey.android.felicalitewriter.util;
  */
 public class ByteUtil {
 
+    /**
+     * 16進表記に使う文字
+     */
+    private static final char[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * 文字から16進の値への変換表。16進の文字でない場合は -1
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+        }
+    }
+
     /**
      * byte配列を16進表記の文字列に変換する<br>
-     * byteから16進表記の変換については{@code Util#byteToString(byte)} を利用する.<br>
      * 各文字列の連結には'-'を使用する.
      * 
      * @param bytes byte配列
      * @return
      */
     public static String byteArrayToString(byte[] bytes) {
-        StringBuilder buffer = new StringBuilder();
-        boolean isFirst = true;
-        for (byte b : bytes) {
-            if (isFirst) {
-                isFirst = false;
-            } else {
-                buffer.append("-");
-            }
-            buffer.append(byteToString(b));
-        }
-
+        StringBuilder buffer = new StringBuilder(bytes.length * 3);
+        appendHex(buffer, bytes, 0, bytes.length, '-');
         return buffer.toString();
     }
 
@@ -54,12 +69,122 @@ public class ByteUtil {
      * @return
      */
     public static String byteToString(byte b) {
-        String s = Integer.toHexString(b & 0xff).toUpperCase();
-        if (s.length() > 1) {
-            return s;
-        } else {
-            return "0" + s;
+        return new String(new char[] {
+                HEX_DIGITS[(b >> 4) & 0x0f], HEX_DIGITS[b & 0x0f]
+        });
+    }
+
+    /**
+     * byte配列の一部を16進表記で StringBuilder に追加する<br>
+     * 変換表を引くだけなので、1バイトごとに文字列を作りません
+     * 
+     * @param buffer 追加先
+     * @param bytes byte配列
+     * @param offset 開始位置
+     * @param length 長さ
+     * @param separator バイトの間に入れる文字。0 の場合は入れない
+     */
+    public static void appendHex(StringBuilder buffer, byte[] bytes, int offset, int length,
+            char separator) {
+        for (int i = offset; i < offset + length; i++) {
+            if (separator != 0 && i != offset)
+                buffer.append(separator);
+            buffer.append(HEX_DIGITS[(bytes[i] >> 4) & 0x0f]);
+            buffer.append(HEX_DIGITS[bytes[i] & 0x0f]);
+        }
+    }
+
+    /**
+     * 16進表記の文字列をbyte配列に変換する<br>
+     * {@link #byteArrayToString(byte[])} や {@link #appendHex} の出力を読み戻すためのもの.<br>
+     * 大文字と小文字のどちらも受け付け、'-'、':'、空白の区切り文字は読み飛ばす.
+     * 
+     * @param s 16進表記の文字列
+     * @return
+     * @throws IllegalArgumentException 16進の文字でない文字を含む場合、または桁数が奇数の場合
+     */
+    public static byte[] parseHex(CharSequence s) {
+        return parseHex(s, 0, s.length());
+    }
+
+    /**
+     * 文字列の一部を16進表記としてbyte配列に変換する
+     * 
+     * @param s 16進表記を含む文字列
+     * @param start 開始位置
+     * @param end 終了位置（この位置の文字は含まない）
+     * @return
+     * @throws IllegalArgumentException 16進の文字でない文字を含む場合、または桁数が奇数の場合
+     * @see #parseHex(CharSequence)
+     */
+    public static byte[] parseHex(CharSequence s, int start, int end) {
+        int digitCount = 0;
+        for (int i = start; i < end; i++) {
+            if (!isHexSeparator(s.charAt(i)))
+                digitCount++;
+        }
+        if ((digitCount & 1) != 0)
+            throw new IllegalArgumentException("odd number of hex digits");
+
+        byte[] bytes = new byte[digitCount / 2];
+        int high = -1;
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (isHexSeparator(c))
+                continue;
+
+            int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+            if (value < 0)
+                throw new IllegalArgumentException("illegal hex character: " + c);
+
+            if (high < 0) {
+                high = value;
+            } else {
+                bytes[index++] = (byte)((high << 4) | value);
+                high = -1;
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean isHexSeparator(char c) {
+        return c == '-' || c == ':' || c == ' ' || c == '\t';
+    }
+
+    /**
+     * byte配列をビッグエンディアンの数値として long に変換する.<br>
+     * IDm のような8バイト以下の識別子を、マップのキーに使うためのもの.
+     * 
+     * @param bytes 8バイト以下のbyte配列
+     * @return
+     */
+    public static long toLong(byte[] bytes) {
+        if (bytes == null || bytes.length > 8)
+            throw new IllegalArgumentException();
+
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * byte配列の一部から64bitのハッシュ値（FNV-1a）を計算する.
+     * 
+     * @param bytes byte配列
+     * @param offset 開始位置
+     * @param length 長さ
+     * @return
+     */
+    public static long hash64(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
         }
+        return hash;
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 件数の上限と有効期限を持つ LRU キャッシュ<br>
+ * 上限を超えた場合は最も長く使われていない要素から捨て、有効期限を過ぎた要素は取得時に捨てます
+ * 
+ * @author tomorrowkey@gmail.com
+ * @param <K> キー
+ * @param <V> 値
+ */
+public class ExpiringLruCache<K, V> {
+
+    /**
+     * 値と登録した時刻
+     */
+    private static class TimedValue<V> {
+        V mValue;
+
+        long mTime;
+
+        TimedValue(V value, long time) {
+            mValue = value;
+            mTime = time;
+        }
+    }
+
+    private LinkedHashMap<K, TimedValue<V>> mMap;
+
+    /**
+     * 有効期限（ミリ秒）
+     */
+    private long mExpireMillis;
+
+    /**
+     * @param maxSize 件数の上限
+     * @param expireMillis 有効期限（ミリ秒）
+     */
+    public ExpiringLruCache(final int maxSize, long expireMillis) {
+        if (maxSize <= 0 || expireMillis <= 0)
+            throw new IllegalArgumentException();
+
+        mExpireMillis = expireMillis;
+        mMap = new LinkedHashMap<K, TimedValue<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, TimedValue<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key キー
+     * @return 有効期限内の値。ない場合は null
+     */
+    public V get(K key) {
+        return get(key, now());
+    }
+
+    /**
+     * @param key キー
+     * @param now 現在時刻（ミリ秒）
+     * @return 有効期限内の値。ない場合は null
+     */
+    public synchronized V get(K key, long now) {
+        TimedValue<V> entry = mMap.get(key);
+        if (entry == null)
+            return null;
+
+        if (now - entry.mTime >= mExpireMillis) {
+            mMap.remove(key);
+            return null;
+        }
+        return entry.mValue;
+    }
+
+    /**
+     * 値を登録します。有効期限は登録した時刻から数えます
+     * 
+     * @param key キー
+     * @param value 値
+     */
+    public void put(K key, V value) {
+        put(key, value, now());
+    }
+
+    /**
+     * 値を登録します。有効期限は登録した時刻から数えます
+     * 
+     * @param key キー
+     * @param value 値
+     * @param now 現在時刻（ミリ秒）
+     */
+    public synchronized void put(K key, V value, long now) {
+        mMap.put(key, new TimedValue<V>(value, now));
+    }
+
+    /**
+     * @param key キー
+     * @return 取り除いた値。ない場合は null
+     */
+    public synchronized V remove(K key) {
+        TimedValue<V> entry = mMap.remove(key);
+        return entry == null ? null : entry.mValue;
+    }
+
+    /**
+     * @return 期限切れを含めた登録件数
+     */
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    /**
+     * すべての値を取り除きます
+     */
+    public synchronized void clear() {
+        mMap.clear();
+    }
+
+    /**
+     * @return 単調増加する現在時刻（ミリ秒）
+     */
+    protected long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ロックを使わずに処理時間を記録するヒストグラム<br>
+ * i 番目の区間はおよそ 2^i マイクロ秒から 2^(i+1) マイクロ秒までの処理時間を数えます。
+ * 記録するときはメモリを確保しないので、RF通信の合間に呼び出しても影響がありません
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class LatencyHistogram {
+
+    /**
+     * 区間の数。最後の区間には約8秒以上をまとめて数えます
+     */
+    public static final int BUCKET_COUNT = 24;
+
+    private AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private AtomicLong mCount = new AtomicLong();
+
+    /**
+     * 合計時間（ナノ秒）
+     */
+    private AtomicLong mTotalNanos = new AtomicLong();
+
+    /**
+     * 最大時間（ナノ秒）
+     */
+    private AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * 処理時間を記録します
+     * 
+     * @param nanos 処理時間（ナノ秒）
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        mBuckets.incrementAndGet(getBucketIndex(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * 開始時刻から現在までの処理時間を記録します
+     * 
+     * @param startNanos {@link System#nanoTime()} で取得した開始時刻
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param nanos 処理時間（ナノ秒）
+     * @return 処理時間を数える区間
+     */
+    static int getBucketIndex(long nanos) {
+        long micros = nanos / 1000L;
+        int index = 63 - Long.numberOfLeadingZeros(micros);
+        if (index < 0)
+            return 0;
+        if (index >= BUCKET_COUNT)
+            return BUCKET_COUNT - 1;
+        return index;
+    }
+
+    /**
+     * @param index 区間
+     * @return 区間の上限（マイクロ秒）
+     */
+    public static long getBucketUpperBoundMicros(int index) {
+        return 1L << (index + 1);
+    }
+
+    /**
+     * @return 記録した回数
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return 合計時間（ナノ秒）
+     */
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    /**
+     * @return 最大時間（ナノ秒）
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @return 平均時間（マイクロ秒）。記録がない場合は0
+     */
+    public long getMeanMicros() {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        return mTotalNanos.get() / count / 1000L;
+    }
+
+    /**
+     * 区間ごとの回数をコピーします<br>
+     * 記録と同時に呼び出した場合、各区間の値はそれぞれの時点のものになります
+     * 
+     * @return 区間ごとの回数
+     */
+    public long[] getBuckets() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return buckets;
+    }
+
+    /**
+     * 区間の上限から、およその百分位数を求めます
+     * 
+     * @param percentile 百分位（0 より大きく 100 以下）
+     * @return 百分位数（マイクロ秒）。記録がない場合は0
+     */
+    public long getPercentileMicros(double percentile) {
+        if (percentile <= 0 || percentile > 100)
+            throw new IllegalArgumentException();
+
+        long[] buckets = getBuckets();
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        if (count == 0)
+            return 0;
+
+        long threshold = (long)Math.ceil(count * percentile / 100);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += buckets[i];
+            if (sum >= threshold)
+                return getBucketUpperBoundMicros(i);
+        }
+        return getBucketUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * 記録をすべて消します
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * 1行の文字列として書き出します<br>
+     * 形式は「count=.. mean=.. p50=.. p90=.. p99=.. max=.. buckets=b0,b1,..」で、時間はマイクロ秒です
+     * 
+     * @param builder 書き出し先
+     */
+    public void appendTo(StringBuilder builder) {
+        builder.append("count=").append(getCount());
+        builder.append(" mean=").append(getMeanMicros());
+        builder.append(" p50=").append(getPercentileMicros(50));
+        builder.append(" p90=").append(getPercentileMicros(90));
+        builder.append(" p99=").append(getPercentileMicros(99));
+        builder.append(" max=").append(getMaxNanos() / 1000L);
+        builder.append(" buckets=");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(mBuckets.get(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder);
+        return builder.toString();
+    }
+}
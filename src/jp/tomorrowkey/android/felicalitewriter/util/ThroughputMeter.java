@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.util;
+
+/**
+ * 処理した件数と経過時間から、1分あたりの処理件数を求めるクラス
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class ThroughputMeter {
+
+    /**
+     * 計測を始めた時刻（ミリ秒）。未開始の場合は負の値
+     */
+    private long mStartTime = -1;
+
+    /**
+     * 最後に記録した時刻（ミリ秒）
+     */
+    private long mLastTime;
+
+    /**
+     * 記録した件数
+     */
+    private int mCount;
+
+    /**
+     * 計測を始めた時点で記録済みだった件数<br>
+     * 最初の記録で計測を始めた場合、その1件は経過時間に含まれないため1になります
+     */
+    private int mCountAtStart;
+
+    /**
+     * 現在時刻から計測を始めます
+     */
+    public void start() {
+        start(now());
+    }
+
+    /**
+     * 指定した時刻から計測を始めます
+     * 
+     * @param now 時刻（ミリ秒）
+     */
+    public synchronized void start(long now) {
+        mStartTime = now;
+        mLastTime = now;
+        mCount = 0;
+        mCountAtStart = 0;
+    }
+
+    /**
+     * 現在時刻で1件の完了を記録します
+     */
+    public void record() {
+        record(now());
+    }
+
+    /**
+     * 指定した時刻で1件の完了を記録します<br>
+     * 計測を始めていない場合は、この時刻から計測を始めます
+     * 
+     * @param now 時刻（ミリ秒）
+     */
+    public synchronized void record(long now) {
+        if (mStartTime < 0) {
+            start(now);
+            mCountAtStart = 1;
+        }
+
+        mLastTime = now;
+        mCount++;
+    }
+
+    /**
+     * @return 記録した件数
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * 計測を始めてから最後に記録するまでの、1分あたりの件数を返します<br>
+     * 最初の記録で計測を始めた場合は、その1件を除いた件数を経過時間で割ります
+     * 
+     * @return 1分あたりの件数
+     */
+    public synchronized double getCountPerMinute() {
+        long elapsed = mLastTime - mStartTime;
+        if (mStartTime < 0 || elapsed <= 0)
+            return 0.0;
+
+        return (mCount - mCountAtStart) * 60000.0 / elapsed;
+    }
+
+    /**
+     * 時計の変更に影響されない単調増加の時刻を返します
+     * 
+     * @return 時刻（ミリ秒）
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
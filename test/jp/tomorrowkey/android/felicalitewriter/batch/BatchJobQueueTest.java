@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteSimulator;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag;
+import jp.tomorrowkey.android.felicalitewriter.ndef.UriRecordEncoder;
+
+import org.junit.Test;
+
+/**
+ * {@link BatchJobQueue} で、タッチしたタグごとに次のURIを書き込む流れをシミュレータで確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class BatchJobQueueTest {
+
+    private static final List<String> URIS = Arrays.asList("http://www.example.com/1",
+            "  ", "http://www.example.com/2", "urn:epc:id:sgtin:0614141.812345.3");
+
+    @Test
+    public void eachTapWritesNextUri() throws Exception {
+        BatchJobQueue queue = new BatchJobQueue(URIS);
+        assertEquals(3, queue.size());
+
+        for (int i = 0; i < 3; i++) {
+            FeliCaLiteSimulator simulator = createTag(i);
+            String uri = queue.getNextUri();
+
+            assertEquals(uri, queue.writeNext(createFeliCaLiteTag(simulator), simulator.getIdm()));
+            assertWritten(uri, simulator);
+        }
+
+        assertFalse(queue.hasNext());
+        assertEquals(3, queue.getPosition());
+        assertEquals(3, queue.getThroughputMeter().getCount());
+    }
+
+    @Test
+    public void lostTagDoesNotConsumeJob() throws Exception {
+        BatchJobQueue queue = new BatchJobQueue(URIS);
+        FeliCaLiteSimulator simulator = createTag(0);
+        // MC の読み込みと書き込み、属性情報ブロックのあとでタグが離れる
+        simulator.setFailAfter(3);
+
+        try {
+            queue.writeNext(createFeliCaLiteTag(simulator), simulator.getIdm());
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+        assertEquals(0, queue.getPosition());
+
+        simulator.present();
+        String uri = queue.writeNext(createFeliCaLiteTag(simulator), simulator.getIdm());
+        assertEquals(URIS.get(0), uri);
+        assertWritten(uri, simulator);
+        assertEquals(1, queue.getPosition());
+    }
+
+    @Test
+    public void savedPositionResumes() throws Exception {
+        BatchJobQueue queue = new BatchJobQueue(URIS);
+        queue.setPosition(2);
+
+        FeliCaLiteSimulator simulator = createTag(0);
+        String uri = queue.writeNext(createFeliCaLiteTag(simulator), simulator.getIdm());
+
+        assertEquals(URIS.get(3), uri);
+        assertFalse(queue.hasNext());
+        assertEquals(new BatchJobQueue(URIS).getJobListHash(), queue.getJobListHash());
+    }
+
+    @Test
+    public void contentHashIdentifiesJobs() throws Exception {
+        BatchJobQueue queue = new BatchJobQueue(URIS);
+        long first = queue.getNextWritePlan().getContentHash();
+        queue.complete();
+
+        assertTrue(queue.contains(first));
+        assertTrue(queue.getNextWritePlan().getContentHash() != first);
+        assertFalse(new BatchJobQueue(Arrays.asList("tel:117")).contains(first));
+    }
+
+    private static FeliCaLiteSimulator createTag(int n) {
+        return new FeliCaLiteSimulator(new byte[] {
+                0x01, 0x2e, 0x00, 0x00, 0x00, 0x00, 0x00, (byte)n
+        });
+    }
+
+    private static FeliCaLiteTag createFeliCaLiteTag(FeliCaLiteSimulator simulator) {
+        FeliCaLiteTag tag = new FeliCaLiteTag(simulator);
+        tag.setTimeout(20);
+        return tag;
+    }
+
+    /**
+     * URIを割り当てたイメージの、使っているブロックがタグに書き込まれていることを確かめます
+     */
+    private static void assertWritten(String uri, FeliCaLiteSimulator simulator)
+            throws Exception {
+        BlockImage expected = new BlockImage();
+        UriRecordEncoder.encode(uri, expected, new byte[UriRecordEncoder.MAX_NDEF_LENGTH]);
+        for (int i = 0; i <= expected.getUsedDataBlockCount(); i++) {
+            assertTrue("block " + i, expected.isSameBlock(i, simulator.getBlock(i), 0));
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link AsyncTagWriter} のキャンセルと、タグが離れたときの動作を確かめます<br>
+ * 書き込みはテストのスレッドで順に実行し、コールバックはその場で呼び出します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class AsyncTagWriterTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    private SerialExecutor mExecutor;
+
+    private AsyncTagWriter mWriter;
+
+    private WritePlan mWritePlan;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+        mExecutor = new SerialExecutor();
+        mWriter = new AsyncTagWriter(mExecutor, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mWritePlan = FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(40),
+                WriteMode.USED_BLOCKS);
+    }
+
+    @After
+    public void tearDown() {
+        // キャンセルで割り込まれた状態を次のテストに残さない
+        Thread.interrupted();
+    }
+
+    @Test
+    public void tagLostCancelsPendingWrites() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        mWriter.write(mTag, IDM, mWritePlan, first);
+        Future<WriteResult> pending = mWriter.write(mTag, IDM, mWritePlan, second);
+        mSimulator.setFailAfter(0);
+
+        mExecutor.runAll();
+
+        assertEquals(1, first.mErrors.size());
+        assertTrue(FeliCaLiteTag.isTagLost(first.mErrors.get(0)));
+        assertTrue(pending.isCancelled());
+        assertEquals(1, second.mErrors.size());
+        assertTrue(second.mErrors.get(0) instanceof CancellationException);
+        // 続きの書き込みはタグにコマンドを送らない
+        assertEquals(1, mSimulator.getTransceiveCount());
+        assertFalse(mWriter.isBusy());
+    }
+
+    @Test
+    public void cancellationIsReportedAfterWriteStops() throws Exception {
+        final List<Future<WriteResult>> futures = new ArrayList<Future<WriteResult>>();
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onProgress(byte[] idm, int writtenCount, int totalCount) {
+                futures.get(0).cancel(true);
+            }
+        };
+        futures.add(mWriter.write(mTag, IDM, mWritePlan, callback));
+
+        mExecutor.runAll();
+
+        assertEquals(1, callback.mErrors.size());
+        assertTrue(callback.mErrors.get(0) instanceof CancellationException);
+        // 通知を受けた時点で書き込みは中断し、タグとの接続も閉じている
+        assertFalse(callback.mConnectedOnError);
+        assertEquals(callback.mWriteCommandCountOnError, mSimulator.getWriteCommandCount());
+        assertTrue(mSimulator.getWriteCommandCount() < mWritePlan.getFrameCount());
+    }
+
+    @Test
+    public void queuedWritesRunInOrder() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        mWriter.write(mTag, IDM, mWritePlan, first);
+        mWriter.write(mTag, IDM, mWritePlan, second);
+
+        mExecutor.runAll();
+
+        assertEquals(1, first.mResults.size());
+        assertEquals(1, second.mResults.size());
+        assertFalse(mWriter.isBusy());
+    }
+
+    /**
+     * 受け付けた Runnable を {@link #runAll()} で順に実行する Executor
+     */
+    private static class SerialExecutor implements Executor {
+
+        private ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            Runnable command;
+            while ((command = mQueue.poll()) != null) {
+                command.run();
+            }
+        }
+    }
+
+    private class RecordingCallback implements AsyncTagWriter.Callback {
+
+        List<WriteResult> mResults = new ArrayList<WriteResult>();
+
+        List<Exception> mErrors = new ArrayList<Exception>();
+
+        boolean mConnectedOnError;
+
+        int mWriteCommandCountOnError;
+
+        @Override
+        public void onProgress(byte[] idm, int writtenCount, int totalCount) {
+        }
+
+        @Override
+        public void onComplete(byte[] idm, WriteResult result) {
+            mResults.add(result);
+        }
+
+        @Override
+        public void onError(byte[] idm, Exception e) {
+            mErrors.add(e);
+            mConnectedOnError = mTag.isConnected();
+            mWriteCommandCountOnError = mSimulator.getWriteCommandCount();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * {@link CommandTrace} の上書きと、複数のスレッドから記録したときの整合性を確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class CommandTraceTest {
+
+    @Test
+    public void oldRecordsAreOverwritten() {
+        CommandTrace trace = new CommandTrace(4);
+        for (int i = 0; i < 6; i++) {
+            byte[] frame = createFrame(i);
+            trace.record(i * 1000L, 500L, frame, 0, frame.length, frame);
+        }
+
+        String[] lines = dump(trace);
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("2 "));
+        assertTrue(lines[3].startsWith("5 "));
+        assertEquals(6, trace.getRecordCount());
+    }
+
+    @Test
+    public void missingResponseIsMarked() {
+        CommandTrace trace = new CommandTrace(4);
+        byte[] frame = createFrame(1);
+        trace.record(0L, 0L, frame, 0, frame.length, null);
+
+        String[] lines = dump(trace);
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith(" < !"));
+    }
+
+    @Test
+    public void clearDropsRecords() {
+        CommandTrace trace = new CommandTrace(4);
+        byte[] frame = createFrame(1);
+        trace.record(0L, 0L, frame, 0, frame.length, frame);
+        trace.clear();
+
+        StringBuilder buffer = new StringBuilder();
+        assertEquals(0, trace.dump(buffer));
+
+        trace.record(0L, 0L, frame, 0, frame.length, frame);
+        assertEquals(1, dump(trace).length);
+    }
+
+    @Test
+    public void concurrentWritersNeverMixFrames() throws Exception {
+        final CommandTrace trace = new CommandTrace(4);
+        final AtomicReference<String> broken = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int id = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // スレッドごとに長さと内容の違うフレームを、コマンドとレスポンスの両方に使う
+                    byte[] frame = new byte[10 + id * 20];
+                    frame[0] = (byte)frame.length;
+                    for (int i = 1; i < frame.length; i++) {
+                        frame[i] = (byte)id;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        trace.record(i, 0L, frame, 0, frame.length, frame);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (String line : dump(trace)) {
+                if (!isConsistent(line))
+                    broken.compareAndSet(null, line);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(null, broken.get());
+        for (String line : dump(trace)) {
+            assertTrue(line, isConsistent(line));
+        }
+    }
+
+    /**
+     * @return コマンドとレスポンスが同じフレームで、長さが書き込んだスレッドのものと一致すれば true
+     */
+    private static boolean isConsistent(String line) {
+        int commandStart = line.indexOf(" > ");
+        int responseStart = line.indexOf(" < ");
+        String command = line.substring(commandStart + 3, responseStart);
+        String response = line.substring(responseStart + 3);
+        if (!command.equals(response))
+            return false;
+
+        int id = Integer.parseInt(command.substring(2, 4), 16);
+        return command.length() == (10 + id * 20) * 2;
+    }
+
+    private static byte[] createFrame(int n) {
+        return new byte[] {
+                0x04, 0x06, (byte)n, 0x00
+        };
+    }
+
+    private static String[] dump(CommandTrace trace) {
+        StringBuilder buffer = new StringBuilder();
+        if (trace.dump(buffer) == 0)
+            return new String[0];
+        return buffer.toString().split("\n");
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link FeliCaLiteTag#connect()} から {@link FeliCaLiteTag#close()} までのコマンドが、
+ * 1回の接続で実行されることをシミュレータの接続回数で確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class ConnectionTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    private WritePlan mWritePlan;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+        mWritePlan = FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(200),
+                WriteMode.ZERO_FILL);
+    }
+
+    @Test
+    public void sessionConnectsOnce() throws Exception {
+        mTag.connect();
+        try {
+            mTag.applyNdefFlag(IDM, true);
+            mTag.write(IDM, mWritePlan);
+        } finally {
+            mTag.close();
+        }
+
+        assertEquals(1, mSimulator.getConnectCount());
+        assertEquals(1, mTag.getConnectCount());
+        // MC の読み込みと書き込み + 属性情報ブロック2回 + データブロック13個
+        assertEquals(2 + 15, mSimulator.getTransceiveCount());
+        assertFalse(mTag.isConnected());
+    }
+
+    @Test
+    public void eachOperationConnectsOnceWithoutSession() throws Exception {
+        mTag.applyNdefFlag(IDM, true);
+        mTag.write(IDM, mWritePlan);
+
+        // コマンドごとではなく、操作ごとに1回
+        assertEquals(2, mSimulator.getConnectCount());
+    }
+
+    @Test
+    public void nestedConnectKeepsConnection() throws Exception {
+        mTag.connect();
+        mTag.connect();
+        mTag.close();
+        assertTrue(mTag.isConnected());
+        mTag.close();
+
+        assertFalse(mTag.isConnected());
+        assertEquals(1, mSimulator.getConnectCount());
+        // 余分な close は無視する
+        mTag.close();
+    }
+
+}
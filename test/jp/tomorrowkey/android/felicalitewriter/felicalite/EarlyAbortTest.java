@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.StatusFlagException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * タグが書き込みを拒否したときに、残りのブロックを送らずに中断することをシミュレータで確かめます<br>
+ * MC_SP で読み込み専用にしたブロックには、シミュレータがエラーのステータスフラグを返します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class EarlyAbortTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    /**
+     * シミュレータの1往復の応答遅延（ナノ秒）
+     */
+    private static final long LATENCY_NANOS = 2000000L;
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    private WritePlan mWritePlan;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mSimulator.setLatency(LATENCY_NANOS);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+        mWritePlan = FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(40),
+                WriteMode.ZERO_FILL);
+    }
+
+    @Test
+    public void rejectedDataBlockStopsWrite() throws Exception {
+        setReadOnly(1);
+
+        StatusFlagException e = writeExpectingStatusError();
+
+        assertEquals(1, e.getBlockNumber());
+        assertEquals(0x01, e.getStatusFlag1());
+        assertEquals(FeliCaLiteSimulator.STATUS_ILLEGAL_BLOCK_NUMBER, e.getStatusFlag2());
+        // 属性情報ブロックとブロック1だけを送り、残りの13コマンドは送らない
+        assertEquals(2, mSimulator.getTransceiveCount());
+        int savedRoundTrips = mWritePlan.getFrameCount() - mSimulator.getTransceiveCount();
+        assertEquals(13, savedRoundTrips);
+        assertEquals(26, savedRoundTrips * LATENCY_NANOS / 1000000L);
+        // ブロック2以降は書き込まれていない
+        assertTrue(Arrays.equals(new byte[BlockImage.BLOCK_SIZE], mSimulator.getBlock(2)));
+    }
+
+    @Test
+    public void rejectedAttributeBlockStopsBeforeData() throws Exception {
+        setReadOnly(0);
+
+        StatusFlagException e = writeExpectingStatusError();
+
+        assertEquals(0, e.getBlockNumber());
+        assertEquals(1, mSimulator.getTransceiveCount());
+    }
+
+    /**
+     * MC_SP の対応するビットを0にして、S_PAD を読み込み専用にします
+     */
+    private void setReadOnly(int blockNumber) {
+        byte[] mc = mSimulator.getBlock(FeliCaLiteTag.BLOCK_MC);
+        int mcSp = (mc[0] & 0xff) | ((mc[1] & 0xff) << 8);
+        mcSp &= ~(1 << blockNumber);
+        mc[0] = (byte)mcSp;
+        mc[1] = (byte)(mcSp >>> 8);
+        mSimulator.setBlock(FeliCaLiteTag.BLOCK_MC, mc);
+        mSimulator.resetCounters();
+    }
+
+    private StatusFlagException writeExpectingStatusError() throws Exception {
+        try {
+            mTag.write(IDM, mWritePlan);
+            fail();
+            return null;
+        } catch (StatusFlagException e) {
+            return e;
+        }
+    }
+
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * メモリ上で FeliCa Lite の振る舞いを再現する {@link Transceiver}<br>
+ * S_PAD0〜13、REG と システムブロックを持ち、Read / Write Without Encryption
+ * に実機と同じ形式のレスポンスとステータスフラグを返します。<br>
+ * コマンドごとの遅延と、タグが離れたときの失敗を指定できるので、端末やタグなしで性能を測定できます。<br>
+ * タグが離れた場合は、android.jar がなくても作成できる {@link NoResponseException} が発生します
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class FeliCaLiteSimulator implements Transceiver {
+
+    /**
+     * ブロックのバイト数
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * 正常終了
+     */
+    public static final int STATUS_SUCCESS = 0x00;
+
+    /**
+     * ブロック数が不正
+     */
+    public static final int STATUS_ILLEGAL_BLOCK_COUNT = 0xa2;
+
+    /**
+     * サービスコードが不正
+     */
+    public static final int STATUS_ILLEGAL_SERVICE_CODE = 0xa6;
+
+    /**
+     * ブロックリストのアクセスモードが不正
+     */
+    public static final int STATUS_ILLEGAL_ACCESS_MODE = 0xa7;
+
+    /**
+     * ブロック番号が不正、または読み書きできないブロック
+     */
+    public static final int STATUS_ILLEGAL_BLOCK_NUMBER = 0xa8;
+
+    /**
+     * サービス数が不正
+     */
+    public static final int STATUS_ILLEGAL_SERVICE_COUNT = 0xa1;
+
+    private static final byte POLLING = (byte)0x00;
+
+    private static final byte READ_WITHOUT_ENCRYPTION = (byte)0x06;
+
+    private static final byte WRITE_WITHOUT_ENCRYPTION = (byte)0x08;
+
+    /**
+     * 読み書きできるサービスコード
+     */
+    private static final int SERVICE_READ_WRITE = 0x0009;
+
+    /**
+     * 読み込み専用のサービスコード
+     */
+    private static final int SERVICE_READ_ONLY = 0x000b;
+
+    private static final int BLOCK_REG = 0x0e;
+
+    private static final int BLOCK_MAC = 0x81;
+
+    private static final int BLOCK_CK = 0x87;
+
+    /**
+     * ブロックの内容<br>
+     * 存在しないブロックは null
+     */
+    private byte[][] mBlocks = new byte[0x100][];
+
+    private byte[] mIdm;
+
+    private byte[] mPmm;
+
+    private boolean mConnected;
+
+    /**
+     * タグが読み取り範囲にあるかどうか
+     */
+    private boolean mPresent = true;
+
+    private int mTimeout = 1000;
+
+    private long mLatencyNanos;
+
+    /**
+     * 残りこの回数だけ応答したあとにタグが離れます。負の場合は離れません
+     */
+    private int mRemainingCommands = -1;
+
+    private double mFailureRate;
+
+    private Random mRandom = new Random(0);
+
+    private int mConnectCount;
+
+    private int mTransceiveCount;
+
+    private int mReadCommandCount;
+
+    private int mWriteCommandCount;
+
+    /**
+     * 0次発行状態の FeliCa Lite を作成します
+     * 
+     * @param idm IDm（8バイト）
+     */
+    public FeliCaLiteSimulator(byte[] idm) {
+        this(idm, new byte[] {
+                (byte)0x00, (byte)0xf0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+                (byte)0x00, (byte)0x00
+        });
+    }
+
+    /**
+     * 0次発行状態の FeliCa Lite を作成します
+     * 
+     * @param idm IDm（8バイト）
+     * @param pmm PMm（8バイト）
+     */
+    public FeliCaLiteSimulator(byte[] idm, byte[] pmm) {
+        if (idm == null || idm.length != 8)
+            throw new IllegalArgumentException();
+        if (pmm == null || pmm.length != 8)
+            throw new IllegalArgumentException();
+
+        mIdm = idm.clone();
+        mPmm = pmm.clone();
+
+        for (int i = 0; i <= BLOCK_REG; i++) {
+            mBlocks[i] = new byte[BLOCK_SIZE];
+        }
+        for (int i = FeliCaLiteTag.BLOCK_RC; i <= FeliCaLiteTag.BLOCK_MC; i++) {
+            mBlocks[i] = new byte[BLOCK_SIZE];
+        }
+
+        System.arraycopy(mIdm, 0, mBlocks[FeliCaLiteTag.BLOCK_ID], 0, 8);
+        System.arraycopy(mIdm, 0, mBlocks[FeliCaLiteTag.BLOCK_D_ID], 0, 8);
+        System.arraycopy(mPmm, 0, mBlocks[FeliCaLiteTag.BLOCK_D_ID], 8, 8);
+
+        // SER_C 0x000b
+        mBlocks[FeliCaLiteTag.BLOCK_SER_C][0] = (byte)0x0b;
+        mBlocks[FeliCaLiteTag.BLOCK_SER_C][1] = (byte)0x00;
+
+        // SYS_C 0x88b4
+        mBlocks[FeliCaLiteTag.BLOCK_SYS_C][0] = (byte)0x88;
+        mBlocks[FeliCaLiteTag.BLOCK_SYS_C][1] = (byte)0xb4;
+
+        // MC MC_SP=0xffff, MC_ALL=0xff, SYS_OP=0x00, RF_PRM=0x07
+        byte[] mc = mBlocks[FeliCaLiteTag.BLOCK_MC];
+        mc[0] = (byte)0xff;
+        mc[1] = (byte)0xff;
+        mc[2] = (byte)0xff;
+        mc[3] = (byte)0x00;
+        mc[4] = (byte)0x07;
+    }
+
+    /**
+     * @return IDm
+     */
+    public byte[] getIdm() {
+        return mIdm.clone();
+    }
+
+    /**
+     * @return PMm
+     */
+    public byte[] getPmm() {
+        return mPmm.clone();
+    }
+
+    /**
+     * ブロックの内容を取得します
+     * 
+     * @param blockNumber ブロック番号
+     * @return ブロックの内容のコピー
+     */
+    public synchronized byte[] getBlock(int blockNumber) {
+        return getExistingBlock(blockNumber).clone();
+    }
+
+    /**
+     * ブロックの内容を直接書き換えます<br>
+     * アクセス権は確認しません
+     * 
+     * @param blockNumber ブロック番号
+     * @param data 16バイトのデータ
+     */
+    public synchronized void setBlock(int blockNumber, byte[] data) {
+        if (data == null || data.length != BLOCK_SIZE)
+            throw new IllegalArgumentException();
+
+        System.arraycopy(data, 0, getExistingBlock(blockNumber), 0, BLOCK_SIZE);
+    }
+
+    private byte[] getExistingBlock(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= mBlocks.length || mBlocks[blockNumber] == null)
+            throw new IllegalArgumentException("no such block, block=" + blockNumber);
+        return mBlocks[blockNumber];
+    }
+
+    /**
+     * コマンドごとの応答遅延を設定します
+     * 
+     * @param latencyNanos 遅延（ナノ秒）
+     */
+    public synchronized void setLatency(long latencyNanos) {
+        if (latencyNanos < 0)
+            throw new IllegalArgumentException();
+
+        mLatencyNanos = latencyNanos;
+    }
+
+    /**
+     * 指定した回数だけ応答したあとに、タグを読み取り範囲から離します
+     * 
+     * @param commandCount 応答するコマンド数。負の場合は離しません
+     */
+    public synchronized void setFailAfter(int commandCount) {
+        mRemainingCommands = commandCount;
+    }
+
+    /**
+     * コマンドごとに、指定した確率でタグを読み取り範囲から離します
+     * 
+     * @param failureRate 0.0〜1.0の確率
+     * @param seed 乱数の種
+     */
+    public synchronized void setFailureRate(double failureRate, long seed) {
+        if (failureRate < 0.0 || failureRate > 1.0)
+            throw new IllegalArgumentException();
+
+        mFailureRate = failureRate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * タグを読み取り範囲に戻します
+     */
+    public synchronized void present() {
+        mPresent = true;
+        if (mRemainingCommands == 0)
+            mRemainingCommands = -1;
+    }
+
+    /**
+     * タグを読み取り範囲から離します<br>
+     * 実機と同じく接続は切れたことにならず、以降のコマンドはタイムアウトまで待ってから
+     * タグが離れたものとして失敗します
+     */
+    public synchronized void remove() {
+        mPresent = false;
+    }
+
+    /**
+     * @return タグが読み取り範囲にあれば true
+     */
+    public synchronized boolean isPresent() {
+        return mPresent;
+    }
+
+    /**
+     * @return 接続した回数
+     */
+    public synchronized int getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * @return 応答したかどうかに関わらず、受け付けたコマンドの数
+     */
+    public synchronized int getTransceiveCount() {
+        return mTransceiveCount;
+    }
+
+    /**
+     * @return 受け付けた Read Without Encryption の数
+     */
+    public synchronized int getReadCommandCount() {
+        return mReadCommandCount;
+    }
+
+    /**
+     * @return 受け付けた Write Without Encryption の数
+     */
+    public synchronized int getWriteCommandCount() {
+        return mWriteCommandCount;
+    }
+
+    /**
+     * 各種カウンタを0に戻します
+     */
+    public synchronized void resetCounters() {
+        mConnectCount = 0;
+        mTransceiveCount = 0;
+        mReadCommandCount = 0;
+        mWriteCommandCount = 0;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (mConnected)
+            throw new IllegalStateException("already connected");
+        if (!mPresent)
+            throw new NoResponseException("tag is not present");
+
+        mConnected = true;
+        mConnectCount++;
+    }
+
+    @Override
+    public synchronized void close() {
+        mConnected = false;
+    }
+
+    @Override
+    public synchronized void setTimeout(int timeout) {
+        mTimeout = timeout;
+    }
+
+    @Override
+    public synchronized int getTimeout() {
+        return mTimeout;
+    }
+
+    @Override
+    public byte[] transceive(byte[] buffer, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        return transceive(data);
+    }
+
+    @Override
+    public synchronized byte[] transceive(byte[] data) throws IOException {
+        if (!mConnected)
+            throw new IllegalStateException("not connected");
+        if (data == null || data.length < 2 || (data[0] & 0xff) != data.length)
+            throw new IOException("invalid command");
+
+        mTransceiveCount++;
+
+        if (mPresent && mRemainingCommands == 0)
+            mPresent = false;
+        if (mPresent && mFailureRate > 0.0 && mRandom.nextDouble() < mFailureRate)
+            mPresent = false;
+
+        if (!mPresent) {
+            // 実機と同じく、離れたあとのコマンドもタイムアウトまで待ってから失敗する
+            waitNanos(mTimeout * 1000000L);
+            throw new NoResponseException("tag was lost");
+        }
+
+        if (mLatencyNanos > mTimeout * 1000000L) {
+            waitNanos(mTimeout * 1000000L);
+            throw new NoResponseException("timeout");
+        }
+        waitNanos(mLatencyNanos);
+
+        if (mRemainingCommands > 0)
+            mRemainingCommands--;
+
+        byte code = data[1];
+        if (code == POLLING)
+            return polling(data);
+        if (data.length < 10 || !isSameIdm(data))
+            throw new NoResponseException("no response");
+
+        if (code == READ_WITHOUT_ENCRYPTION) {
+            mReadCommandCount++;
+            return readWithoutEncryption(data);
+        }
+        if (code == WRITE_WITHOUT_ENCRYPTION) {
+            mWriteCommandCount++;
+            return writeWithoutEncryption(data);
+        }
+
+        // 対応していないコマンドには応答しない
+        throw new NoResponseException("no response");
+    }
+
+    private boolean isSameIdm(byte[] data) {
+        for (int i = 0; i < 8; i++) {
+            if (data[2 + i] != mIdm[i])
+                return false;
+        }
+        return true;
+    }
+
+    private byte[] polling(byte[] data) {
+        byte[] response = new byte[18];
+        response[0] = (byte)response.length;
+        response[1] = (byte)(POLLING + 1);
+        System.arraycopy(mIdm, 0, response, 2, 8);
+        System.arraycopy(mPmm, 0, response, 10, 8);
+        return response;
+    }
+
+    private byte[] readWithoutEncryption(byte[] data) {
+        int serviceCount = data.length > 10 ? data[10] & 0xff : 0;
+        if (serviceCount != 1 || data.length < 14)
+            return createStatusResponse(READ_WITHOUT_ENCRYPTION, 0xff,
+                    STATUS_ILLEGAL_SERVICE_COUNT);
+
+        int serviceCode = (data[11] & 0xff) | ((data[12] & 0xff) << 8);
+        if (serviceCode != SERVICE_READ_ONLY && serviceCode != SERVICE_READ_WRITE)
+            return createStatusResponse(READ_WITHOUT_ENCRYPTION, 0xff,
+                    STATUS_ILLEGAL_SERVICE_CODE);
+
+        int blockCount = data[13] & 0xff;
+        if (blockCount < 1 || blockCount > FeliCaLiteTag.MAX_READ_BLOCK_COUNT
+                || data.length != 14 + blockCount * 2)
+            return createStatusResponse(READ_WITHOUT_ENCRYPTION, 0xff, STATUS_ILLEGAL_BLOCK_COUNT);
+
+        byte[] response = new byte[13 + blockCount * BLOCK_SIZE];
+        for (int i = 0; i < blockCount; i++) {
+            int element = data[14 + i * 2] & 0xff;
+            int blockNumber = data[15 + i * 2] & 0xff;
+            if (element != 0x80)
+                return createStatusResponse(READ_WITHOUT_ENCRYPTION, i + 1,
+                        STATUS_ILLEGAL_ACCESS_MODE);
+            if (!isReadable(blockNumber))
+                return createStatusResponse(READ_WITHOUT_ENCRYPTION, i + 1,
+                        STATUS_ILLEGAL_BLOCK_NUMBER);
+
+            System.arraycopy(mBlocks[blockNumber], 0, response, 13 + i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        response[0] = (byte)response.length;
+        response[1] = (byte)(READ_WITHOUT_ENCRYPTION + 1);
+        System.arraycopy(mIdm, 0, response, 2, 8);
+        response[12] = (byte)blockCount;
+        return response;
+    }
+
+    private byte[] writeWithoutEncryption(byte[] data) {
+        int serviceCount = data.length > 10 ? data[10] & 0xff : 0;
+        if (serviceCount != 1 || data.length < 14)
+            return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, 0xff,
+                    STATUS_ILLEGAL_SERVICE_COUNT);
+
+        int serviceCode = (data[11] & 0xff) | ((data[12] & 0xff) << 8);
+        if (serviceCode != SERVICE_READ_WRITE)
+            return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, 0xff,
+                    STATUS_ILLEGAL_SERVICE_CODE);
+
+        // FeliCa Lite は一度に1ブロックしか書き込めない
+        int blockCount = data[13] & 0xff;
+        if (blockCount != 1 || data.length != 16 + BLOCK_SIZE)
+            return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, 0xff,
+                    STATUS_ILLEGAL_BLOCK_COUNT);
+
+        int element = data[14] & 0xff;
+        int blockNumber = data[15] & 0xff;
+        if (element != 0x80)
+            return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, 0x01,
+                    STATUS_ILLEGAL_ACCESS_MODE);
+        if (!isWritable(blockNumber))
+            return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, 0x01,
+                    STATUS_ILLEGAL_BLOCK_NUMBER);
+
+        System.arraycopy(data, 16, mBlocks[blockNumber], 0, BLOCK_SIZE);
+        return createStatusResponse(WRITE_WITHOUT_ENCRYPTION, STATUS_SUCCESS, STATUS_SUCCESS);
+    }
+
+    private byte[] createStatusResponse(byte commandCode, int status1, int status2) {
+        byte[] response = new byte[12];
+        response[0] = (byte)response.length;
+        response[1] = (byte)(commandCode + 1);
+        System.arraycopy(mIdm, 0, response, 2, 8);
+        response[10] = (byte)status1;
+        response[11] = (byte)status2;
+        return response;
+    }
+
+    private boolean isReadable(int blockNumber) {
+        if (mBlocks[blockNumber] == null)
+            return false;
+
+        // RC と CK は書き込み専用、MAC は RC の書き込み後に他のブロックと一緒にしか読めない
+        return blockNumber != FeliCaLiteTag.BLOCK_RC && blockNumber != BLOCK_CK
+                && blockNumber != BLOCK_MAC;
+    }
+
+    private boolean isWritable(int blockNumber) {
+        if (mBlocks[blockNumber] == null)
+            return false;
+
+        byte[] mc = mBlocks[FeliCaLiteTag.BLOCK_MC];
+        if (blockNumber < BLOCK_REG) {
+            // MC_SP の対応するビットが0のS_PADは読み込み専用
+            int mcSp = (mc[0] & 0xff) | ((mc[1] & 0xff) << 8);
+            return (mcSp & (1 << blockNumber)) != 0;
+        }
+
+        switch (blockNumber) {
+            case BLOCK_MAC:
+            case FeliCaLiteTag.BLOCK_D_ID:
+            case FeliCaLiteTag.BLOCK_SER_C:
+            case FeliCaLiteTag.BLOCK_SYS_C:
+                return false;
+            case BLOCK_REG:
+            case FeliCaLiteTag.BLOCK_RC:
+                return true;
+            default:
+                // MC_ALL が0xff以外なら1次発行済みで、システムブロックは書き換えられない
+                return (mc[2] & 0xff) == 0xff;
+        }
+    }
+
+    private static void waitNanos(long nanos) throws IOException {
+        if (nanos <= 0)
+            return;
+
+        try {
+            Thread.sleep(nanos / 1000000L, (int)(nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.StatusFlagException;
+import jp.tomorrowkey.android.felicalitewriter.felicalite.TagMetrics.Failure;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * MC の SYS_OP だけを書き換えることを、0次発行状態とカスタマイズ済みの MC で確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class SystemBlocksTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    private TagMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+        mMetrics = new TagMetrics();
+        mTag.setMetrics(mMetrics);
+    }
+
+    @Test
+    public void initialMcKeepsOtherFields() throws Exception {
+        mTag.applyNdefFlag(IDM, true);
+
+        byte[] mc = mSimulator.getBlock(FeliCaLiteTag.BLOCK_MC);
+        assertEquals(0xff, mc[0] & 0xff);
+        assertEquals(0xff, mc[1] & 0xff);
+        assertEquals(SystemBlocks.MC_ALL_INITIAL, mc[2] & 0xff);
+        assertEquals(SystemBlocks.SYS_OP_NDEF, mc[3]);
+        assertEquals(0x07, mc[4]);
+    }
+
+    @Test
+    public void customisedMcKeepsOtherFields() throws Exception {
+        byte[] custom = mSimulator.getBlock(FeliCaLiteTag.BLOCK_MC);
+        custom[0] = (byte)0xff;
+        custom[1] = (byte)0x5f;
+        custom[4] = (byte)0x05;
+        custom[9] = (byte)0x42;
+        mSimulator.setBlock(FeliCaLiteTag.BLOCK_MC, custom);
+
+        mTag.applyNdefFlag(IDM, true);
+
+        byte[] expected = custom.clone();
+        expected[3] = SystemBlocks.SYS_OP_NDEF;
+        byte[] mc = mSimulator.getBlock(FeliCaLiteTag.BLOCK_MC);
+        for (int i = 0; i < mc.length; i++) {
+            assertEquals("byte " + i, expected[i], mc[i]);
+        }
+    }
+
+    @Test
+    public void appliedFlagIsNotWrittenAgain() throws Exception {
+        mTag.applyNdefFlag(IDM, true);
+        mSimulator.resetCounters();
+
+        mTag.applyNdefFlag(IDM, true);
+
+        assertEquals(1, mSimulator.getReadCommandCount());
+        assertEquals(0, mSimulator.getWriteCommandCount());
+    }
+
+    @Test
+    public void issuedTagRejectsChangeAndCountsOnce() throws Exception {
+        byte[] mc = mSimulator.getBlock(FeliCaLiteTag.BLOCK_MC);
+        mc[2] = 0x00;
+        mSimulator.setBlock(FeliCaLiteTag.BLOCK_MC, mc);
+
+        try {
+            mTag.applyNdefFlag(IDM, true);
+            fail();
+        } catch (StatusFlagException e) {
+            assertEquals(FeliCaLiteTag.BLOCK_MC, e.getBlockNumber());
+        }
+
+        assertEquals(1, mMetrics.getFailureCount(Failure.STATUS_FLAG));
+    }
+
+    @Test
+    public void failedMcReadIsCountedOnce() throws Exception {
+        mSimulator.remove();
+
+        try {
+            mTag.applyNdefFlag(IDM, true);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+
+        assertEquals(1, mMetrics.getFailureCount(Failure.TAG_LOST));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void macBlockIsRejected() {
+        new SystemBlocks(new int[] {
+            0x81
+        }, new byte[SystemBlocks.BLOCK_SIZE]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ckBlockIsRejected() {
+        new SystemBlocks().setBlock(0x87, new byte[SystemBlocks.BLOCK_SIZE]);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Test;
+
+/**
+ * {@link TagProfile} による判定と、タグの種類に合わせた属性情報ブロックを確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class TagProfileTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private static final byte[] PMM_LITE_S = new byte[] {
+            0x00, (byte)0xf1, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    @Test
+    public void classifyByIcTypeAndSystemCode() {
+        assertSame(TagProfile.FELICA_LITE_S, TagProfile.classify(PMM_LITE_S, new byte[] {
+                (byte)0x88, (byte)0xb4
+        }));
+        assertSame(TagProfile.FELICA_LITE_S, TagProfile.classify(PMM_LITE_S, new byte[] {
+                (byte)0x12, (byte)0xfc
+        }));
+        assertNull(TagProfile.classify(PMM_LITE_S, new byte[] {
+                (byte)0xfe, (byte)0x00
+        }));
+        assertNull(TagProfile.classify(new byte[] {
+                0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+        }, new byte[] {
+                (byte)0x88, (byte)0xb4
+        }));
+    }
+
+    @Test
+    public void attributeBlockFollowsProfile() throws Exception {
+        BlockImage image = BlockImage.fromNdefMessage(new byte[20], TagProfile.FELICA_LITE_S);
+
+        assertEquals(TagProfile.FELICA_LITE_S.getMaxReadBlockCount(), image.get(1));
+        assertEquals(TagProfile.FELICA_LITE_S.getMaxWriteBlockCount(), image.get(2));
+        assertEquals(TagProfile.FELICA_LITE_S.getDataBlockCount(),
+                ((image.get(3) & 0xff) << 8) | (image.get(4) & 0xff));
+    }
+
+    @Test(expected = SizeOverflowException.class)
+    public void messageLargerThanProfileIsRejected() throws Exception {
+        BlockImage.fromNdefMessage(new byte[BlockImage.getCapacity(TagProfile.FELICA_LITE_S) + 1],
+                TagProfile.FELICA_LITE_S);
+    }
+
+    @Test
+    public void zeroFillCoversProfileDataBlocks() throws Exception {
+        BlockImage image = BlockImage.fromNdefMessage(new byte[20], TagProfile.FELICA_LITE_S);
+
+        WritePlan plan = FeliCaLiteTag.createWritePlan(image, WriteMode.ZERO_FILL,
+                TagProfile.FELICA_LITE_S);
+
+        assertEquals(TagProfile.FELICA_LITE_S.getDataBlockCount() + 2, plan.getFrameCount());
+        assertEquals(TagProfile.FELICA_LITE_S.getDataBlockCount(), plan.getMaxBlockNumber());
+    }
+
+    @Test
+    public void writeToLiteS() throws Exception {
+        FeliCaLiteSimulator simulator = new FeliCaLiteSimulator(IDM, PMM_LITE_S);
+        FeliCaLiteTag tag = new FeliCaLiteTag(simulator, TagProfile.FELICA_LITE_S);
+        BlockImage image = BlockImage.fromNdefMessage(new byte[20], TagProfile.FELICA_LITE_S);
+
+        tag.write(IDM, FeliCaLiteTag.createWritePlan(image, WriteMode.USED_BLOCKS,
+                tag.getProfile()));
+
+        assertTrue(image.isSameBlock(0, simulator.getBlock(0), 0));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link TimeoutPolicy} で短くしたタイムアウトと送り直しを、応答遅延を固定したシミュレータで確かめます<br>
+ * シミュレータは設定した遅延とタイムアウトを比べて失敗を決めるので、実際の経過時間に左右されません
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class TimeoutPolicyTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private static final byte READ_WITHOUT_ENCRYPTION = 0x06;
+
+    private static final int DEFAULT_TIMEOUT = 200;
+
+    private static final int[] BLOCK_NUMBERS = new int[] {
+            0
+    };
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    private TimeoutPolicy mPolicy;
+
+    private TagMetrics mMetrics;
+
+    private CommandTrace mTrace;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mSimulator.setLatency(1000000L);
+        mPolicy = new TimeoutPolicy();
+        mMetrics = new TagMetrics();
+        mTrace = new CommandTrace(16);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(DEFAULT_TIMEOUT);
+        mTag.setTimeoutPolicy(mPolicy);
+        mTag.setMetrics(mMetrics);
+        mTag.setCommandTrace(mTrace);
+    }
+
+    @Test
+    public void defaultTimeoutIsUsedUntilLearned() throws Exception {
+        mSimulator.setFailAfter(0);
+
+        readExpectingTagLost();
+
+        assertEquals(0, mMetrics.getRetryCount());
+        assertEquals(1, mPolicy.getLostTagCount());
+        assertEquals(0, mPolicy.getSavedMillis());
+        assertEquals(1, mTrace.getRecordCount());
+    }
+
+    @Test
+    public void learnedTimeoutIsShorterThanDefault() throws Exception {
+        learn();
+
+        int timeout = mPolicy.getTimeout(READ_WITHOUT_ENCRYPTION, DEFAULT_TIMEOUT);
+        assertTrue(timeout < DEFAULT_TIMEOUT);
+    }
+
+    @Test
+    public void lostTagIsRetriedOnceAndRecordedPerAttempt() throws Exception {
+        learn();
+        int timeout = mPolicy.getTimeout(READ_WITHOUT_ENCRYPTION, DEFAULT_TIMEOUT);
+        int retryTimeout = mPolicy.getRetryTimeout(timeout, DEFAULT_TIMEOUT);
+        mTrace.clear();
+        mSimulator.resetCounters();
+        mSimulator.setFailAfter(0);
+
+        readExpectingTagLost();
+
+        assertEquals(2, mSimulator.getTransceiveCount());
+        assertEquals(1, mMetrics.getRetryCount());
+        assertEquals(1, mPolicy.getLostTagCount());
+        assertEquals(DEFAULT_TIMEOUT - timeout - retryTimeout, mPolicy.getSavedMillis());
+        assertTrue(mPolicy.getSavedMillis() > 0);
+
+        String[] lines = dumpTrace();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith("!"));
+        assertTrue(lines[1].endsWith("!"));
+    }
+
+    @Test
+    public void slowResponseIsCountedAsFalsePositive() throws Exception {
+        learn();
+        int timeout = mPolicy.getTimeout(READ_WITHOUT_ENCRYPTION, DEFAULT_TIMEOUT);
+        mTrace.clear();
+        mSimulator.resetCounters();
+        // 短くしたタイムアウトは超えるが、送り直したときのタイムアウトには収まる遅延
+        mSimulator.setLatency(timeout * 1500000L);
+
+        mTag.readWithoutEncryption(IDM, BLOCK_NUMBERS);
+
+        assertEquals(2, mSimulator.getTransceiveCount());
+        assertEquals(1, mMetrics.getRetryCount());
+        assertEquals(1, mPolicy.getFalsePositiveCount());
+        assertEquals(0, mPolicy.getLostTagCount());
+
+        String[] lines = dumpTrace();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith("!"));
+        assertTrue(!lines[1].endsWith("!"));
+        assertTrue(mMetrics.export().contains("command.retries 1"));
+    }
+
+    private void learn() throws IOException {
+        for (int i = 0; i < 8; i++) {
+            mTag.readWithoutEncryption(IDM, BLOCK_NUMBERS);
+        }
+    }
+
+    private void readExpectingTagLost() {
+        try {
+            mTag.readWithoutEncryption(IDM, BLOCK_NUMBERS);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+    }
+
+    private String[] dumpTrace() {
+        StringBuilder buffer = new StringBuilder();
+        mTrace.dump(buffer);
+        return buffer.toString().split("\n");
+    }
+
+}
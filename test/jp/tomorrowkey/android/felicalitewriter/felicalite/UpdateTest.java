@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link FeliCaLiteTag#update(byte[], BlockImage)} が、実際に発行したコマンドを結果として返すことを確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UpdateTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+        mTag.write(IDM, FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(40),
+                WriteMode.USED_BLOCKS));
+        mSimulator.resetCounters();
+    }
+
+    @Test
+    public void unchangedTagIsNotWritten() throws Exception {
+        WriteResult result = mTag.update(IDM, WritePlanTest.createImage(40));
+
+        assertEquals(0, result.getWrittenBlockCount());
+        assertEquals(4, result.getReadBlockCount());
+        assertEquals(0, mSimulator.getWriteCommandCount());
+    }
+
+    @Test
+    public void changedDataBlockIsWrittenBetweenAttributeBlocks() throws Exception {
+        BlockImage image = WritePlanTest.createImage(40);
+        image.put(BlockImage.getBlockOffset(2), (byte)0x7f);
+
+        WriteResult result = mTag.update(IDM, image);
+
+        // 0x0Fの属性情報 + ブロック2 + 0x00の属性情報
+        assertEquals(3, result.getWrittenBlockCount());
+        assertEquals(mSimulator.getWriteCommandCount(), result.getWrittenBlockCount());
+        assertEquals(BlockImage.BLOCK_COUNT + 1 - 3, result.getSkippedBlockCount());
+        assertTrue(image.isSameBlock(2, mSimulator.getBlock(2), 0));
+        assertTrue(image.isSameBlock(0, mSimulator.getBlock(0), 0));
+    }
+
+    @Test
+    public void resultReportsVerifiedBlocks() throws Exception {
+        mTag.setVerifyEnabled(true);
+        BlockImage image = WritePlanTest.createImage(20);
+
+        WriteResult result = mTag.update(IDM, image);
+
+        assertEquals(result.getWrittenBlockCount(), mSimulator.getWriteCommandCount());
+        assertTrue(result.getVerifiedBlockCount() > 0);
+    }
+
+    @Test
+    public void tornUpdateResumesFromTagContent() throws Exception {
+        mTag.setCheckpointCache(new WriteCheckpointCache(4, 60000));
+        BlockImage image = WritePlanTest.createImage(40);
+        for (int blockNumber = 1; blockNumber <= 3; blockNumber++) {
+            image.put(BlockImage.getBlockOffset(blockNumber), (byte)0x7f);
+        }
+        // 読み込み1回と、0x0Fの属性情報とブロック1を書き込んだところで離れる
+        mSimulator.setFailAfter(3);
+        try {
+            mTag.update(IDM, image);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+
+        mSimulator.present();
+        mSimulator.resetCounters();
+        WriteResult result = mTag.update(IDM, image);
+
+        // タグはすでに0x0Fなので、ブロック2、3と0x00の属性情報だけを書き込む
+        assertEquals(3, result.getWrittenBlockCount());
+        assertEquals(3, mSimulator.getWriteCommandCount());
+        assertTrue(image.isSameBlock(0, mSimulator.getBlock(0), 0));
+    }
+}
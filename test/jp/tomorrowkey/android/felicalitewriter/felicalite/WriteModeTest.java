@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link WriteMode#USED_BLOCKS} と {@link WriteMode#ZERO_FILL} の往復数を、シミュレータで比べます<br>
+ * 往復時間は応答遅延を固定したシミュレータの値なので、往復数の差がそのまま短縮できる時間になります
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WriteModeTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    /**
+     * シミュレータの1往復の応答遅延（ナノ秒）
+     */
+    private static final long LATENCY_NANOS = 2000000L;
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mSimulator.setLatency(LATENCY_NANOS);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+    }
+
+    @Test
+    public void usedBlocksWritesOnlyBlocksInLn() throws Exception {
+        // 短いURIを想定した、2ブロックに収まるNDEFメッセージ
+        int usedRoundTrips = countWriteRoundTrips(WritePlanTest.createImage(20),
+                WriteMode.USED_BLOCKS);
+        int zeroFillRoundTrips = countWriteRoundTrips(WritePlanTest.createImage(20),
+                WriteMode.ZERO_FILL);
+
+        // 属性情報ブロック2回 + データブロック2個
+        assertEquals(2 + 2, usedRoundTrips);
+        // 属性情報ブロック2回 + データブロック13個
+        assertEquals(2 + BlockImage.MAX_DATA_BLOCK_COUNT, zeroFillRoundTrips);
+        long savedMillis = (zeroFillRoundTrips - usedRoundTrips) * LATENCY_NANOS / 1000000L;
+        assertEquals(22, savedMillis);
+    }
+
+    @Test
+    public void fullMessageCostsTheSameInBothModes() throws Exception {
+        int length = BlockImage.MAX_DATA_BLOCK_COUNT * BlockImage.BLOCK_SIZE;
+
+        assertEquals(countWriteRoundTrips(WritePlanTest.createImage(length),
+                WriteMode.ZERO_FILL), countWriteRoundTrips(WritePlanTest.createImage(length),
+                WriteMode.USED_BLOCKS));
+    }
+
+    @Test
+    public void usedBlocksLeavesTrailingBlocksUntouched() throws Exception {
+        byte[] stale = new byte[BlockImage.BLOCK_SIZE];
+        Arrays.fill(stale, (byte)0x5a);
+        mSimulator.setBlock(5, stale);
+
+        mTag.write(IDM, FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(20),
+                WriteMode.USED_BLOCKS));
+        assertTrue(Arrays.equals(stale, mSimulator.getBlock(5)));
+
+        mTag.write(IDM, FeliCaLiteTag.createWritePlan(WritePlanTest.createImage(20),
+                WriteMode.ZERO_FILL));
+        assertTrue(Arrays.equals(new byte[BlockImage.BLOCK_SIZE], mSimulator.getBlock(5)));
+    }
+
+    private int countWriteRoundTrips(BlockImage image, WriteMode writeMode) throws Exception {
+        mSimulator.resetCounters();
+        mTag.write(IDM, FeliCaLiteTag.createWritePlan(image, writeMode));
+        assertEquals(mSimulator.getWriteCommandCount(), mSimulator.getTransceiveCount());
+        return mSimulator.getTransceiveCount();
+    }
+
+}
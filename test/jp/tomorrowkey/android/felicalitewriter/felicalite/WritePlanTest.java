@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.felicalite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.FeliCaLiteTag.WriteMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link WritePlan} の書き込み順と、途中でタグが離れたときのタグの状態を確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WritePlanTest {
+
+    private static final byte[] IDM = new byte[] {
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private static final int WRITE_F_OFFSET = 9;
+
+    private FeliCaLiteSimulator mSimulator;
+
+    private FeliCaLiteTag mTag;
+
+    @Before
+    public void setUp() {
+        mSimulator = new FeliCaLiteSimulator(IDM);
+        mTag = new FeliCaLiteTag(mSimulator);
+        mTag.setTimeout(20);
+    }
+
+    @Test
+    public void attributeBlockIsWrittenFirstAndLast() throws Exception {
+        WritePlan plan = FeliCaLiteTag.createWritePlan(createImage(40), WriteMode.USED_BLOCKS);
+
+        assertArrayEquals(new int[] {
+                0, 1, 2, 3, 0
+        }, plan.getBlockNumbers());
+        assertEquals(BlockImage.WRITE_F_ON, getData(plan, 0)[WRITE_F_OFFSET]);
+        assertEquals(BlockImage.WRITE_F_OFF, getData(plan, 4)[WRITE_F_OFFSET]);
+        assertTrue(hasValidChecksum(getData(plan, 0)));
+        assertTrue(hasValidChecksum(getData(plan, 4)));
+    }
+
+    @Test
+    public void zeroFillWritesEveryBlockBetweenAttributeBlocks() throws Exception {
+        WritePlan plan = FeliCaLiteTag.createWritePlan(createImage(40), WriteMode.ZERO_FILL);
+
+        assertEquals(BlockImage.BLOCK_COUNT + 1, plan.getFrameCount());
+        assertEquals(0, plan.getBlockNumber(0));
+        assertEquals(0, plan.getBlockNumber(plan.getFrameCount() - 1));
+    }
+
+    @Test
+    public void completedWriteClearsWriteFlag() throws Exception {
+        BlockImage image = createImage(40);
+        WritePlan plan = FeliCaLiteTag.createWritePlan(image, WriteMode.USED_BLOCKS);
+
+        WriteResult result = mTag.write(IDM, plan);
+
+        assertEquals(5, result.getWrittenBlockCount());
+        assertEquals(BlockImage.BLOCK_COUNT + 1 - 5, result.getSkippedBlockCount());
+        byte[] attribute = mSimulator.getBlock(0);
+        assertEquals(BlockImage.WRITE_F_OFF, attribute[WRITE_F_OFFSET]);
+        assertTrue(image.isSameBlock(0, attribute, 0));
+    }
+
+    @Test
+    public void tagLostDuringDataLeavesWriteFlagOn() throws Exception {
+        WritePlan plan = FeliCaLiteTag.createWritePlan(createImage(40), WriteMode.USED_BLOCKS);
+        mSimulator.setFailAfter(2);
+
+        try {
+            mTag.write(IDM, plan);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+
+        byte[] attribute = mSimulator.getBlock(0);
+        assertEquals(BlockImage.WRITE_F_ON, attribute[WRITE_F_OFFSET]);
+        assertTrue(hasValidChecksum(attribute));
+    }
+
+    @Test
+    public void resumeSkipsAcknowledgedFrames() throws Exception {
+        mTag.setCheckpointCache(new WriteCheckpointCache(4, 60000));
+        BlockImage image = createImage(40);
+        WritePlan plan = FeliCaLiteTag.createWritePlan(image, WriteMode.USED_BLOCKS);
+        mSimulator.setFailAfter(3);
+        try {
+            mTag.write(IDM, plan);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+
+        mSimulator.present();
+        mSimulator.resetCounters();
+        WriteResult result = mTag.write(IDM, plan);
+
+        assertEquals(2, result.getWrittenBlockCount());
+        assertEquals(2, mSimulator.getWriteCommandCount());
+        assertTrue(image.isSameBlock(0, mSimulator.getBlock(0), 0));
+    }
+
+    @Test
+    public void verifyComparesFinalAttributeBlock() throws Exception {
+        mTag.setVerifyEnabled(true);
+        WritePlan plan = FeliCaLiteTag.createWritePlan(createImage(40), WriteMode.USED_BLOCKS);
+
+        WriteResult result = mTag.write(IDM, plan);
+
+        assertEquals(4, result.getVerifiedBlockCount());
+    }
+
+    @Test
+    public void failedVerifyReadIsCountedOnce() throws Exception {
+        TagMetrics metrics = new TagMetrics();
+        mTag.setMetrics(metrics);
+        mTag.setVerifyEnabled(true);
+        WritePlan plan = FeliCaLiteTag.createWritePlan(createImage(40), WriteMode.USED_BLOCKS);
+        mSimulator.setFailAfter(plan.getFrameCount());
+
+        try {
+            mTag.write(IDM, plan);
+            fail();
+        } catch (IOException e) {
+            assertTrue(FeliCaLiteTag.isTagLost(e));
+        }
+
+        assertEquals(1, metrics.getFailureCount(TagMetrics.Failure.TAG_LOST));
+        assertEquals(0, metrics.getWrittenTagCount());
+    }
+
+    /**
+     * 指定した長さのNDEFメッセージ（中身は連番）を置いたイメージを作成します
+     */
+    static BlockImage createImage(int ndefLength) throws SizeOverflowException {
+        byte[] ndef = new byte[ndefLength];
+        for (int i = 0; i < ndefLength; i++) {
+            ndef[i] = (byte)(i + 1);
+        }
+        return BlockImage.fromNdefMessage(ndef);
+    }
+
+    private static byte[] getData(WritePlan plan, int index) {
+        byte[] data = new byte[BlockImage.BLOCK_SIZE];
+        System.arraycopy(plan.getBuffer(), plan.getFrameOffset(index) + 16, data, 0, data.length);
+        return data;
+    }
+
+    private static boolean hasValidChecksum(byte[] attribute) {
+        int sum = 0;
+        for (int i = 0; i < 14; i++) {
+            sum += attribute[i] & 0xff;
+        }
+        return attribute[14] == (byte)(sum >>> 8) && attribute[15] == (byte)sum;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link WriteJournal} を開き直したときの復旧を、壊れ方ごとに確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class WriteJournalTest {
+
+    private File mDirectory;
+
+    private File mFile;
+
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+        mFile = new File(mDirectory, "write.journal");
+        mIndexFile = new File(mDirectory, "write.journal.index");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void cleanReopenKeepsLastEntryPerIdm() throws Exception {
+        WriteJournal journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 0, 10);
+        journal.append(idm(3), 100, JournalEntry.RESULT_TAG_LOST, 7);
+        journal.close();
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(0, journal.getTruncatedLength());
+            assertEquals(10, journal.getIdmCount());
+            JournalEntry entry = journal.lookup(idm(3));
+            assertEquals(100, entry.getContentHash());
+            assertEquals(JournalEntry.RESULT_TAG_LOST, entry.getResult());
+            assertEquals(7, entry.getDetail());
+            assertEquals(9, journal.lookup(idm(9)).getContentHash());
+            assertNull(journal.lookup(idm(10)));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        WriteJournal journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 0, 3);
+        journal.close();
+
+        // 途中までしか書き込まれなかった記録
+        appendBytes(mFile, new byte[WriteJournal.RECORD_SIZE / 2]);
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        assertEquals(WriteJournal.RECORD_SIZE / 2, journal.getTruncatedLength());
+        assertEquals(3, journal.getIdmCount());
+        append(journal, 3, 4);
+        journal.close();
+        assertEquals(WriteJournal.HEADER_SIZE + 4 * WriteJournal.RECORD_SIZE, mFile.length());
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(0, journal.getTruncatedLength());
+            assertEquals(4, journal.getIdmCount());
+            assertNotNull(journal.lookup(idm(3)));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void badCrcAfterStaleIndexIsTruncated() throws Exception {
+        WriteJournal journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 0, 10);
+        journal.close();
+        byte[] staleIndex = readBytes(mIndexFile);
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 10, 20);
+        journal.close();
+
+        // インデックスは10件目までしか反映していない状態に戻し、15件目の CRC を壊す
+        writeBytes(mIndexFile, staleIndex);
+        flipByte(mFile, WriteJournal.HEADER_SIZE + 16 * WriteJournal.RECORD_SIZE - 1);
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(5 * WriteJournal.RECORD_SIZE, journal.getTruncatedLength());
+            assertEquals(15, journal.getIdmCount());
+            assertEquals(14, journal.lookup(idm(14)).getContentHash());
+            assertNull(journal.lookup(idm(15)));
+            assertNull(journal.lookup(idm(19)));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void deletedIndexIsRebuilt() throws Exception {
+        WriteJournal journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 0, 10);
+        journal.close();
+        assertTrue(mIndexFile.delete());
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(0, journal.getTruncatedLength());
+            assertEquals(10, journal.getIdmCount());
+            assertEquals(5, journal.lookup(idm(5)).getContentHash());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void crashDuringGrowLeavesUsableIndex() throws Exception {
+        // 初期のスロット数の半分を超えるので、インデックスを作り直す
+        WriteJournal journal = new WriteJournal(mFile, mIndexFile);
+        append(journal, 0, 600);
+        journal.close();
+
+        // 一時ファイルを書いている途中で終了した状態
+        File tmpFile = JournalIndex.getTmpFile(mIndexFile);
+        writeBytes(tmpFile, new byte[100]);
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(600, journal.getIdmCount());
+            assertFalse(tmpFile.exists());
+            assertEquals(599, journal.lookup(idm(599)).getContentHash());
+
+            append(journal, 600, 1200);
+        } finally {
+            journal.close();
+        }
+
+        journal = new WriteJournal(mFile, mIndexFile);
+        try {
+            assertEquals(0, journal.getTruncatedLength());
+            assertEquals(1200, journal.getIdmCount());
+            assertEquals(0, journal.lookup(idm(0)).getContentHash());
+            assertEquals(1199, journal.lookup(idm(1199)).getContentHash());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static byte[] idm(int n) {
+        return new byte[] {
+                0x01, 0x2e, 0x00, 0x00, (byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8),
+                (byte)n
+        };
+    }
+
+    /**
+     * IDm の番号を内容のハッシュ値にした記録を積んで、保存されるまで待ちます
+     */
+    private static void append(WriteJournal journal, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            journal.append(idm(i), i, JournalEntry.RESULT_WRITTEN, 1);
+        }
+        journal.flush();
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0)
+                    throw new IOException("unexpected end of file");
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void writeBytes(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void appendBytes(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(b ^ 0xff);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+}
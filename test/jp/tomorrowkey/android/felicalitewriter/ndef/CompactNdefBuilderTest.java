@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * {@link CompactNdefBuilder} のテキストレコードの言語タグを確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class CompactNdefBuilderTest {
+
+    /**
+     * SR のレコードヘッダ、タイプ長、ペイロード長、タイプ "T" の4バイト
+     */
+    private static final int TEXT_PAYLOAD_OFFSET = 4;
+
+    @Test
+    public void scriptSubtagIsKept() {
+        assertEquals("zh-Hant", CompactNdefBuilder.getLanguageTag("zh-Hant"));
+        assertEquals("zh-Hans-CN", CompactNdefBuilder.getLanguageTag("zh-Hans-CN"));
+    }
+
+    @Test
+    public void underscoreIsNormalized() {
+        assertEquals("en-US", CompactNdefBuilder.getLanguageTag("en_US"));
+        assertEquals("ja", CompactNdefBuilder.getLanguageTag("ja"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptySubtagIsRejected() {
+        CompactNdefBuilder.getLanguageTag("en--US");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonAsciiIsRejected() {
+        CompactNdefBuilder.getLanguageTag("日本語");
+    }
+
+    @Test
+    public void textRecordCarriesFullLanguageTag() {
+        byte[] message = new CompactNdefBuilder().addText("a", "zh-Hant").toByteArray();
+
+        assertEquals(7, message[TEXT_PAYLOAD_OFFSET]);
+        assertEquals("zh-Hant", new String(message, TEXT_PAYLOAD_OFFSET + 1, 7));
+        assertEquals('a', message[TEXT_PAYLOAD_OFFSET + 8]);
+    }
+
+    @Test
+    public void localeIsConvertedToLanguageTag() {
+        byte[] message = new CompactNdefBuilder().addText("a", Locale.US).toByteArray();
+
+        assertEquals(5, message[TEXT_PAYLOAD_OFFSET]);
+        assertEquals("en-US", new String(message, TEXT_PAYLOAD_OFFSET + 1, 5));
+    }
+
+}
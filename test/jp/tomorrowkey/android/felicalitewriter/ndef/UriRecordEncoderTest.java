@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.SizeOverflowException;
+
+import org.junit.Test;
+
+/**
+ * {@link UriRecordEncoder} が作成するペイロードとNDEFメッセージを確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriRecordEncoderTest {
+
+    @Test
+    public void longestPrefixWins() {
+        assertPayload(0x1e, "sgtin:1", UriRecordEncoder.createPayload("urn:epc:id:sgtin:1"));
+        assertPayload(0x22, "x", UriRecordEncoder.createPayload("urn:epc:x"));
+        assertPayload(0x23, "sp", UriRecordEncoder.createPayload("urn:nfc:sp"));
+        assertPayload(0x13, "isbn:1", UriRecordEncoder.createPayload("urn:isbn:1"));
+        assertPayload(0x01, "example.com",
+                UriRecordEncoder.createPayload("http://www.example.com"));
+        assertPayload(0x03, "example.com", UriRecordEncoder.createPayload("http://example.com"));
+    }
+
+    @Test
+    public void onlyLeadingPrefixIsStripped() {
+        assertPayload(0x03, "a.jp/?next=http://b.jp", UriRecordEncoder.createPayload(
+                "http://a.jp/?next=http://b.jp"));
+    }
+
+    @Test
+    public void unknownProtocolIsKept() {
+        assertPayload(0x00, "geo:35.6,139.7", UriRecordEncoder.createPayload("geo:35.6,139.7"));
+        assertPayload(0x00, "", UriRecordEncoder.createPayload(""));
+    }
+
+    @Test
+    public void encodeWritesShortRecord() throws Exception {
+        byte[] dst = new byte[32];
+
+        int length = UriRecordEncoder.encode("tel:117", dst, 2);
+
+        assertEquals(UriRecordEncoder.RECORD_HEADER_LENGTH + 1 + 3, length);
+        byte[] expected = new byte[] {
+                (byte)0xd1, 0x01, 0x04, 'U', 0x05, '1', '1', '7'
+        };
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(dst, 2, 2 + length)));
+    }
+
+    @Test(expected = SizeOverflowException.class)
+    public void encodeRejectsTooSmallBuffer() throws Exception {
+        UriRecordEncoder.encode("http://example.com/", new byte[8], 0);
+    }
+
+    private static void assertPayload(int index, String body, byte[] payload) {
+        assertEquals(index, payload[0] & 0xff);
+        byte[] bodyBytes = Arrays.copyOfRange(payload, 1, payload.length);
+        try {
+            assertEquals(body, new String(bodyBytes, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.ndef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import jp.tomorrowkey.android.felicalitewriter.felicalite.BlockImage;
+
+import org.junit.Test;
+
+/**
+ * {@link UriTemplateEncoder} のカーソルが、URIごとに変換した場合と同じイメージを作成することを確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class UriTemplateEncoderTest {
+
+    private static final String TEMPLATE = "http://www.example.com/item/" + UriTemplateEncoder.SERIAL
+            + "?ref=nfc";
+
+    @Test
+    public void cursorMatchesPerUriEncoding() throws Exception {
+        UriTemplateEncoder encoder = new UriTemplateEncoder(TEMPLATE);
+        UriTemplateEncoder.Cursor cursor = encoder.cursor(95);
+        BlockImage expected = new BlockImage();
+        byte[] buffer = new byte[UriRecordEncoder.MAX_NDEF_LENGTH];
+
+        // 桁数が増える前後を含める
+        for (long serial = 95; serial < 105; serial++) {
+            assertEquals(serial, cursor.getSerial());
+            UriRecordEncoder.encode(toUri(serial), expected, buffer);
+            assertEquals(expected, cursor.next());
+        }
+    }
+
+    @Test
+    public void cursorReusesImage() throws Exception {
+        UriTemplateEncoder.Cursor cursor = new UriTemplateEncoder(TEMPLATE).cursor(0);
+
+        BlockImage first = cursor.next();
+        BlockImage second = cursor.next();
+
+        assertSame(first, second);
+    }
+
+    @Test
+    public void encodeReturnsNewImage() throws Exception {
+        UriTemplateEncoder encoder = new UriTemplateEncoder(TEMPLATE);
+
+        BlockImage first = encoder.encode(1000);
+        BlockImage second = encoder.encode(7);
+
+        assertNotSame(first, second);
+        // 後から短い連番を変換しても、先に返したイメージは変わらない
+        assertEquals(new UriTemplateEncoder(TEMPLATE).encode(1000), first);
+        assertEquals(encoder.getNdefLength(7) + 3, encoder.getNdefLength(1000));
+    }
+
+    private static String toUri(long serial) {
+        return TEMPLATE.replace(UriTemplateEncoder.SERIAL, Long.toString(serial));
+    }
+
+}
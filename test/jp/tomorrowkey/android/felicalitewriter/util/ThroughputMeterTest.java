@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 tomorrowkey@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.tomorrowkey.android.felicalitewriter.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * {@link ThroughputMeter} が求める1分あたりの件数を、固定の時刻で確かめます
+ * 
+ * @author tomorrowkey@gmail.com
+ */
+public class ThroughputMeterTest {
+
+    @Test
+    public void firstRecordOnlyStartsTheClock() {
+        ThroughputMeter meter = new ThroughputMeter();
+        meter.record(1000);
+        meter.record(31000);
+
+        assertEquals(2, meter.getCount());
+        assertEquals(2.0, meter.getCountPerMinute(), 1e-9);
+    }
+
+    @Test
+    public void explicitStartCountsEveryRecord() {
+        ThroughputMeter meter = new ThroughputMeter();
+        meter.start(1000);
+        meter.record(31000);
+        meter.record(61000);
+
+        assertEquals(2, meter.getCount());
+        assertEquals(2.0, meter.getCountPerMinute(), 1e-9);
+    }
+
+    @Test
+    public void steadyRateMatchesInterval() {
+        ThroughputMeter meter = new ThroughputMeter();
+        for (int i = 0; i < 11; i++)
+            meter.record(5000 + i * 6000L);
+
+        assertEquals(10.0, meter.getCountPerMinute(), 1e-9);
+    }
+
+    @Test
+    public void singleRecordHasNoRate() {
+        ThroughputMeter meter = new ThroughputMeter();
+        meter.record(1000);
+
+        assertEquals(1, meter.getCount());
+        assertEquals(0.0, meter.getCountPerMinute(), 0.0);
+    }
+}